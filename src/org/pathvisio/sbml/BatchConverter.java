@@ -0,0 +1,354 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.preferences.PreferenceManager;
+import org.pathvisio.sbml.peer.ExportOptions;
+import org.pathvisio.sbml.peer.ImportOptions;
+import org.pathvisio.sbml.peer.ImportOptions.NotesMode;
+import org.pathvisio.sbml.peer.LazyComments;
+
+/**
+ * Converts a directory tree of SBML files to GPML (or GPML to SBML) without a
+ * GUI.
+ * <p>
+ * Files are converted on a thread pool through {@link SBMLFormat}. No dialogs
+ * are opened; the outcome of every file is returned as a {@link Result}, and
+ * a summary with throughput and latency percentiles is written next to the
+ * output.
+ *
+ * <pre>
+ * java org.pathvisio.sbml.BatchConverter [-t threads] [-export [-stream]] [-cache dir] [-dropnotes] indir outdir
+ * </pre>
+ */
+public class BatchConverter {
+
+	/** Outcome of converting a single file */
+	public static class Result {
+		private final File input;
+		private final File output;
+		private final long bytes;
+		private final long millis;
+		private final Exception error;
+
+		Result(File input, File output, long bytes, long millis,
+				Exception error) {
+			this.input = input;
+			this.output = output;
+			this.bytes = bytes;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		public File getInput() {
+			return input;
+		}
+
+		public File getOutput() {
+			return output;
+		}
+
+		/** @return size of the input file */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** @return wall time spent on this file */
+		public long getMillis() {
+			return millis;
+		}
+
+		/** @return the cause of the failure, or null if conversion succeeded */
+		public Exception getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	private final int threads;
+	private final boolean export;
+	private final ImportOptions importOptions = new ImportOptions();
+	private final ExportOptions exportOptions = new ExportOptions();
+	private ImportCache importCache;
+
+	/**
+	 * @param threads
+	 *            number of files converted at the same time
+	 * @param export
+	 *            if true, GPML files are converted to SBML instead of the
+	 *            other way round
+	 */
+	public BatchConverter(int threads, boolean export) {
+		this.threads = Math.max(1, threads);
+		this.export = export;
+	}
+
+	/** @return settings applied to every import */
+	public ImportOptions getImportOptions() {
+		return importOptions;
+	}
+
+	/** @return settings applied to every export */
+	public ExportOptions getExportOptions() {
+		return exportOptions;
+	}
+
+	/** @param cache shared by all imports, may be null */
+	public void setImportCache(ImportCache cache) {
+		this.importCache = cache;
+	}
+
+	/**
+	 * Converts every matching file below inDir. The directory structure is
+	 * mirrored in outDir.
+	 *
+	 * @return one result per file, in the order the files were found
+	 */
+	public List<Result> convert(File inDir, File outDir)
+			throws InterruptedException {
+		List<File> files = new ArrayList<File>();
+		collect(inDir, files);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (File f : files) {
+				final File input = f;
+				final File output = outputFile(inDir, outDir, f);
+				futures.add(executor.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						return convertFile(input, output);
+					}
+				}));
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> f : futures) {
+				try {
+					results.add(f.get());
+				} catch (ExecutionException e) {
+					// convertFile catches everything; only errors end up here
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Result convertFile(File input, File output) {
+		long start = System.currentTimeMillis();
+		Exception error = null;
+		try {
+			output.getParentFile().mkdirs();
+			SBMLFormat format = new SBMLFormat(null);
+			if (export) {
+				Pathway pathway = new Pathway();
+				pathway.readFromXml(input, true);
+				format.getExportOptions().setStreaming(
+						exportOptions.isStreaming());
+				format.doExport(output, pathway);
+			} else {
+				format.getImportOptions().setStreamingThreshold(
+						importOptions.getStreamingThreshold());
+				format.getImportOptions().setParallel(
+						importOptions.isParallel());
+				format.getImportOptions().setThreads(importOptions.getThreads());
+				format.getImportOptions().setNotesMode(
+						importOptions.getNotesMode());
+				format.setImportCache(importCache);
+				// the GPML output needs no peers, so cached pathways do
+				format.getExportOptions().setRoundTrip(false);
+				Pathway pathway = format.doImport(input);
+				LazyComments.materialize(pathway);
+				pathway.writeToXml(output, true);
+			}
+		} catch (Exception e) {
+			error = e;
+		}
+		return new Result(input, output, input.length(),
+				System.currentTimeMillis() - start, error);
+	}
+
+	private void collect(File dir, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File f : children) {
+			if (f.isDirectory()) {
+				collect(f, files);
+			} else if (accepts(f)) {
+				files.add(f);
+			}
+		}
+	}
+
+	private boolean accepts(File f) {
+		String name = f.getName().toLowerCase();
+		if (export) {
+			return name.endsWith(".gpml");
+		}
+		for (String ext : new SBMLFormat(null).getExtensions()) {
+			if (name.endsWith("." + ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private File outputFile(File inDir, File outDir, File input) {
+		String relative = SbmlFiles.stripCompression(input.getAbsolutePath()
+				.substring(inDir.getAbsolutePath().length()));
+		int dot = relative.lastIndexOf('.');
+		String base = dot > 0 ? relative.substring(0, dot) : relative;
+		return new File(outDir, base + (export ? ".xml" : ".gpml"));
+	}
+
+	/**
+	 * Writes one line per file and the overall figures as tab separated
+	 * text, and prints the overall figures.
+	 *
+	 * @param wallMillis
+	 *            wall time of the whole run
+	 */
+	public static void writeSummary(List<Result> results, long wallMillis,
+			File summary) throws IOException {
+		List<Long> latencies = new ArrayList<Long>();
+		long bytes = 0;
+		int failures = 0;
+		PrintWriter out = new PrintWriter(new FileWriter(summary));
+		try {
+			out.println("file\tbytes\tmillis\terror");
+			for (Result r : results) {
+				latencies.add(r.getMillis());
+				bytes += r.getBytes();
+				if (!r.isSuccess()) {
+					failures++;
+				}
+				out.println(r.getInput() + "\t" + r.getBytes() + "\t"
+						+ r.getMillis() + "\t"
+						+ (r.isSuccess() ? "" : String.valueOf(r.getError())));
+			}
+			Collections.sort(latencies);
+			double seconds = Math.max(wallMillis, 1) / 1000.0;
+			String[] lines = new String[] {
+					"files\t" + results.size(),
+					"failures\t" + failures,
+					"wall time (s)\t" + seconds,
+					"files/s\t" + results.size() / seconds,
+					"MB/s\t" + bytes / (1024.0 * 1024.0) / seconds,
+					"p50 latency (ms)\t" + percentile(latencies, 50),
+					"p99 latency (ms)\t" + percentile(latencies, 99) };
+			out.println();
+			for (String line : lines) {
+				out.println("# " + line);
+				System.out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** @param sorted latencies in ascending order */
+	static long percentile(List<Long> sorted, int p) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean export = false;
+		File cacheDir = null;
+		boolean dropNotes = false;
+		boolean stream = false;
+		List<String> dirs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-t".equals(args[i]) && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("-cache".equals(args[i]) && i + 1 < args.length) {
+				cacheDir = new File(args[++i]);
+			} else if ("-stream".equals(args[i])) {
+				stream = true;
+			} else if ("-dropnotes".equals(args[i])) {
+				dropNotes = true;
+			} else if ("-export".equals(args[i])) {
+				export = true;
+			} else {
+				dirs.add(args[i]);
+			}
+		}
+		if (dirs.size() != 2) {
+			System.err
+					.println("Usage: BatchConverter [-t threads] [-export [-stream]] [-cache dir] [-dropnotes] indir outdir");
+			System.exit(1);
+		}
+		PreferenceManager.init();
+
+		File inDir = new File(dirs.get(0));
+		File outDir = new File(dirs.get(1));
+		outDir.mkdirs();
+		BatchConverter converter = new BatchConverter(threads, export);
+		converter.getExportOptions().setStreaming(stream);
+		if (dropNotes) {
+			converter.getImportOptions().setNotesMode(NotesMode.DROP);
+		}
+		ImportCache cache = null;
+		if (cacheDir != null) {
+			cache = new ImportCache(cacheDir, Long.MAX_VALUE);
+			converter.setImportCache(cache);
+		}
+		long start = System.currentTimeMillis();
+		List<Result> results = converter.convert(inDir, outDir);
+		long wall = System.currentTimeMillis() - start;
+		for (Result r : results) {
+			if (!r.isSuccess()) {
+				System.err.println("FAILED " + r.getInput() + ": "
+						+ r.getError());
+			}
+		}
+		writeSummary(results, wall, new File(outDir, "summary.tsv"));
+		if (cache != null) {
+			cache.flush();
+			System.out.println("cache hit rate\t" + cache.getHitRate());
+		}
+	}
+}
@@ -0,0 +1,496 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pathvisio.core.model.ConnectorType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.core.model.PathwayElement.MPoint;
+import org.pathvisio.sbgn.SbgnTemplates;
+import org.pathvisio.sbml.peer.PeerCompartment;
+import org.sbgn.GlyphClazz;
+
+/**
+ * CompartmentLayout Class<p>
+ * Lays out each SBML compartment on its own and packs the compartments next
+ * to each other. Species belong to the compartment stored on import, see
+ * {@link PeerCompartment}; a process node belongs to the compartment of its
+ * species. The compartments are laid out in parallel with
+ * {@link MultilevelLayout}, so the wall time follows the largest compartment
+ * rather than the whole model. Transport reactions, whose species are in
+ * different compartments, are placed last: near their species, but in the
+ * corridors between the compartments, never inside one. Their arcs bend
+ * where they leave the compartment of their species.
+ * <p>
+ * Applying the layout fits a compartment glyph around each compartment. The
+ * glyph has the compartment id as graph id, which is how the export finds
+ * it; if the pathway has none yet, one is added.
+ */
+public class CompartmentLayout extends MultilevelLayout {
+
+	/** free space between the nodes of a compartment and its border */
+	public float padding = 40f;
+
+	/** box of each compartment, in layout coordinates */
+	private final Map<String, Rectangle2D> boxes = new HashMap<String, Rectangle2D>();
+	/** graph ids of the process nodes of transport reactions */
+	private final Set<String> transportIds = new HashSet<String>();
+	private int partitionsDone;
+	private int partitionCount;
+
+	/** create a layout for a pathway without applying it, see {@link #run()} */
+	public CompartmentLayout(Pathway pwy) {
+		super(pwy);
+	}
+
+	/** @return top left corner of each node */
+	@Override
+	protected Map<String, Point2D> computeLocations() {
+		LayoutGraph g = buildGraph();
+		int n = g.nodes;
+		int[] adj = new int[g.springs * 2];
+		int[] start = g.neighbours(adj);
+		Set<String> processes = new HashSet<String>(portIndex.values());
+
+		// species know their compartment, the others follow their species
+		String[] compartment = new String[n];
+		for (int i = 0; i < n; i++) {
+			compartment[i] = PeerCompartment.getCompartment(elementIndex
+					.get(g.ids[i]));
+		}
+		boolean[] transport = new boolean[n];
+		String[] own = compartment.clone();
+		for (int i = 0; i < n; i++) {
+			if (own[i] != null) {
+				continue;
+			}
+			for (int e = start[i]; e < start[i + 1]; e++) {
+				String c = own[adj[e]];
+				if (c == null) {
+					continue;
+				}
+				if (compartment[i] == null) {
+					compartment[i] = c;
+				} else if (!c.equals(compartment[i])) {
+					transport[i] = true;
+				}
+			}
+			if (compartment[i] == null) {
+				compartment[i] = "";
+			}
+		}
+
+		// one graph per compartment, without the transport reactions
+		Map<String, Partition> byId = new HashMap<String, Partition>();
+		List<Partition> partitions = new ArrayList<Partition>();
+		int[] local = new int[n];
+		Partition[] partitionOf = new Partition[n];
+		for (int i = 0; i < n; i++) {
+			if (transport[i]) {
+				continue;
+			}
+			Partition p = byId.get(compartment[i]);
+			if (p == null) {
+				p = new Partition(compartment[i]);
+				byId.put(compartment[i], p);
+				partitions.add(p);
+			}
+			partitionOf[i] = p;
+			local[i] = p.nodes.size();
+			p.nodes.add(i);
+		}
+		for (Partition p : partitions) {
+			p.graph = new LayoutGraph(p.nodes.size(), 0);
+			p.process = new boolean[p.nodes.size()];
+			for (int i : p.nodes) {
+				p.process[p.graph.addNode(g.ids[i], g.x[i], g.y[i],
+						2 * g.halfWidth[i], 2 * g.halfHeight[i])] = processes
+						.contains(g.ids[i]);
+			}
+		}
+		for (int j = 0; j < g.springs; j++) {
+			Partition p = partitionOf[g.from[j]];
+			if (p != null && p == partitionOf[g.to[j]]) {
+				p.graph.addSpring(local[g.from[j]], local[g.to[j]],
+						g.length[j]);
+			}
+		}
+
+		// room between the boxes for the largest transport reaction
+		float corridor = 0;
+		transportIds.clear();
+		for (int i = 0; i < n; i++) {
+			if (transport[i]) {
+				corridor = Math.max(corridor,
+						2 * Math.max(g.halfWidth[i], g.halfHeight[i]));
+				transportIds.add(g.ids[i]);
+			}
+		}
+
+		layoutAll(partitions);
+		pack(partitions, corridor > 0 ? corridor + 2 * gap : gap);
+
+		for (Partition p : partitions) {
+			for (int l = 0; l < p.nodes.size(); l++) {
+				int i = p.nodes.get(l);
+				g.x[i] = p.graph.x[l];
+				g.y[i] = p.graph.y[l];
+			}
+		}
+		placeTransport(g, transport, start, adj, partitions);
+
+		Map<String, Point2D> points = new HashMap<String, Point2D>(n * 2);
+		for (int i = 0; i < n; i++) {
+			points.put(g.ids[i], new Point2D.Float(g.x[i] - g.halfWidth[i],
+					g.y[i] - g.halfHeight[i]));
+		}
+		return points;
+	}
+
+	/** Lays out the partitions on all processors, the largest first */
+	private void layoutAll(List<Partition> partitions) {
+		partitionsDone = 0;
+		partitionCount = partitions.size();
+		List<Partition> tasks = new ArrayList<Partition>(partitions);
+		Collections.sort(tasks, new Comparator<Partition>() {
+			@Override
+			public int compare(Partition a, Partition b) {
+				return b.nodes.size() - a.nodes.size();
+			}
+		});
+		int nThreads = Math.min(tasks.size(), Math.max(1, threads));
+		if (nThreads <= 1) {
+			for (Partition p : tasks) {
+				p.call();
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Layout interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The partitions report their progress as a whole, and are not
+	 * previewed: their positions only make sense once packed
+	 */
+	@Override
+	protected boolean progress(int done, int total) {
+		return false;
+	}
+
+	private synchronized void partitionDone() {
+		super.progress(++partitionsDone, partitionCount);
+	}
+
+	/**
+	 * Moves the partitions into boxes, packed in shelves: the boxes go left
+	 * to right, highest first, and a new shelf starts below when a shelf is
+	 * about as wide as the packing is high.
+	 *
+	 * @param spacing
+	 *            free space between two boxes
+	 */
+	private void pack(List<Partition> partitions, float spacing) {
+		double area = 0;
+		double widest = 0;
+		for (Partition p : partitions) {
+			LayoutGraph pg = p.graph;
+			double minX = Double.MAX_VALUE;
+			double minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE;
+			double maxY = -Double.MAX_VALUE;
+			for (int l = 0; l < pg.nodes; l++) {
+				minX = Math.min(minX, pg.x[l] - pg.halfWidth[l]);
+				minY = Math.min(minY, pg.y[l] - pg.halfHeight[l]);
+				maxX = Math.max(maxX, pg.x[l] + pg.halfWidth[l]);
+				maxY = Math.max(maxY, pg.y[l] + pg.halfHeight[l]);
+			}
+			p.box = new Rectangle2D.Double(minX - padding, minY - padding,
+					maxX - minX + 2 * padding, maxY - minY + 2 * padding);
+			area += (p.box.getWidth() + spacing) * (p.box.getHeight() + spacing);
+			widest = Math.max(widest, p.box.getWidth());
+		}
+		List<Partition> byHeight = new ArrayList<Partition>(partitions);
+		Collections.sort(byHeight, new Comparator<Partition>() {
+			@Override
+			public int compare(Partition a, Partition b) {
+				return Double.compare(b.box.getHeight(), a.box.getHeight());
+			}
+		});
+		double shelfWidth = Math.max(widest, Math.sqrt(area));
+		double x = 0;
+		double y = 0;
+		double shelfHeight = 0;
+		boxes.clear();
+		for (Partition p : byHeight) {
+			if (x > 0 && x + p.box.getWidth() > shelfWidth) {
+				x = 0;
+				y += shelfHeight + spacing;
+				shelfHeight = 0;
+			}
+			float dx = (float) (x - p.box.getX());
+			float dy = (float) (y - p.box.getY());
+			for (int l = 0; l < p.graph.nodes; l++) {
+				p.graph.x[l] += dx;
+				p.graph.y[l] += dy;
+			}
+			p.box.setRect(x, y, p.box.getWidth(), p.box.getHeight());
+			if (p.id.length() > 0) {
+				boxes.put(p.id, p.box);
+			}
+			x += p.box.getWidth() + spacing;
+			shelfHeight = Math.max(shelfHeight, p.box.getHeight());
+		}
+	}
+
+	/**
+	 * Puts each transport reaction as close to the center of its species as
+	 * it can go without overlapping a compartment or a transport reaction
+	 * placed before it. One that can't find such a spot goes below the
+	 * packing.
+	 */
+	private void placeTransport(LayoutGraph g, boolean[] transport,
+			int[] start, int[] adj, List<Partition> partitions) {
+		float margin = gap / 2;
+		List<Rectangle2D> obstacles = new ArrayList<Rectangle2D>();
+		double bottom = 0;
+		for (Partition p : partitions) {
+			obstacles.add(p.box);
+			bottom = Math.max(bottom, p.box.getMaxY());
+		}
+		for (int i = 0; i < g.nodes; i++) {
+			if (!transport[i]) {
+				continue;
+			}
+			float x = 0;
+			float y = 0;
+			int count = 0;
+			for (int e = start[i]; e < start[i + 1]; e++) {
+				if (!transport[adj[e]]) {
+					x += g.x[adj[e]];
+					y += g.y[adj[e]];
+					count++;
+				}
+			}
+			if (count > 0) {
+				x /= count;
+				y /= count;
+			}
+			float hw = g.halfWidth[i];
+			float hh = g.halfHeight[i];
+			boolean clear = false;
+			for (int round = 0; round < MAX_ROUNDS && !clear; round++) {
+				clear = true;
+				for (Rectangle2D box : obstacles) {
+					Point2D.Float p = clear(box, x, y, hw, hh, margin);
+					if (p != null) {
+						x = p.x;
+						y = p.y;
+						clear = false;
+						break;
+					}
+				}
+			}
+			if (!clear) {
+				y = (float) bottom + hh + gap;
+				bottom += 2 * hh + gap;
+			}
+			g.x[i] = x;
+			g.y[i] = y;
+			obstacles.add(new Rectangle2D.Float(x - hw, y - hh, 2 * hw, 2 * hh));
+		}
+	}
+
+	/** times a transport reaction is pushed out of the way before giving up */
+	private static final int MAX_ROUNDS = 8;
+
+	/**
+	 * @return the nearest center for a node with the given half size at x,
+	 *         y that keeps it margin away from box, or null if it is clear
+	 *         already
+	 */
+	private static Point2D.Float clear(Rectangle2D box, float x, float y,
+			float hw, float hh, float margin) {
+		float left = (float) box.getMinX() - hw - margin;
+		float right = (float) box.getMaxX() + hw + margin;
+		float top = (float) box.getMinY() - hh - margin;
+		float bottom = (float) box.getMaxY() + hh + margin;
+		if (x <= left || x >= right || y <= top || y >= bottom) {
+			return null;
+		}
+		float toLeft = x - left;
+		float toRight = right - x;
+		float toTop = y - top;
+		float toBottom = bottom - y;
+		float min = Math.min(Math.min(toLeft, toRight), Math.min(toTop, toBottom));
+		if (min == toLeft) {
+			return new Point2D.Float(left, y);
+		} else if (min == toRight) {
+			return new Point2D.Float(right, y);
+		} else if (min == toTop) {
+			return new Point2D.Float(x, top);
+		}
+		return new Point2D.Float(x, bottom);
+	}
+
+	/**
+	 * Moves the nodes, fits the compartment glyphs around their species and
+	 * bends the arcs of the transport reactions
+	 */
+	@Override
+	protected void apply(Map<String, Point2D> points) {
+		super.apply(points);
+		if (points.isEmpty() || boxes.isEmpty()) {
+			return;
+		}
+		// setLocations shifts the whole layout, find out how far
+		Map.Entry<String, Point2D> e = points.entrySet().iterator().next();
+		PathwayElement pe = elementIndex.get(e.getKey());
+		double dx = pe.getMLeft() - e.getValue().getX();
+		double dy = pe.getMTop() - e.getValue().getY();
+		Map<String, Rectangle2D> placed = new HashMap<String, Rectangle2D>();
+		for (Map.Entry<String, Rectangle2D> b : boxes.entrySet()) {
+			Rectangle2D box = b.getValue();
+			placed.put(b.getKey(), new Rectangle2D.Double(box.getX() + dx,
+					box.getY() + dy, box.getWidth(), box.getHeight()));
+		}
+		fitCompartments(placed);
+		bendTransportArcs(placed);
+	}
+
+	/**
+	 * Fits the glyph of each compartment to its box, adding a glyph behind
+	 * the nodes for a compartment that has none. A compartment whose id is
+	 * the graph id of some other element gets no glyph.
+	 */
+	private void fitCompartments(Map<String, Rectangle2D> placed) {
+		int z = Integer.MAX_VALUE;
+		for (PathwayElement pe : pwyNodes) {
+			z = Math.min(z, pe.getZOrder());
+		}
+		for (Map.Entry<String, Rectangle2D> e : placed.entrySet()) {
+			PathwayElement shape = elementIndex.get(e.getKey());
+			if (shape == null) {
+				shape = SbgnTemplates.createGlyph(GlyphClazz.COMPARTMENT, pwy,
+						0, 0);
+				shape.setGraphId(e.getKey());
+				shape.setTextLabel(e.getKey());
+				shape.setZOrder(z == Integer.MAX_VALUE ? 0 : z - 1);
+				pwy.add(shape);
+				elementIndex.put(e.getKey(), shape);
+			} else if (!ExportPreflight.isCompartment(shape)) {
+				continue;
+			}
+			Rectangle2D box = e.getValue();
+			shape.setMLeft(box.getX());
+			shape.setMTop(box.getY());
+			shape.setMWidth(box.getWidth());
+			shape.setMHeight(box.getHeight());
+		}
+	}
+
+	/**
+	 * Gives each arc between a transport reaction and a species a bend just
+	 * outside the compartment of the species, at the point of its border
+	 * nearest to the reaction. The part of the arc inside the compartment
+	 * then stays within it.
+	 */
+	private void bendTransportArcs(Map<String, Rectangle2D> placed) {
+		float margin = gap / 2;
+		for (PathwayElement line : allLines) {
+			PathwayElement start = resolve(line.getStartGraphRef());
+			PathwayElement end = resolve(line.getEndGraphRef());
+			if (start == null || end == null) {
+				continue;
+			}
+			PathwayElement process;
+			PathwayElement species;
+			if (transportIds.contains(start.getGraphId())) {
+				process = start;
+				species = end;
+			} else if (transportIds.contains(end.getGraphId())) {
+				process = end;
+				species = start;
+			} else {
+				continue;
+			}
+			String c = PeerCompartment.getCompartment(species);
+			Rectangle2D box = c == null ? null : placed.get(c);
+			if (box == null) {
+				continue;
+			}
+			double x = Math.max(box.getMinX() - margin, Math.min(
+					box.getMaxX() + margin, process.getMCenterX()));
+			double y = Math.max(box.getMinY() - margin, Math.min(
+					box.getMaxY() + margin, process.getMCenterY()));
+			List<MPoint> bent = new ArrayList<MPoint>();
+			bent.add(line.getMStart());
+			bent.add(line.new MPoint(x, y));
+			bent.add(line.getMEnd());
+			line.setConnectorType(ConnectorType.SEGMENTED);
+			line.setMPoints(bent);
+		}
+	}
+
+	/** The nodes of one compartment, laid out as one task */
+	private class Partition implements Callable<Void> {
+		final String id;
+		final List<Integer> nodes = new ArrayList<Integer>();
+		LayoutGraph graph;
+		boolean[] process;
+		Rectangle2D box;
+
+		Partition(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public Void call() {
+			layout(graph, process);
+			partitionDone();
+			return null;
+		}
+	}
+}
@@ -42,9 +42,11 @@ import javax.swing.tree.TreeSelectionModel;
 import org.pathvisio.core.ApplicationEvent;
 import org.pathvisio.core.Engine;
 import org.pathvisio.core.Engine.ApplicationEventListener;
+import org.pathvisio.core.debug.Logger;
 import org.pathvisio.core.model.ObjectType;
 import org.pathvisio.core.model.Pathway;
 import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.peer.LazyComments;
 import org.sbml.jsbml.Species;
 
 /**
@@ -91,12 +93,30 @@ public class DocumentPanel extends JPanel implements ApplicationEventListener {
 			clean();
 			break;
 		case PATHWAY_OPENED:
+			attachComments();
 			doQuery();
 			break;
 		}
 
 	}
 
+	/**
+	 * The import leaves notes and annotation out, see {@link LazyComments}.
+	 * They are added on the event thread right after the pathway is shown, so
+	 * they are in place before it can be edited or saved as GPML.
+	 */
+	private void attachComments() {
+		final Pathway active = engine.getActivePathway();
+		if (active != null && LazyComments.isPending(active)) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					LazyComments.materialize(active);
+				}
+			});
+		}
+	}
+
 	// /**
 	// * This method is invoked in the applicationEvent if a new model is opened
 	// *
@@ -117,6 +137,18 @@ public class DocumentPanel extends JPanel implements ApplicationEventListener {
 		executor.execute(new Runnable() {
 			@Override
 			public void run() {
+				if (SBMLFormat.modelDoc == null
+						&& SBMLFormat.pendingModelFile != null) {
+					// the pathway came from the import cache
+					try {
+						SBMLFormat.modelDoc = SbmlFiles
+								.readDocument(SBMLFormat.pendingModelFile);
+					} catch (Exception ex) {
+						Logger.log.error("Could not read "
+								+ SBMLFormat.pendingModelFile, ex);
+					}
+					SBMLFormat.pendingModelFile = null;
+				}
 				if (SBMLFormat.modelDoc == null)
 					return;
 
@@ -0,0 +1,201 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bridgedb.Xref;
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbgn.SbgnFormat;
+import org.pathvisio.sbml.peer.AnnotationResolver;
+import org.pathvisio.sbml.peer.PeerCompartment;
+import org.sbgn.GlyphClazz;
+
+/**
+ * Everything an export needs to know about a pathway, collected in one pass
+ * over its data objects: lines that are not connected at both ends, the
+ * reaction index, the elements that become species or compartments and the
+ * annotation URI and compartment of each species.
+ * <p>
+ * The time spent in each export stage is recorded here as well, see
+ * {@link #getTimings()}.
+ */
+public class ExportPreflight {
+
+	/** compartment of the species that were not imported from SBML */
+	static final String DEFAULT_COMPARTMENT = "default";
+
+	private final ReactionIndex index = new ReactionIndex();
+	private final List<String> unconnectedLines = new ArrayList<String>();
+	private final List<PathwayElement> species = new ArrayList<PathwayElement>();
+	private final List<PathwayElement> compartments = new ArrayList<PathwayElement>();
+	/** species graph id -> annotation URI, only for species with an Xref */
+	private final Map<String, String> annotations = new HashMap<String, String>();
+	/** compartments of the species that have no compartment glyph */
+	private final Set<String> implicitCompartments = new LinkedHashSet<String>();
+	/** stage -> milliseconds, in the order the stages ran */
+	private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+	private ExportPreflight() {
+	}
+
+	static ExportPreflight run(Pathway pathway) {
+		long start = System.nanoTime();
+		ExportPreflight p = new ExportPreflight();
+		for (PathwayElement elt : pathway.getDataObjects()) {
+			p.visit(elt);
+		}
+		p.index.resolveArcs();
+		p.collectImplicitCompartments();
+		p.record("preflight", start);
+		return p;
+	}
+
+	private void visit(PathwayElement elt) {
+		if (elt.getObjectType() == ObjectType.LINE) {
+			String start = elt.getStartGraphRef();
+			String end = elt.getEndGraphRef();
+			if (start == null || "".equals(start) || end == null
+					|| "".equals(end)) {
+				unconnectedLines.add(elt.getGraphId());
+			}
+		} else if (SbmlStreamWriter.isSpecies(elt)) {
+			species.add(elt);
+			String uri = annotationUri(elt);
+			if (uri != null) {
+				annotations.put(elt.getGraphId(), uri);
+			}
+		} else if (isCompartment(elt)) {
+			compartments.add(elt);
+		}
+		index.add(elt);
+	}
+
+	private void collectImplicitCompartments() {
+		Set<String> glyphs = new HashSet<String>();
+		for (PathwayElement elt : compartments) {
+			glyphs.add(elt.getGraphId());
+		}
+		for (PathwayElement elt : species) {
+			String c = compartmentOf(elt);
+			if (!glyphs.contains(c)) {
+				implicitCompartments.add(c);
+			}
+		}
+	}
+
+	/**
+	 * @return the compartment a species was imported from, or
+	 *         {@link #DEFAULT_COMPARTMENT}
+	 */
+	static String compartmentOf(PathwayElement elt) {
+		String c = PeerCompartment.getCompartment(elt);
+		return c == null || c.isEmpty() ? DEFAULT_COMPARTMENT : c;
+	}
+
+	/** @return true if elt is exported as an SBML compartment */
+	static boolean isCompartment(PathwayElement elt) {
+		String sbgnClass = elt
+				.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS);
+		return sbgnClass != null
+				&& GlyphClazz.fromClazz(sbgnClass) == GlyphClazz.COMPARTMENT;
+	}
+
+	/** @return the identifiers.org URI of the element's Xref, or null */
+	static String annotationUri(PathwayElement elt) {
+		Xref xref = elt.getXref();
+		if (xref.getDataSource() == null || xref.getId() == null
+				|| xref.getId().isEmpty()) {
+			return null;
+		}
+		return AnnotationResolver.getDefault().toUri(xref);
+	}
+
+	/** @return true if all lines are connected at both ends */
+	public boolean isConnected() {
+		return unconnectedLines.isEmpty();
+	}
+
+	/** @return graph ids of the lines that miss a start or end reference */
+	public List<String> getUnconnectedLines() {
+		return Collections.unmodifiableList(unconnectedLines);
+	}
+
+	ReactionIndex getIndex() {
+		return index;
+	}
+
+	/** @return the elements exported as species, in pathway order */
+	List<PathwayElement> getSpecies() {
+		return species;
+	}
+
+	/** @return the elements exported as compartments, in pathway order */
+	List<PathwayElement> getCompartments() {
+		return compartments;
+	}
+
+	/**
+	 * @return ids of the compartments that contain species but have no
+	 *         compartment glyph, in the order they are first used. They are
+	 *         exported without a name, species need a compartment.
+	 */
+	Set<String> getImplicitCompartments() {
+		return implicitCompartments;
+	}
+
+	/** @return the annotation URI of a species, or null if it has no Xref */
+	String getAnnotation(PathwayElement elt) {
+		return annotations.get(elt.getGraphId());
+	}
+
+	/** Records the time since start (from {@link System#nanoTime()}) */
+	void record(String stage, long start) {
+		timings.put(stage, (System.nanoTime() - start) / 1000000);
+	}
+
+	/** @return milliseconds per export stage, in the order the stages ran */
+	public Map<String, Long> getTimings() {
+		return Collections.unmodifiableMap(timings);
+	}
+
+	/** @return a one line summary, e.g. for the log */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(species.size()).append(" species, ")
+				.append(index.getReactions().size()).append(" reactions");
+		if (!unconnectedLines.isEmpty()) {
+			sb.append(", unconnected lines ").append(unconnectedLines);
+		}
+		for (Map.Entry<String, Long> e : timings.entrySet()) {
+			sb.append(", ").append(e.getKey()).append(' ')
+					.append(e.getValue()).append(" ms");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,229 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pathvisio.core.model.Pathway;
+
+/**
+ * ForceLayout Class<p>
+ * Fruchterman-Reingold force-directed layout on flat arrays. Repulsion is
+ * approximated with a Barnes-Hut quadtree and computed on all processors;
+ * springs are the lines between the nodes. Lays out large pathways much
+ * faster than {@link Prefuse}.
+ */
+public class ForceLayout extends LayoutAbstract {
+
+	public int numIterations = 100;
+	/** Barnes-Hut accuracy, lower is more exact and slower */
+	public float theta = 0.9f;
+	/** free space wanted between two nodes, on top of their size */
+	public float gap = 20f;
+	public int threads = Runtime.getRuntime().availableProcessors();
+	public long seed = 42;
+
+	/** below this many nodes a single thread is faster */
+	private static final int PARALLEL_THRESHOLD = 2000;
+
+	/** create a layout for a pathway without applying it, see {@link #run()} */
+	public ForceLayout(Pathway pwy) {
+		super(pwy);
+	}
+
+	@Override
+	protected Map<String, Point2D> computeLocations() {
+		LayoutGraph g = buildGraph();
+		int n = g.nodes;
+		if (n == 0) {
+			return g.toPoints();
+		}
+		jitter(g);
+		float k = g.idealDistance(gap);
+		// start hot enough to cross the drawing
+		relax(g, k, k * (float) Math.sqrt(n), numIterations, 0, numIterations,
+				true);
+		return g.toPoints();
+	}
+
+	/**
+	 * Runs the simulation on g, cooling down linearly from t0
+	 *
+	 * @param k
+	 *            the distance nodes push each other to
+	 * @param done
+	 *            iterations already done before this call, and total the
+	 *            iterations of the whole layout, for the progress
+	 * @param frames
+	 *            whether the nodes of g are pathway nodes that can be
+	 *            previewed
+	 */
+	void relax(LayoutGraph g, float k, float t0, int iterations, int done,
+			int total, boolean frames) {
+		int n = g.nodes;
+		if (n == 0) {
+			return;
+		}
+		float[] dispX = new float[n];
+		float[] dispY = new float[n];
+		QuadTree tree = new QuadTree(n);
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		int nThreads = n < PARALLEL_THRESHOLD ? 1 : Math.max(1, threads);
+		int size = (n + nThreads - 1) / nThreads;
+		for (int start = 0; start < n; start += size) {
+			chunks.add(new Chunk(g, tree, theta, k * k, dispX, dispY, start,
+					Math.min(n, start + size)));
+		}
+		ExecutorService pool = chunks.size() > 1 ? Executors
+				.newFixedThreadPool(chunks.size()) : null;
+		try {
+			for (int it = 0; it < iterations && !isCancelled(); it++) {
+				float temperature = t0 * (1 - it / (float) iterations) + 1;
+				tree.build(g.x, g.y, n);
+				repulse(chunks, pool);
+				attract(g, dispX, dispY);
+				move(g, dispX, dispY, temperature);
+				if (progress(done + it + 1, total) && frames) {
+					preview(g.toPoints());
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	private void repulse(List<Chunk> chunks, ExecutorService pool) {
+		if (pool == null) {
+			chunks.get(0).call();
+			return;
+		}
+		try {
+			for (Future<Void> f : pool.invokeAll(chunks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Layout interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/** Springs pull with d^2 / length, in one thread since they share nodes */
+	private static void attract(LayoutGraph g, float[] dispX, float[] dispY) {
+		for (int j = 0; j < g.springs; j++) {
+			int a = g.from[j];
+			int b = g.to[j];
+			float dx = g.x[a] - g.x[b];
+			float dy = g.y[a] - g.y[b];
+			float d = (float) Math.sqrt(dx * dx + dy * dy);
+			float f = d / g.length[j];
+			dispX[a] -= dx * f;
+			dispY[a] -= dy * f;
+			dispX[b] += dx * f;
+			dispY[b] += dy * f;
+		}
+	}
+
+	/** Moves each node along its displacement, at most temperature far */
+	private static void move(LayoutGraph g, float[] dispX, float[] dispY,
+			float temperature) {
+		for (int i = 0; i < g.nodes; i++) {
+			float d = (float) Math.sqrt(dispX[i] * dispX[i] + dispY[i]
+					* dispY[i]);
+			if (d > 0) {
+				float step = Math.min(d, temperature) / d;
+				g.x[i] += dispX[i] * step;
+				g.y[i] += dispY[i] * step;
+			}
+		}
+	}
+
+	/**
+	 * Nodes on the same spot have no direction to push each other in, so
+	 * move all but the first a little
+	 */
+	void jitter(LayoutGraph g) {
+		Random random = new Random(seed);
+		Set<Long> seen = new HashSet<Long>(g.nodes * 2);
+		for (int i = 0; i < g.nodes; i++) {
+			long key = ((long) Float.floatToIntBits(g.x[i]) << 32)
+					| (Float.floatToIntBits(g.y[i]) & 0xffffffffL);
+			if (!seen.add(key)) {
+				g.x[i] += (random.nextFloat() - 0.5f) * gap;
+				g.y[i] += (random.nextFloat() - 0.5f) * gap;
+			}
+		}
+	}
+
+	/**
+	 * Repulsion on a range of nodes. Each chunk has its own scratch space and
+	 * only writes the displacements of its own nodes, so chunks can run in
+	 * parallel on a built tree.
+	 */
+	private static class Chunk implements Callable<Void> {
+		private final LayoutGraph g;
+		private final QuadTree tree;
+		private final float theta;
+		private final float strength;
+		private final float[] dispX;
+		private final float[] dispY;
+		private final int start;
+		private final int end;
+		private final int[] stack = QuadTree.newStack();
+		private final float[] force = new float[2];
+
+		Chunk(LayoutGraph g, QuadTree tree, float theta, float strength,
+				float[] dispX, float[] dispY, int start, int end) {
+			this.g = g;
+			this.tree = tree;
+			this.theta = theta;
+			this.strength = strength;
+			this.dispX = dispX;
+			this.dispY = dispY;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public Void call() {
+			for (int i = start; i < end; i++) {
+				force[0] = 0;
+				force[1] = 0;
+				tree.repulsion(i, g.x[i], g.y[i], theta, strength, stack,
+						force);
+				dispX[i] = force[0];
+				dispY[i] = force[1];
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.sbml.peer.ImportOptions;
+import org.pathvisio.sbml.peer.ImportOptions.NotesMode;
+import org.pathvisio.sbml.peer.LazyComments;
+
+/**
+ * Keeps converted pathways on disk, keyed by the SHA-256 of the SBML file,
+ * the converter version and the import settings that change the result.
+ * <p>
+ * An entry is the GPML of the pathway as converted, so a hit restores the
+ * pathway with all coordinates without parsing the SBML again. A restored
+ * pathway has no peers, see {@link SBMLFormat#doImport(File)} for when the
+ * cache is bypassed. Entries are written on a background thread from a copy
+ * of the pathway. When the entries take more than the quota, the least
+ * recently used ones are removed.
+ */
+public class ImportCache {
+
+	/**
+	 * Part of every key. Change it whenever the conversion gives a different
+	 * pathway for the same SBML, so old entries are no longer used.
+	 */
+	public static final String CONVERTER_VERSION = "1";
+
+	private static final String SUFFIX = ".gpml";
+
+	private final File dir;
+	private long quota;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final ExecutorService writer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SBML import cache");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * @param dir
+	 *            directory for the cache entries, created if needed
+	 * @param quota
+	 *            maximum total size of the entries in bytes
+	 */
+	public ImportCache(File dir, long quota) {
+		this.dir = dir;
+		this.quota = quota;
+		dir.mkdirs();
+	}
+
+	/** @return the cache key for an SBML file */
+	public static String key(File sbml) throws IOException {
+		return key(sbml, null);
+	}
+
+	/**
+	 * @param options
+	 *            import settings that change the converted pathway, may be
+	 *            null for the defaults
+	 * @return the cache key for an SBML file imported with these settings
+	 */
+	public static String key(File sbml, ImportOptions options)
+			throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		md.update(CONVERTER_VERSION.getBytes("UTF-8"));
+		md.update((byte) 0);
+		if (options == null) {
+			options = new ImportOptions();
+		}
+		if (options.getNotesMode() == NotesMode.DROP) {
+			md.update(NotesMode.DROP.name().getBytes("UTF-8"));
+			md.update((byte) 0);
+		}
+		// the streaming reader places and labels some elements differently
+		md.update((SbmlImportHelper.isStreamed(sbml, options) ? "stream"
+				: "dom").getBytes("UTF-8"));
+		md.update((byte) 0);
+		InputStream in = new BufferedInputStream(new FileInputStream(sbml));
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				md.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the cached pathway, or null if there is no (readable) entry for
+	 *         this key
+	 */
+	public Pathway get(String key) {
+		File f = entry(key);
+		if (!f.exists()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try {
+			Pathway pathway = new Pathway();
+			pathway.readFromXml(f, true);
+			f.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+			return pathway;
+		} catch (ConverterException e) {
+			Logger.log.warn("Removing unreadable cache entry " + f, e);
+			f.delete();
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a converted pathway. The pathway is copied on this thread and
+	 * written in the background; the pathway itself, including comments that
+	 * are still pending, is left as it is.
+	 */
+	public void put(final String key, Pathway pathway) {
+		final Pathway copy = pathway.clone();
+		LazyComments.share(pathway, copy);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				write(key, copy);
+			}
+		});
+	}
+
+	/** Waits until the entries passed to {@link #put} have been written */
+	public void flush() throws InterruptedException {
+		try {
+			writer.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private void write(String key, Pathway pathway) {
+		File f = entry(key);
+		File tmp = new File(dir, key + ".tmp");
+		LazyComments.materialize(pathway);
+		try {
+			pathway.writeToXml(tmp, true);
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				tmp.delete();
+				return;
+			}
+		} catch (ConverterException e) {
+			Logger.log.warn("Could not write cache entry " + f, e);
+			tmp.delete();
+			return;
+		}
+		evict();
+	}
+
+	/** Removes the least recently used entries until the quota is met */
+	synchronized void evict() {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		long total = 0;
+		for (File f : entries) {
+			total += f.length();
+		}
+		if (total <= quota) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		for (File f : entries) {
+			if (total <= quota) {
+				break;
+			}
+			if (f.getName().endsWith(SUFFIX)) {
+				total -= f.length();
+				f.delete();
+			}
+		}
+	}
+
+	public void clear() {
+		File[] entries = dir.listFiles();
+		if (entries != null) {
+			for (File f : entries) {
+				f.delete();
+			}
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	private File entry(String key) {
+		return new File(dir, key + SUFFIX);
+	}
+
+	public long getQuota() {
+		return quota;
+	}
+
+	public void setQuota(long quota) {
+		this.quota = quota;
+		evict();
+	}
+
+	/** @return total size of the entries in bytes */
+	public long size() {
+		long total = 0;
+		File[] entries = dir.listFiles();
+		if (entries != null) {
+			for (File f : entries) {
+				total += f.length();
+			}
+		}
+		return total;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** @return fraction of lookups that were served from the cache */
+	public double getHitRate() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+}
@@ -0,0 +1,625 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.core.model.PathwayElementEvent;
+import org.pathvisio.core.model.PathwayElementListener;
+import org.pathvisio.core.model.PathwayEvent;
+import org.pathvisio.core.model.PathwayListener;
+import org.pathvisio.sbgn.SbgnFormat;
+import org.pathvisio.sbml.ReactionIndex.Connections;
+import org.pathvisio.sbml.peer.ExportOptions;
+
+/**
+ * Keeps the SBML export of a pathway up to date while it is edited.
+ * <p>
+ * The exporter listens to the pathway and its elements and only records
+ * which elements changed. {@link #sync()} then serializes the species and
+ * reactions touched by those elements again, into a cache of XML fragments.
+ * {@link #save(File)} writes the cached fragments, so the cost of an export
+ * after an edit is proportional to the size of the edit plus copying the
+ * unchanged text.
+ * <p>
+ * The file has the same sections as the export of {@link SbmlExportHelper}:
+ * compartments, annotated species, reactions and, if the
+ * {@link ExportOptions} ask for it, the layout.
+ */
+public class IncrementalSbmlExporter implements PathwayListener,
+		PathwayElementListener {
+
+	/** depth of compartment, species and reaction elements below the root */
+	private static final int FRAGMENT_DEPTH = 3;
+	/** depth of the layout glyphs below the sbml root */
+	private static final int GLYPH_DEPTH = 5;
+
+	private final Pathway pathway;
+	private final ExportOptions options;
+	private final int level;
+	private final int version;
+
+	/** elements changed or added since the last sync */
+	private final Set<PathwayElement> dirty = new LinkedHashSet<PathwayElement>();
+	/** elements removed since the last sync */
+	private final Set<PathwayElement> deleted = new LinkedHashSet<PathwayElement>();
+	/** process node ids whose reaction must be rebuilt */
+	private final Set<String> dirtyReactions = new LinkedHashSet<String>();
+	/** lines that miss a start or end reference, see {@link ExportPreflight} */
+	private final Set<PathwayElement> unconnected = new LinkedHashSet<PathwayElement>();
+
+	/** compartment element -> id it was exported with */
+	private final Map<PathwayElement, String> compartmentIds = new HashMap<PathwayElement, String>();
+	/** species element -> id it was exported with */
+	private final Map<PathwayElement, String> speciesIds = new HashMap<PathwayElement, String>();
+	/** species id -> its compartment */
+	private final Map<String, String> speciesCompartments = new HashMap<String, String>();
+	/** process node id -> process node */
+	private final Map<String, PathwayElement> processNodes = new HashMap<String, PathwayElement>();
+	/** port line -> anchor id it was registered with */
+	private final Map<PathwayElement, String> portAnchors = new HashMap<PathwayElement, String>();
+	/** port anchor id -> process node id */
+	private final Map<String, String> ports = new HashMap<String, String>();
+	/** port line -> process node it starts at */
+	private final Map<PathwayElement, String> portProcess = new HashMap<PathwayElement, String>();
+	/** process node id -> port lines starting at it */
+	private final Map<String, Set<PathwayElement>> processPorts = new HashMap<String, Set<PathwayElement>>();
+	/** arc -> process node it is connected to */
+	private final Map<PathwayElement, String> arcProcess = new HashMap<PathwayElement, String>();
+	/** process node id -> connected arcs */
+	private final Map<String, Set<PathwayElement>> processArcs = new HashMap<String, Set<PathwayElement>>();
+	/** id an arc refers to -> process node ids of the reactions built with it */
+	private final Map<String, Set<String>> referencingReactions = new HashMap<String, Set<String>>();
+	/** process node id -> ids its arcs referred to when it was built */
+	private final Map<String, Set<String>> reactionReferences = new HashMap<String, Set<String>>();
+
+	private final Map<String, String> compartmentXml = new LinkedHashMap<String, String>();
+	private final Map<String, String> speciesXml = new LinkedHashMap<String, String>();
+	private final Map<String, String> reactionXml = new LinkedHashMap<String, String>();
+	private final Map<String, String> compartmentGlyphXml = new LinkedHashMap<String, String>();
+	private final Map<String, String> speciesGlyphXml = new LinkedHashMap<String, String>();
+	private final Map<String, String> reactionGlyphXml = new LinkedHashMap<String, String>();
+
+	private int lastSyncCount;
+	private long lastSyncMillis;
+	private long lastSaveMillis;
+
+	/** Starts tracking the pathway with the default export options */
+	public IncrementalSbmlExporter(Pathway pathway) {
+		this(pathway, new ExportOptions());
+	}
+
+	/**
+	 * Starts tracking the pathway. All elements are exported on the first
+	 * {@link #sync()}.
+	 *
+	 * @param options
+	 *            read on every {@link #save(File)}
+	 * @throws IllegalArgumentException
+	 *             if the pathway is SBML level 1, which can't be written
+	 *             from fragments
+	 */
+	public IncrementalSbmlExporter(Pathway pathway, ExportOptions options) {
+		this.pathway = pathway;
+		this.options = options;
+		level = Integer.parseInt(pathway.getMappInfo().getDynamicProperty(
+				"SBML_Level"));
+		version = Integer.parseInt(pathway.getMappInfo().getDynamicProperty(
+				"SBML_Version"));
+		if (!SbmlStreamWriter.supports(level)) {
+			throw new IllegalArgumentException("SBML level " + level
+					+ " can't be exported incrementally");
+		}
+		for (PathwayElement elt : pathway.getDataObjects()) {
+			elt.addListener(this);
+			dirty.add(elt);
+		}
+		pathway.addListener(this);
+	}
+
+	/** Stops listening to the pathway */
+	public void dispose() {
+		pathway.removeListener(this);
+		for (PathwayElement elt : pathway.getDataObjects()) {
+			elt.removeListener(this);
+		}
+	}
+
+	@Override
+	public void pathwayModified(PathwayEvent e) {
+		PathwayElement elt = e.getAffectedData();
+		switch (e.getType()) {
+		case PathwayEvent.ADDED:
+			elt.addListener(this);
+			deleted.remove(elt);
+			dirty.add(elt);
+			break;
+		case PathwayEvent.DELETED:
+			elt.removeListener(this);
+			dirty.remove(elt);
+			deleted.add(elt);
+			break;
+		}
+	}
+
+	@Override
+	public void gmmlObjectModified(PathwayElementEvent e) {
+		dirty.add(e.getModifiedPathwayElement());
+	}
+
+	/** @return number of elements changed since the last sync */
+	public int getPendingCount() {
+		return dirty.size() + deleted.size();
+	}
+
+	/**
+	 * Brings the fragment cache up to date with the changes recorded since
+	 * the last call.
+	 */
+	public void sync() throws ConverterException {
+		long start = System.currentTimeMillis();
+		lastSyncCount = getPendingCount();
+		try {
+			for (PathwayElement elt : deleted) {
+				remove(elt);
+			}
+			deleted.clear();
+
+			// ports first, arcs are resolved through them
+			List<PathwayElement> arcs = new ArrayList<PathwayElement>();
+			for (PathwayElement elt : dirty) {
+				if (elt.getObjectType() != ObjectType.LINE) {
+					updateNode(elt);
+					continue;
+				}
+				if (isConnected(elt)) {
+					unconnected.remove(elt);
+				} else {
+					unconnected.add(elt);
+				}
+				if (isPort(elt)) {
+					updatePort(elt);
+				} else {
+					arcs.add(elt);
+				}
+			}
+			for (PathwayElement arc : arcs) {
+				updateArc(arc);
+			}
+			dirty.clear();
+
+			for (String pid : dirtyReactions) {
+				updateReaction(pid);
+			}
+			dirtyReactions.clear();
+		} catch (XMLStreamException ex) {
+			throw new ConverterException(ex);
+		}
+		lastSyncMillis = System.currentTimeMillis() - start;
+	}
+
+	private static boolean isPort(PathwayElement elt) {
+		return "true".equals(elt
+				.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT));
+	}
+
+	private static boolean isConnected(PathwayElement line) {
+		String start = line.getStartGraphRef();
+		String end = line.getEndGraphRef();
+		return start != null && !"".equals(start) && end != null
+				&& !"".equals(end);
+	}
+
+	private void remove(PathwayElement elt) {
+		String sid = speciesIds.remove(elt);
+		if (sid != null) {
+			removeSpecies(sid);
+		}
+		String cid = compartmentIds.remove(elt);
+		if (cid != null) {
+			removeCompartment(cid);
+		}
+		if (elt.getObjectType() != ObjectType.LINE
+				&& processNodes.get(elt.getGraphId()) == elt) {
+			processNodes.remove(elt.getGraphId());
+			dirtyReactions.add(elt.getGraphId());
+		}
+		unconnected.remove(elt);
+		detachPort(elt);
+		detachArc(elt);
+	}
+
+	private void updateNode(PathwayElement elt) throws XMLStreamException {
+		boolean species = SbmlStreamWriter.isSpecies(elt);
+		String oldId = speciesIds.get(elt);
+		if (oldId != null
+				&& (!species || !oldId.equals(elt.getGraphId()))) {
+			speciesIds.remove(elt);
+			removeSpecies(oldId);
+		}
+		boolean compartment = !species && ExportPreflight.isCompartment(elt);
+		String oldCompartment = compartmentIds.get(elt);
+		if (oldCompartment != null
+				&& (!compartment || !oldCompartment.equals(elt.getGraphId()))) {
+			compartmentIds.remove(elt);
+			removeCompartment(oldCompartment);
+		}
+		if (species) {
+			updateSpecies(elt);
+		} else if (compartment) {
+			String cid = elt.getGraphId();
+			compartmentIds.put(elt, cid);
+			compartmentXml.put(cid, SbmlStreamWriter.compartmentFragment(cid,
+					elt.getTextLabel(), level, version, FRAGMENT_DEPTH));
+			compartmentGlyphXml.put(cid, SbmlStreamWriter.glyphFragment(
+					"compartmentGlyph", cid, elt, GLYPH_DEPTH));
+		}
+		String sbgnClass = elt
+				.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS);
+		if (sbgnClass != null && ReactionIndex.isProcess(sbgnClass)) {
+			processNodes.put(elt.getGraphId(), elt);
+			dirtyReactions.add(elt.getGraphId());
+		}
+	}
+
+	private void updateSpecies(PathwayElement elt) throws XMLStreamException {
+		String sid = elt.getGraphId();
+		speciesIds.put(elt, sid);
+		speciesCompartments.put(sid, ExportPreflight.compartmentOf(elt));
+		if (!speciesXml.containsKey(sid)) {
+			// reactions built while it wasn't a species left it out
+			markReferencingReactions(sid);
+		}
+		// replacing the value keeps the position in the file
+		speciesXml.put(sid, SbmlStreamWriter.speciesFragment(elt, level,
+				version, FRAGMENT_DEPTH));
+		speciesGlyphXml.put(sid, SbmlStreamWriter.glyphFragment(
+				"speciesGlyph", sid, elt, GLYPH_DEPTH));
+	}
+
+	private void removeSpecies(String sid) {
+		speciesXml.remove(sid);
+		speciesGlyphXml.remove(sid);
+		speciesCompartments.remove(sid);
+		markReferencingReactions(sid);
+	}
+
+	/**
+	 * Marks the reactions that refer to id, which started or stopped being
+	 * a species
+	 */
+	private void markReferencingReactions(String id) {
+		Set<String> pids = referencingReactions.get(id);
+		if (pids != null) {
+			dirtyReactions.addAll(pids);
+		}
+	}
+
+	private void removeCompartment(String cid) {
+		compartmentXml.remove(cid);
+		compartmentGlyphXml.remove(cid);
+	}
+
+	private void updatePort(PathwayElement port) {
+		detachPort(port);
+		String pid = port.getStartGraphRef();
+		if (pid == null) {
+			return;
+		}
+		portProcess.put(port, pid);
+		Set<PathwayElement> set = processPorts.get(pid);
+		if (set == null) {
+			set = new LinkedHashSet<PathwayElement>();
+			processPorts.put(pid, set);
+		}
+		set.add(port);
+		dirtyReactions.add(pid);
+		if (port.getMAnchors().size() > 0) {
+			String anchor = port.getMAnchors().get(0).getGraphId();
+			portAnchors.put(port, anchor);
+			ports.put(anchor, pid);
+		}
+	}
+
+	private void detachPort(PathwayElement port) {
+		String anchor = portAnchors.remove(port);
+		if (anchor != null) {
+			ports.remove(anchor);
+		}
+		String pid = portProcess.remove(port);
+		if (pid != null) {
+			Set<PathwayElement> set = processPorts.get(pid);
+			if (set != null) {
+				set.remove(port);
+			}
+			dirtyReactions.add(pid);
+		}
+	}
+
+	private void updateArc(PathwayElement arc) {
+		detachArc(arc);
+		String sbgnClass = arc
+				.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS);
+		if (sbgnClass == null) {
+			return;
+		}
+		String pid = ports.get(arc.getStartGraphRef());
+		if (pid == null) {
+			pid = ports.get(arc.getEndGraphRef());
+		}
+		if (pid == null && processNodes.containsKey(arc.getEndGraphRef())
+				&& ReactionIndex.isModifier(sbgnClass)) {
+			pid = arc.getEndGraphRef();
+		}
+		if (pid != null) {
+			arcProcess.put(arc, pid);
+			Set<PathwayElement> set = processArcs.get(pid);
+			if (set == null) {
+				set = new LinkedHashSet<PathwayElement>();
+				processArcs.put(pid, set);
+			}
+			set.add(arc);
+			dirtyReactions.add(pid);
+		}
+	}
+
+	private void detachArc(PathwayElement arc) {
+		String pid = arcProcess.remove(arc);
+		if (pid != null) {
+			Set<PathwayElement> set = processArcs.get(pid);
+			if (set != null) {
+				set.remove(arc);
+			}
+			dirtyReactions.add(pid);
+		}
+	}
+
+	/**
+	 * Rebuilds one reaction and its glyph from the ports and arcs of its
+	 * process node. Arcs to elements that are not exported as species are
+	 * left out; the ids they refer to are recorded, so that the reaction is
+	 * rebuilt when one of them becomes a species.
+	 */
+	private void updateReaction(String pid) throws XMLStreamException {
+		Set<String> old = reactionReferences.remove(pid);
+		if (old != null) {
+			for (String id : old) {
+				Set<String> pids = referencingReactions.get(id);
+				pids.remove(pid);
+				if (pids.isEmpty()) {
+					referencingReactions.remove(id);
+				}
+			}
+		}
+		PathwayElement pn = processNodes.get(pid);
+		if (pn == null) {
+			reactionXml.remove(pid);
+			reactionGlyphXml.remove(pid);
+			return;
+		}
+		Connections c = new Connections(pn);
+		Set<PathwayElement> portLines = processPorts.get(pid);
+		if (portLines != null) {
+			c.ports.addAll(portLines);
+		}
+		Set<PathwayElement> arcs = processArcs.get(pid);
+		if (arcs != null) {
+			Set<String> references = new HashSet<String>();
+			reactionReferences.put(pid, references);
+			for (PathwayElement arc : arcs) {
+				String id;
+				List<String> ids;
+				List<PathwayElement> idArcs;
+				if (pid.equals(ports.get(arc.getStartGraphRef()))) {
+					id = arc.getEndGraphRef();
+					ids = c.products;
+					idArcs = c.productArcs;
+				} else if (pid.equals(ports.get(arc.getEndGraphRef()))) {
+					id = arc.getStartGraphRef();
+					ids = c.reactants;
+					idArcs = c.reactantArcs;
+				} else {
+					id = arc.getStartGraphRef();
+					ids = c.modifiers;
+					idArcs = c.modifierArcs;
+				}
+				if (references.add(id)) {
+					Set<String> pids = referencingReactions.get(id);
+					if (pids == null) {
+						pids = new HashSet<String>();
+						referencingReactions.put(id, pids);
+					}
+					pids.add(pid);
+				}
+				if (speciesXml.containsKey(id)) {
+					ids.add(id);
+					idArcs.add(arc);
+				}
+			}
+		}
+		reactionXml.put(pid, SbmlStreamWriter.reactionFragment(c, level,
+				version, FRAGMENT_DEPTH));
+		reactionGlyphXml.put(pid, SbmlStreamWriter.reactionGlyphFragment(c,
+				speciesXml.keySet(), GLYPH_DEPTH));
+	}
+
+	/**
+	 * Syncs and writes the cached fragments. Only the sections changed since
+	 * the last save are serialized again.
+	 *
+	 * @throws ConverterException
+	 *             if a line is not connected at both ends, like
+	 *             {@link SbmlExportHelper#doExport()}
+	 */
+	public void save(File file) throws ConverterException {
+		sync();
+		if (!unconnected.isEmpty()) {
+			List<String> ids = new ArrayList<String>();
+			for (PathwayElement line : unconnected) {
+				ids.add(line.getGraphId());
+			}
+			throw new ConverterException("Unconnected interactions found: "
+					+ ids + ". Model cannot be exported");
+		}
+		long start = System.currentTimeMillis();
+		boolean layout = options.isLayout();
+		try {
+			Writer out = new BufferedWriter(new OutputStreamWriter(
+					SbmlFiles.openOutput(file), "UTF-8"));
+			try {
+				out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+				out.write("<sbml xmlns=\""
+						+ SbmlStreamWriter.namespace(level, version) + "\"");
+				if (layout) {
+					out.write(" xmlns:xsi=\"" + SbmlStreamWriter.XSI_NS + "\"");
+				}
+				out.write(" level=\"" + level + "\" version=\"" + version
+						+ "\">\n");
+				out.write("  <model id=\""
+						+ escape(pathway.getMappInfo().getMapInfoName()) + "\">");
+				writeCompartments(out);
+				writeList(out, "listOfSpecies", speciesXml, 2);
+				writeList(out, "listOfReactions", reactionXml, 2);
+				if (layout) {
+					writeLayout(out);
+				}
+				out.write("\n  </model>\n</sbml>");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new ConverterException(e);
+		} catch (XMLStreamException e) {
+			throw new ConverterException(e);
+		}
+		lastSaveMillis = System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Writes the compartment elements, then one for each compartment that
+	 * has species but no element, like {@link ExportPreflight} collects them
+	 */
+	private void writeCompartments(Writer out) throws IOException,
+			XMLStreamException {
+		Set<String> implicit = new LinkedHashSet<String>();
+		for (String sid : speciesXml.keySet()) {
+			String cid = speciesCompartments.get(sid);
+			if (!compartmentXml.containsKey(cid)) {
+				implicit.add(cid);
+			}
+		}
+		if (compartmentXml.isEmpty() && implicit.isEmpty()) {
+			return;
+		}
+		out.write("\n    <listOfCompartments>");
+		for (String xml : compartmentXml.values()) {
+			out.write(xml);
+		}
+		for (String cid : implicit) {
+			out.write(SbmlStreamWriter.compartmentFragment(cid, null, level,
+					version, FRAGMENT_DEPTH));
+		}
+		out.write("\n    </listOfCompartments>");
+	}
+
+	/** Writes the layout of {@link SbmlLayoutWriter} from the glyph cache */
+	private void writeLayout(Writer out) throws IOException {
+		double width = 0;
+		double height = 0;
+		for (PathwayElement elt : compartmentIds.keySet()) {
+			width = Math.max(width, elt.getMLeft() + elt.getMWidth());
+			height = Math.max(height, elt.getMTop() + elt.getMHeight());
+		}
+		for (PathwayElement elt : speciesIds.keySet()) {
+			width = Math.max(width, elt.getMLeft() + elt.getMWidth());
+			height = Math.max(height, elt.getMTop() + elt.getMHeight());
+		}
+		out.write("\n    <layout:listOfLayouts xmlns:layout=\""
+				+ SbmlStreamWriter.LAYOUT_NS + "\">");
+		out.write("\n      <layout:layout id=\"" + SbmlLayoutWriter.LAYOUT_ID
+				+ "\">");
+		out.write("\n        <layout:dimensions layout:height=\""
+				+ SbmlStreamWriter.number(height)
+				+ "\" layout:depth=\"0\" layout:width=\""
+				+ SbmlStreamWriter.number(width) + "\"/>");
+		writeList(out, "layout:listOfCompartmentGlyphs", compartmentGlyphXml,
+				4);
+		writeList(out, "layout:listOfSpeciesGlyphs", speciesGlyphXml, 4);
+		writeList(out, "layout:listOfReactionGlyphs", reactionGlyphXml, 4);
+		out.write("\n      </layout:layout>");
+		out.write("\n    </layout:listOfLayouts>");
+	}
+
+	/** Writes the fragments in a list element, unless there are none */
+	private static void writeList(Writer out, String name,
+			Map<String, String> fragments, int depth) throws IOException {
+		if (fragments.isEmpty()) {
+			return;
+		}
+		StringBuilder indent = new StringBuilder("\n");
+		for (int i = 0; i < depth; i++) {
+			indent.append("  ");
+		}
+		out.write(indent + "<" + name + ">");
+		for (String xml : fragments.values()) {
+			out.write(xml);
+		}
+		out.write(indent + "</" + name + ">");
+	}
+
+	private static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+		return s.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/** @return number of changed elements handled by the last sync */
+	public int getLastSyncCount() {
+		return lastSyncCount;
+	}
+
+	/** @return time taken by the last sync */
+	public long getLastSyncMillis() {
+		return lastSyncMillis;
+	}
+
+	/** @return time taken to write the file in the last save, without sync */
+	public long getLastSaveMillis() {
+		return lastSaveMillis;
+	}
+}
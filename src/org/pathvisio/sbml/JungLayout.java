@@ -0,0 +1,147 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.Dimension;
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.preferences.Preference;
+import org.pathvisio.core.preferences.PreferenceManager;
+import org.pathvisio.sbml.SBMLPlugin.PlPreference;
+
+import edu.uci.ics.jung.algorithms.layout.AbstractLayout;
+import edu.uci.ics.jung.algorithms.layout.FRLayout;
+import edu.uci.ics.jung.algorithms.layout.ISOMLayout;
+import edu.uci.ics.jung.algorithms.layout.SpringLayout;
+import edu.uci.ics.jung.algorithms.util.IterativeContext;
+import edu.uci.ics.jung.graph.UndirectedSparseGraph;
+
+/**
+ * JungLayout Class<p>
+ * Lays out a pathway with one of the JUNG layout algorithms. The
+ * Fruchterman-Reingold and spring layouts take their parameters from the
+ * {@link PlPreference}s.
+ */
+public class JungLayout extends LayoutAbstract {
+
+	public enum Algorithm {
+		FR, SPRING, ISOM
+	}
+
+	/** upper bound on the steps; FR and ISOM usually stop earlier */
+	public int maxIterations = 700;
+	/** free space wanted between two nodes, on top of their size */
+	public float gap = 20f;
+
+	private final Algorithm algorithm;
+
+	/** create a layout for a pathway without applying it, see {@link #run()} */
+	public JungLayout(Pathway pwy, Algorithm algorithm) {
+		super(pwy);
+		this.algorithm = algorithm;
+	}
+
+	@Override
+	protected Map<String, Point2D> computeLocations() {
+		LayoutGraph g = buildGraph();
+		UndirectedSparseGraph<String, Integer> graph = new UndirectedSparseGraph<String, Integer>();
+		for (int i = 0; i < g.nodes; i++) {
+			graph.addVertex(g.ids[i]);
+		}
+		for (int j = 0; j < g.springs; j++) {
+			graph.addEdge(j, g.ids[g.from[j]], g.ids[g.to[j]]);
+		}
+
+		// room for every node at the ideal distance
+		int side = (int) Math.ceil(g.idealDistance(gap) * Math.sqrt(g.nodes)) + 1;
+		AbstractLayout<String, Integer> layout = create(graph);
+		layout.setSize(new Dimension(side, side));
+		// ISOM picks random positions here, so set the start positions after
+		layout.initialize();
+		// start from the current positions, scaled into the layout area
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		for (int i = 0; i < g.nodes; i++) {
+			minX = Math.min(minX, g.x[i]);
+			minY = Math.min(minY, g.y[i]);
+			maxX = Math.max(maxX, g.x[i]);
+			maxY = Math.max(maxY, g.y[i]);
+		}
+		double scale = Math.min(1, side / Math.max(1, Math.max(maxX - minX, maxY - minY)));
+		for (int i = 0; i < g.nodes; i++) {
+			layout.setLocation(g.ids[i], (g.x[i] - minX) * scale,
+					(g.y[i] - minY) * scale);
+		}
+
+		IterativeContext steps = (IterativeContext) layout;
+		for (int i = 0; i < maxIterations && !steps.done() && !isCancelled(); i++) {
+			steps.step();
+			if (progress(i + 1, maxIterations)) {
+				preview(toPoints(g, layout));
+			}
+		}
+		return toPoints(g, layout);
+	}
+
+	private static Map<String, Point2D> toPoints(LayoutGraph g,
+			AbstractLayout<String, Integer> layout) {
+		Map<String, Point2D> points = new HashMap<String, Point2D>(g.nodes * 2);
+		for (int i = 0; i < g.nodes; i++) {
+			Point2D p = layout.transform(g.ids[i]);
+			points.put(g.ids[i], new Point2D.Double(p.getX(), p.getY()));
+		}
+		return points;
+	}
+
+	private AbstractLayout<String, Integer> create(UndirectedSparseGraph<String, Integer> graph) {
+		switch (algorithm) {
+		case FR:
+			FRLayout<String, Integer> fr = new FRLayout<String, Integer>(graph);
+			fr.setAttractionMultiplier(getDouble(PlPreference.PL_LAYOUT_FR_ATTRACTION));
+			fr.setRepulsionMultiplier(getDouble(PlPreference.PL_LAYOUT_FR_REPULSION));
+			fr.setMaxIterations(maxIterations);
+			return fr;
+		case SPRING:
+			SpringLayout<String, Integer> spring = new SpringLayout<String, Integer>(graph);
+			spring.setForceMultiplier(getDouble(PlPreference.PL_LAYOUT_SPRING_FORCE));
+			spring.setRepulsionRange((int) getDouble(PlPreference.PL_LAYOUT_SPRING_REPULSION));
+			spring.setStretch(getDouble(PlPreference.PL_LAYOUT_SPRING_STRETCH));
+			return spring;
+		default:
+			return new ISOMLayout<String, Integer>(graph);
+		}
+	}
+
+	/** @return the preference, or its default when there are no preferences (headless) */
+	private static double getDouble(Preference p) {
+		String value = null;
+		if (PreferenceManager.getCurrent() != null) {
+			value = PreferenceManager.getCurrent().get(p);
+		}
+		try {
+			return Double.parseDouble(value != null ? value : p.getDefault());
+		} catch (NumberFormatException e) {
+			return Double.parseDouble(p.getDefault());
+		}
+	}
+}
@@ -0,0 +1,408 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+
+/**
+ * LayeredLayout Class<p>
+ * Sugiyama style layout that lets reactions flow from left to right:
+ * reactants and modifiers in one column, the process node in the next and
+ * the products after that. Cycles are broken by reversing the back edges of
+ * a depth first search, columns are assigned by longest path, crossings are
+ * reduced with barycenter sweeps and nodes are placed next to the average
+ * of their predecessors. All steps are linear in the size of the graph,
+ * apart from sorting the columns.
+ */
+public class LayeredLayout extends LayoutAbstract {
+
+	/** horizontal space between two columns */
+	public float layerGap = 80f;
+	/** vertical space between two nodes of a column */
+	public float nodeGap = 20f;
+	/** barycenter sweeps, each one down and up the columns */
+	public int sweeps = 4;
+
+	/**
+	 * edges across at most this many columns get a dummy node in each
+	 * column; longer ones join their ends directly, which keeps the graph
+	 * linear in size
+	 */
+	private static final int MAX_DUMMIES = 8;
+
+	/** nodes of the graph followed by the dummy nodes */
+	private int nodes;
+	private int[] layer;
+	private float[] height;
+	/** edges from left to right, mostly between neighbouring columns */
+	private int[] edgeFrom;
+	private int[] edgeTo;
+	private int edges;
+
+	/** create a layout for a pathway without applying it, see {@link #run()} */
+	public LayeredLayout(Pathway pwy) {
+		super(pwy);
+	}
+
+	/** Moves the nodes and turns the ports of each process node towards its reactants and products */
+	@Override
+	protected void apply(Map<String, Point2D> points) {
+		Map<PathwayElement, Float> ports = measurePorts();
+		super.apply(points);
+		placePorts(ports);
+	}
+
+	/**
+	 * @return top left corner of each node by graph id, which is what
+	 *         {@link #setLocations} shifts by half a node
+	 */
+	@Override
+	protected Map<String, Point2D> computeLocations() {
+		LayoutGraph g = buildGraph();
+		int n = g.nodes;
+		Map<String, Point2D> points = new HashMap<String, Point2D>(n * 2);
+		if (n == 0) {
+			return points;
+		}
+		boolean[] reversed = breakCycles(g);
+		int[] rank = rank(g, reversed);
+		split(g, reversed, rank);
+		progress(1, 3);
+
+		int layers = 0;
+		for (int v = 0; v < nodes; v++) {
+			layers = Math.max(layers, layer[v] + 1);
+		}
+		int[][] order = order(layers);
+		progress(2, 3);
+		float[] center = placeVertically(order);
+
+		// columns as wide as their widest node, nodes centered in them
+		float left = 0;
+		for (int l = 0; l < layers; l++) {
+			float width = 0;
+			for (int v : order[l]) {
+				if (v < n) {
+					width = Math.max(width, 2 * g.halfWidth[v]);
+				}
+			}
+			for (int v : order[l]) {
+				if (v < n) {
+					points.put(g.ids[v], new Point2D.Float(left + width / 2
+							- g.halfWidth[v], center[v] - g.halfHeight[v]));
+				}
+			}
+			left += width + layerGap;
+		}
+		return points;
+	}
+
+	/**
+	 * Iterative depth first search; an edge to a node that is still on the
+	 * stack closes a cycle and is reversed.
+	 */
+	private static boolean[] breakCycles(LayoutGraph g) {
+		int n = g.nodes;
+		int[] edge = new int[g.springs];
+		int[] start = LayoutGraph.csr(n, g.from, g.springs, edge, null);
+		boolean[] reversed = new boolean[g.springs];
+		byte[] state = new byte[n];
+		int[] stack = new int[n];
+		int[] cursor = new int[n];
+		for (int root = 0; root < n; root++) {
+			if (state[root] != 0) {
+				continue;
+			}
+			int sp = 0;
+			stack[sp++] = root;
+			state[root] = 1;
+			cursor[root] = start[root];
+			while (sp > 0) {
+				int v = stack[sp - 1];
+				if (cursor[v] == start[v + 1]) {
+					state[v] = 2;
+					sp--;
+					continue;
+				}
+				int j = edge[cursor[v]++];
+				int w = g.to[j];
+				if (state[w] == 1) {
+					reversed[j] = true;
+				} else if (state[w] == 0) {
+					state[w] = 1;
+					cursor[w] = start[w];
+					stack[sp++] = w;
+				}
+			}
+		}
+		return reversed;
+	}
+
+	/**
+	 * Longest path layering in topological order. Sources are then moved
+	 * right, next to their first successor, so that a species consumed late
+	 * in the pathway doesn't wait in the first column.
+	 */
+	private static int[] rank(LayoutGraph g, boolean[] reversed) {
+		int n = g.nodes;
+		int[] from = new int[g.springs];
+		int[] to = new int[g.springs];
+		int[] indegree = new int[n];
+		for (int j = 0; j < g.springs; j++) {
+			from[j] = reversed[j] ? g.to[j] : g.from[j];
+			to[j] = reversed[j] ? g.from[j] : g.to[j];
+			indegree[to[j]]++;
+		}
+		int[] succ = new int[g.springs];
+		int[] start = LayoutGraph.csr(n, from, g.springs, succ, to);
+		int[] rank = new int[n];
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for (int v = 0; v < n; v++) {
+			if (indegree[v] == 0) {
+				queue[tail++] = v;
+			}
+		}
+		while (head < tail) {
+			int v = queue[head++];
+			for (int k = start[v]; k < start[v + 1]; k++) {
+				int w = succ[k];
+				rank[w] = Math.max(rank[w], rank[v] + 1);
+				if (--indegree[w] == 0) {
+					queue[tail++] = w;
+				}
+			}
+		}
+		for (int j = 0; j < g.springs; j++) {
+			indegree[to[j]]++;
+		}
+		for (int v = 0; v < n; v++) {
+			if (indegree[v] == 0 && start[v] < start[v + 1]) {
+				int min = Integer.MAX_VALUE;
+				for (int k = start[v]; k < start[v + 1]; k++) {
+					min = Math.min(min, rank[succ[k]]);
+				}
+				rank[v] = min - 1;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * Replaces each edge that crosses a few columns with a chain of dummy
+	 * nodes, one per column, so that it joins neighbouring columns
+	 */
+	private void split(LayoutGraph g, boolean[] reversed, int[] rank) {
+		int n = g.nodes;
+		int dummies = 0;
+		for (int j = 0; j < g.springs; j++) {
+			dummies += dummies(rank, g.from[j], g.to[j]);
+		}
+		nodes = n + dummies;
+		layer = Arrays.copyOf(rank, nodes);
+		height = new float[nodes];
+		for (int v = 0; v < n; v++) {
+			height[v] = 2 * g.halfHeight[v];
+		}
+		edgeFrom = new int[g.springs + dummies];
+		edgeTo = new int[g.springs + dummies];
+		edges = 0;
+		int next = n;
+		for (int j = 0; j < g.springs; j++) {
+			int a = reversed[j] ? g.to[j] : g.from[j];
+			int b = reversed[j] ? g.from[j] : g.to[j];
+			int prev = a;
+			for (int l = rank[a] + 1; l <= rank[a] + dummies(rank, a, b); l++) {
+				layer[next] = l;
+				addEdge(prev, next);
+				prev = next++;
+			}
+			addEdge(prev, b);
+		}
+	}
+
+	private static int dummies(int[] rank, int a, int b) {
+		int span = Math.abs(rank[b] - rank[a]) - 1;
+		return span <= MAX_DUMMIES ? span : 0;
+	}
+
+	private void addEdge(int a, int b) {
+		edgeFrom[edges] = a;
+		edgeTo[edges] = b;
+		edges++;
+	}
+
+	/** @return the nodes of each column, top to bottom */
+	private int[][] order(int layers) {
+		int[] size = new int[layers];
+		for (int v = 0; v < nodes; v++) {
+			size[layer[v]]++;
+		}
+		int[][] order = new int[layers][];
+		for (int l = 0; l < layers; l++) {
+			order[l] = new int[size[l]];
+			size[l] = 0;
+		}
+		int[] pos = new int[nodes];
+		for (int v = 0; v < nodes; v++) {
+			pos[v] = size[layer[v]]++;
+			order[layer[v]][pos[v]] = v;
+		}
+
+		int[] pred = new int[edges];
+		int[] predStart = LayoutGraph.csr(nodes, edgeTo, edges, pred, edgeFrom);
+		int[] succ = new int[edges];
+		int[] succStart = LayoutGraph.csr(nodes, edgeFrom, edges, succ, edgeTo);
+		for (int s = 0; s < sweeps && !isCancelled(); s++) {
+			for (int l = 1; l < layers; l++) {
+				sortByBarycenter(order[l], pos, pred, predStart);
+			}
+			for (int l = layers - 2; l >= 0; l--) {
+				sortByBarycenter(order[l], pos, succ, succStart);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Sorts a column by the average position of the neighbours of each node
+	 * in the column next to it. Nodes without neighbours keep their position.
+	 */
+	private static void sortByBarycenter(int[] column, int[] pos, int[] adj,
+			int[] start) {
+		long[] keys = new long[column.length];
+		for (int i = 0; i < column.length; i++) {
+			int v = column[i];
+			float bary = pos[v];
+			if (start[v] < start[v + 1]) {
+				float sum = 0;
+				for (int k = start[v]; k < start[v + 1]; k++) {
+					sum += pos[adj[k]];
+				}
+				bary = sum / (start[v + 1] - start[v]);
+			}
+			// positive floats sort like their bits; ties keep the old order
+			keys[i] = ((long) Float.floatToIntBits(bary) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] sorted = new int[column.length];
+		for (int i = 0; i < column.length; i++) {
+			sorted[i] = column[(int) keys[i]];
+		}
+		for (int i = 0; i < column.length; i++) {
+			column[i] = sorted[i];
+			pos[sorted[i]] = i;
+		}
+	}
+
+	/**
+	 * Places each node at the average height of its predecessors, column by
+	 * column, keeping the order and the gaps; each column is then shifted so
+	 * that it is as far above as below where its nodes want to be.
+	 *
+	 * @return center height of each node
+	 */
+	private float[] placeVertically(int[][] order) {
+		int[] pred = new int[edges];
+		int[] start = LayoutGraph.csr(nodes, edgeTo, edges, pred, edgeFrom);
+		float[] center = new float[nodes];
+		for (int[] column : order) {
+			float bottom = -Float.MAX_VALUE;
+			float shift = 0;
+			int wanting = 0;
+			for (int v : column) {
+				float top = bottom == -Float.MAX_VALUE ? 0 : bottom + nodeGap;
+				float y = top + height[v] / 2;
+				if (start[v] < start[v + 1]) {
+					float sum = 0;
+					for (int k = start[v]; k < start[v + 1]; k++) {
+						sum += center[pred[k]];
+					}
+					float wanted = sum / (start[v + 1] - start[v]);
+					y = Math.max(y, wanted);
+					shift += wanted - y;
+					wanting++;
+				}
+				center[v] = y;
+				bottom = y + height[v] / 2;
+			}
+			if (wanting > 0) {
+				shift /= wanting;
+				for (int v : column) {
+					center[v] += shift;
+				}
+			}
+		}
+		return center;
+	}
+
+	/**
+	 * @return length of each port of a laid out process node, positive for
+	 *         ports that lead to products
+	 */
+	private Map<PathwayElement, Float> measurePorts() {
+		Set<String> laidOut = new HashSet<String>();
+		for (PathwayElement pe : pwyNodes) {
+			laidOut.add(pe.getGraphId());
+		}
+		// arcs leave the port on the product side
+		Set<String> lineStarts = new HashSet<String>();
+		for (PathwayElement line : allLines) {
+			lineStarts.add(line.getStartGraphRef());
+		}
+		Map<PathwayElement, Float> ports = new HashMap<PathwayElement, Float>();
+		for (PathwayElement port : pwyStates) {
+			if (!laidOut.contains(port.getStartGraphRef())
+					|| port.getMAnchors().isEmpty()) {
+				continue;
+			}
+			float length = Prefuse.pythagoras(
+					port.getMEndX() - port.getMStartX(), port.getMEndY()
+							- port.getMStartY());
+			boolean products = lineStarts.contains(port.getMAnchors().get(0)
+					.getGraphId());
+			ports.put(port, products ? length : -length);
+		}
+		return ports;
+	}
+
+	/** Puts the ports horizontally on the side of their reactants or products */
+	private void placePorts(Map<PathwayElement, Float> ports) {
+		for (Map.Entry<PathwayElement, Float> e : ports.entrySet()) {
+			PathwayElement port = e.getKey();
+			PathwayElement pn = elementIndex.get(port.getStartGraphRef());
+			float length = e.getValue();
+			double side = Math.signum(length) * pn.getMWidth() / 2;
+			port.getMStart().unlink();
+			port.setMStartX(pn.getMCenterX() + side);
+			port.setMStartY(pn.getMCenterY());
+			port.setMEndX(pn.getMCenterX() + side + length);
+			port.setMEndY(pn.getMCenterY());
+			port.getMStart().linkTo(pn);
+		}
+	}
+}
@@ -19,6 +19,7 @@ package org.pathvisio.sbml;
 
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -26,9 +27,7 @@ import java.util.Map.Entry;
 import org.pathvisio.core.model.ObjectType;
 import org.pathvisio.core.model.Pathway;
 import org.pathvisio.core.model.PathwayElement;
-import org.pathvisio.core.view.Graphics;
-import org.pathvisio.core.view.VPathway;
-import org.pathvisio.gui.SwingEngine;
+import org.pathvisio.core.util.ProgressKeeper;
 import org.pathvisio.sbgn.SbgnFormat;
 /**
  * LayoutAbstract Class<p>
@@ -40,54 +39,36 @@ public abstract class LayoutAbstract {
 	public static String NAME;
 	public static String DESCRIPTION;
 	Pathway pwy;
-	VPathway vpwy;
-	SwingEngine swingEngine;
-	boolean selection;
 	List<PathwayElement> pwyNodes;
 	List<PathwayElement> pwyLines;
 	List<PathwayElement> pwyStates;
+	/** graph id -> element, for all elements of the pathway */
+	final Map<String, PathwayElement> elementIndex = new HashMap<String, PathwayElement>();
+	/** anchor graph id of a port -> graph id of its process node */
+	final Map<String, String> portIndex = new HashMap<String, String>();
+	/**
+	 * graph id -> graph id at the other end of the first arc that touches it.
+	 * Ports are attached to species through this.
+	 */
+	final Map<String, String> arcIndex = new HashMap<String, String>();
+	/** all lines and all ports of the pathway */
+	final List<PathwayElement> allLines = new ArrayList<PathwayElement>();
+	final List<PathwayElement> allStates = new ArrayList<PathwayElement>();
 
-	LayoutAbstract(SwingEngine se){
-		this(se,false);
-	}
-	LayoutAbstract(SwingEngine se,boolean selection){
-		this.pwy = se.getEngine().getActivePathway();
-		this.vpwy = se.getEngine().getActiveVPathway();
-		this.swingEngine = se;
-		this.selection = selection;
+	/**
+	 * Lays out a whole pathway. The layout is computed off the event thread
+	 * by {@link LayoutTask}, or directly for batch conversion and benchmarks.
+	 */
+	LayoutAbstract(Pathway pwy){
+		this.pwy = pwy;
 		pwyNodes = new ArrayList<PathwayElement>();
 		pwyLines = new ArrayList<PathwayElement>();
 		pwyStates = new ArrayList<PathwayElement>();
 
-		if (selection){
-			List<Graphics> graphics = vpwy.getSelectedGraphics();
-			for (Graphics g : graphics){
-				PathwayElement pe = g.getPathwayElement();
-				if (pe.getObjectType().equals(ObjectType.DATANODE)|| pe.getObjectType().equals(ObjectType.LABEL)){
-					pwyNodes.add(pe);
-				}
-				else if (pe.getObjectType().equals(ObjectType.LINE)){
-					if ("true".equals (pe.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT))) {
-						pwyStates.add(pe);
-					} else {
-						pwyLines.add(pe);
-					}
-				}
-			}
-		}
-		else {
-			for (PathwayElement pe : pwy.getDataObjects()){
-				if (pe.getObjectType().equals(ObjectType.DATANODE)||pe.getObjectType().equals(ObjectType.LABEL)){
-					pwyNodes.add(pe);
-				}
-				else if (pe.getObjectType().equals(ObjectType.LINE)){
-					if ("true".equals (pe.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT))) {
-						pwyStates.add(pe);
-					} else {
-						pwyLines.add(pe);
-					}
-				}
-			}
+		// one pass builds the index and the partition
+		for (PathwayElement pe : pwy.getDataObjects()){
+			index(pe);
+			partition(pe);
 		}
 		for (PathwayElement pe : pwyNodes){
 			//Make sure each element has a unique graphId
@@ -96,25 +77,167 @@ public abstract class LayoutAbstract {
 			}
 			catch (NullPointerException e){
 				pe.setGraphId(pwy.getUniqueGraphId());
+				elementIndex.put(pe.getGraphId(), pe);
 			}
 		}
 	}
 
-	protected void setLocations(Map<String,Point2D> points){
-		double plusx = 0;
-		if (selection){
-			// if it's the layout of a selection, first put the selection to 0, then put them on the right side of the other Pathway Elements
-			for (PathwayElement pe: pwyNodes){
-				pe.setMCenterX(0);
+	private void partition(PathwayElement pe){
+		// compartment glyphs are fitted around their species, see CompartmentLayout
+		if (ExportPreflight.isCompartment(pe)){
+			return;
+		}
+		if (pe.getObjectType().equals(ObjectType.DATANODE)|| pe.getObjectType().equals(ObjectType.LABEL)){
+			pwyNodes.add(pe);
+		}
+		else if (pe.getObjectType().equals(ObjectType.LINE)){
+			if (isPort(pe)) {
+				pwyStates.add(pe);
+			} else {
+				pwyLines.add(pe);
+			}
+		}
+	}
+
+	private void index(PathwayElement pe){
+		if (pe.getGraphId() != null){
+			elementIndex.put(pe.getGraphId(), pe);
+		}
+		if (!pe.getObjectType().equals(ObjectType.LINE)){
+			return;
+		}
+		if (isPort(pe)){
+			allStates.add(pe);
+			if (pe.getMAnchors().size() > 0){
+				portIndex.put(pe.getMAnchors().get(0).getGraphId(), pe.getStartGraphRef());
 			}
-			PathwayElement lastx = pwy.getDataObjects().get(0);
-			for (PathwayElement pe : pwy.getDataObjects()){
-				if (lastx.getMCenterX()<pe.getMCenterX()){
-					lastx = pe;
+		}
+		else {
+			allLines.add(pe);
+			String start = pe.getStartGraphRef();
+			String end = pe.getEndGraphRef();
+			if (start != null && end != null){
+				if (!arcIndex.containsKey(end)){
+					arcIndex.put(end, start);
+				}
+				if (!arcIndex.containsKey(start)){
+					arcIndex.put(start, end);
 				}
 			}
-			plusx = lastx.getMCenterX()+lastx.getMWidth()/2;
 		}
+	}
+
+	private static boolean isPort(PathwayElement pe){
+		return "true".equals (pe.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT));
+	}
+
+	/**
+	 * @return the element a line end refers to; for the anchor of a port
+	 *         that is the process node, or null if the reference is unknown
+	 */
+	protected PathwayElement resolve(String graphRef){
+		if (graphRef == null){
+			return null;
+		}
+		PathwayElement pe = elementIndex.get(graphRef);
+		if (pe == null){
+			pe = elementIndex.get(getReaction(graphRef));
+		}
+		return pe;
+	}
+
+	/**
+	 * Runs the layout algorithm without changing the pathway
+	 * @return new center of each node, by graph id
+	 */
+	protected abstract Map<String,Point2D> computeLocations();
+
+	/** Computes the layout and moves the nodes */
+	public void run(){
+		apply(computeLocations());
+	}
+
+	/** Moves the nodes to the result of {@link #computeLocations()} */
+	protected void apply(Map<String,Point2D> points){
+		setLocations(points);
+	}
+
+	/** Receives intermediate positions while {@link #computeLocations()} runs */
+	interface Preview {
+		/** called on the layout thread; points are as for {@link #apply} */
+		void show(Map<String,Point2D> points);
+	}
+
+	/** minimum time between two preview frames */
+	static final long FRAME_INTERVAL = 100;
+
+	private ProgressKeeper progressKeeper;
+	private Preview preview;
+	private long lastFrame;
+
+	/**
+	 * Reports progress to pk, and intermediate positions to preview, while
+	 * computing the layout. Either may be null.
+	 */
+	void setProgress(ProgressKeeper pk, Preview preview){
+		this.progressKeeper = pk;
+		this.preview = preview;
+		lastFrame = System.currentTimeMillis();
+	}
+
+	/** @return true if the user cancelled; iterative layouts then stop early */
+	protected boolean isCancelled(){
+		return progressKeeper != null && progressKeeper.isCancelled();
+	}
+
+	/**
+	 * Reports how far the layout is
+	 * @return true if a preview frame is due, see {@link #preview}
+	 */
+	protected boolean progress(int done, int total){
+		if (progressKeeper != null && total > 0){
+			progressKeeper.setProgress(Math.min(100, done * 100 / total));
+		}
+		return preview != null
+				&& System.currentTimeMillis() - lastFrame >= FRAME_INTERVAL;
+	}
+
+	/** Hands intermediate positions to the preview, if there is one */
+	protected void preview(Map<String,Point2D> points){
+		if (preview != null){
+			preview.show(points);
+			lastFrame = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return the nodes and the lines between them as flat arrays. Lines to
+	 *         a port end at its process node; lines to elements that are not
+	 *         laid out are left out.
+	 */
+	LayoutGraph buildGraph(){
+		LayoutGraph g = new LayoutGraph(pwyNodes.size(), pwyLines.size());
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (PathwayElement pe : pwyNodes){
+			ids.put(pe.getGraphId(), g.addNode(pe.getGraphId(), pe.getMCenterX(),
+					pe.getMCenterY(), pe.getMWidth(), pe.getMHeight()));
+		}
+		for (PathwayElement pe : pwyLines){
+			PathwayElement start = resolve(pe.getStartGraphRef());
+			PathwayElement end = resolve(pe.getEndGraphRef());
+			if (start == null || end == null){
+				continue;
+			}
+			Integer a = ids.get(start.getGraphId());
+			Integer b = ids.get(end.getGraphId());
+			if (a != null && b != null && !a.equals(b)){
+				g.addSpring(a, b);
+			}
+		}
+		return g;
+	}
+
+	protected void setLocations(Map<String,Point2D> points){
 		double minx = 0;
 		double miny = 0;
 		boolean first = true;
@@ -136,12 +259,12 @@ public abstract class LayoutAbstract {
 			}
 		}
 		for (Entry<String,Point2D> e : points.entrySet()){
-			PathwayElement pe = pwy.getElementById(e.getKey());
+			PathwayElement pe = elementIndex.get(e.getKey());
 			if (minx<0){
-				pe.setMCenterX(e.getValue().getX()+Math.abs(minx)+pe.getMWidth()/2+plusx);
+				pe.setMCenterX(e.getValue().getX()+Math.abs(minx)+pe.getMWidth()/2);
 			}
 			else {
-				pe.setMCenterX(e.getValue().getX()-minx+pe.getMWidth()/2+plusx);
+				pe.setMCenterX(e.getValue().getX()-minx+pe.getMWidth()/2);
 			}
 			if (miny<0){
 				pe.setMCenterY(e.getValue().getY()+Math.abs(miny)+pe.getMHeight()/2);
@@ -153,10 +276,10 @@ public abstract class LayoutAbstract {
 	}
 
 	protected void drawLines(){
-		for (PathwayElement line : pwy.getDataObjects())
+		for (PathwayElement line : allLines)
 			if (line.getObjectType().equals(ObjectType.LINE)){
-				PathwayElement startNode = pwy.getElementById(line.getStartGraphRef());
-				PathwayElement endNode = pwy.getElementById(line.getEndGraphRef());
+				PathwayElement startNode = elementIndex.get(line.getStartGraphRef());
+				PathwayElement endNode = elementIndex.get(line.getEndGraphRef());
 
 				line.getMStart().unlink();
 				line.getMEnd().unlink();
@@ -214,44 +337,22 @@ public abstract class LayoutAbstract {
 			}
 	}
 	private String getSpecies(String graphId) {
-		for (PathwayElement pe : pwy.getDataObjects()){
-			if (pe.getObjectType().equals(ObjectType.LINE) ){
-				if (!("true".equals (pe.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT))))
-				{
-					if(pe.getEndGraphRef().equalsIgnoreCase(graphId))
-						return pe.getStartGraphRef();
-
-					if(pe.getStartGraphRef().equalsIgnoreCase(graphId))
-
-						return pe.getEndGraphRef();
-				}
-			}
-		}
-		return "";
+		String species = arcIndex.get(graphId);
+		return species == null ? "" : species;
 	}
 
 	protected String getReaction(String graphId) {
-		for (PathwayElement pe : pwy.getDataObjects()){
-			if (pe.getObjectType().equals(ObjectType.LINE) ){
-				if (("true".equals (pe.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT))))
-				{
-					if(pe.getMAnchors().get(0).getGraphId().equalsIgnoreCase(graphId))
-						return pe.getStartGraphRef();
-
-
-				}
-			}
-		}
-		return "";
+		String reaction = portIndex.get(graphId);
+		return reaction == null ? "" : reaction;
 	}
 
 	protected void drawStates(){
-		for (PathwayElement line : pwy.getDataObjects())
+		for (PathwayElement line : allStates)
 			if (line.getObjectType().equals(ObjectType.LINE)){
 				if ("true".equals (line.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT)))
 				{
-					PathwayElement startNode = pwy.getElementById(line.getStartGraphRef());
-					PathwayElement endNode = pwy.getElementById(getSpecies(line.getMAnchors().get(0).getGraphId()));
+					PathwayElement startNode = elementIndex.get(line.getStartGraphRef());
+					PathwayElement endNode = elementIndex.get(getSpecies(line.getMAnchors().get(0).getGraphId()));
 
 					line.getMStart().unlink();
 					line.getMEnd().unlink();
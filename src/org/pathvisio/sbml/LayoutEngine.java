@@ -0,0 +1,88 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.sbml.JungLayout.Algorithm;
+
+/**
+ * The layout algorithms the plugin offers, in menu order
+ */
+public enum LayoutEngine {
+	PREFUSE("Prefuse force directed") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new Prefuse(pwy);
+		}
+	},
+	FORCE("Fast force directed (multi-threaded)") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new ForceLayout(pwy);
+		}
+	},
+	MULTILEVEL("Multilevel force directed (large pathways)") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new MultilevelLayout(pwy);
+		}
+	},
+	COMPARTMENTS("Compartments side by side") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new CompartmentLayout(pwy);
+		}
+	},
+	LAYERED("Layered (reactions left to right)") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new LayeredLayout(pwy);
+		}
+	},
+	JUNG_FR("JUNG Fruchterman-Reingold") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new JungLayout(pwy, Algorithm.FR);
+		}
+	},
+	JUNG_SPRING("JUNG spring") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new JungLayout(pwy, Algorithm.SPRING);
+		}
+	},
+	JUNG_ISOM("JUNG self-organizing map") {
+		@Override
+		public LayoutAbstract create(Pathway pwy) {
+			return new JungLayout(pwy, Algorithm.ISOM);
+		}
+	};
+
+	private final String label;
+
+	LayoutEngine(String label) {
+		this.label = label;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/** @return a layout of pwy that is not applied yet, see {@link LayoutAbstract#run()} */
+	public abstract LayoutAbstract create(Pathway pwy);
+}
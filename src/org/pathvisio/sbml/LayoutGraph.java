@@ -0,0 +1,219 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The nodes and springs of a layout in flat arrays, so that the layout loops
+ * don't touch pathway elements or maps. Node i has its center at (x[i],
+ * y[i]); spring j connects from[j] and to[j] and wants to be length[j] long.
+ */
+class LayoutGraph {
+
+	final String[] ids;
+	final float[] x;
+	final float[] y;
+	/** half width and half height of each node */
+	final float[] halfWidth;
+	final float[] halfHeight;
+	int nodes;
+
+	int[] from;
+	int[] to;
+	float[] length;
+	int springs;
+
+	LayoutGraph(int nodeCapacity, int springCapacity) {
+		ids = new String[nodeCapacity];
+		x = new float[nodeCapacity];
+		y = new float[nodeCapacity];
+		halfWidth = new float[nodeCapacity];
+		halfHeight = new float[nodeCapacity];
+		springCapacity = Math.max(springCapacity, 1);
+		from = new int[springCapacity];
+		to = new int[springCapacity];
+		length = new float[springCapacity];
+	}
+
+	/** @return index of the new node */
+	int addNode(String id, double centerX, double centerY, double width,
+			double height) {
+		int i = nodes++;
+		ids[i] = id;
+		x[i] = (float) centerX;
+		y[i] = (float) centerY;
+		halfWidth[i] = (float) width / 2;
+		halfHeight[i] = (float) height / 2;
+		return i;
+	}
+
+	/**
+	 * Adds a spring between two nodes, long enough that their boxes don't
+	 * touch
+	 */
+	void addSpring(int a, int b) {
+		addSpring(a, b, Prefuse.pythagoras(halfWidth[a], halfHeight[a])
+				+ Prefuse.pythagoras(halfWidth[b], halfHeight[b]));
+	}
+
+	void addSpring(int a, int b, float springLength) {
+		if (springs == from.length) {
+			int n = springs * 2;
+			int[] f = new int[n];
+			int[] t = new int[n];
+			float[] l = new float[n];
+			System.arraycopy(from, 0, f, 0, springs);
+			System.arraycopy(to, 0, t, 0, springs);
+			System.arraycopy(length, 0, l, 0, springs);
+			from = f;
+			to = t;
+			length = l;
+		}
+		from[springs] = a;
+		to[springs] = b;
+		length[springs] = springLength;
+		springs++;
+	}
+
+	/**
+	 * @return the distance a layout should aim for between two nodes: their
+	 *         average diagonal plus a gap
+	 */
+	float idealDistance(float gap) {
+		if (nodes == 0) {
+			return gap;
+		}
+		float k = 0;
+		for (int i = 0; i < nodes; i++) {
+			k += 2 * Prefuse.pythagoras(halfWidth[i], halfHeight[i]);
+		}
+		return k / nodes + gap;
+	}
+
+	/** Moves the nodes to the given centers; nodes without a point stay */
+	void moveTo(Map<String, Point2D> points) {
+		for (int i = 0; i < nodes; i++) {
+			Point2D p = points.get(ids[i]);
+			if (p != null) {
+				x[i] = (float) p.getX();
+				y[i] = (float) p.getY();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of pairs of springs that cross, drawn as straight
+	 *         lines between node centers. Springs that share a node don't
+	 *         count.
+	 */
+	int crossings() {
+		// sweep over the springs sorted by their left end
+		Integer[] order = new Integer[springs];
+		final float[] minX = new float[springs];
+		float[] maxX = new float[springs];
+		for (int j = 0; j < springs; j++) {
+			order[j] = j;
+			minX[j] = Math.min(x[from[j]], x[to[j]]);
+			maxX[j] = Math.max(x[from[j]], x[to[j]]);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(minX[a], minX[b]);
+			}
+		});
+		int count = 0;
+		for (int a = 0; a < springs; a++) {
+			int j = order[a];
+			for (int b = a + 1; b < springs && minX[order[b]] <= maxX[j]; b++) {
+				if (cross(j, order[b])) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private boolean cross(int j, int k) {
+		if (from[j] == from[k] || from[j] == to[k] || to[j] == from[k]
+				|| to[j] == to[k]) {
+			return false;
+		}
+		return Line2D.linesIntersect(x[from[j]], y[from[j]], x[to[j]],
+				y[to[j]], x[from[k]], y[from[k]], x[to[k]], y[to[k]]);
+	}
+
+	/**
+	 * Sorts edges by their from node, in compressed sparse row form: the
+	 * edges of node v end up in adj[start[v]] to adj[start[v + 1] - 1].
+	 *
+	 * @param to
+	 *            stored in adj for each edge; null to store the edge index
+	 * @return start
+	 */
+	static int[] csr(int n, int[] from, int count, int[] adj,
+			int[] to) {
+		int[] start = new int[n + 1];
+		for (int j = 0; j < count; j++) {
+			start[from[j] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			start[v + 1] += start[v];
+		}
+		int[] fill = Arrays.copyOf(start, n);
+		for (int j = 0; j < count; j++) {
+			adj[fill[from[j]]++] = to == null ? j : to[j];
+		}
+		return start;
+	}
+
+	/**
+	 * The neighbours of each node, along the springs in both directions, see
+	 * {@link #csr}
+	 *
+	 * @param adj
+	 *            filled with the neighbours, at least 2 * springs long
+	 * @return start
+	 */
+	int[] neighbours(int[] adj) {
+		int[] f = new int[springs * 2];
+		int[] t = new int[springs * 2];
+		for (int j = 0; j < springs; j++) {
+			f[2 * j] = from[j];
+			t[2 * j] = to[j];
+			f[2 * j + 1] = to[j];
+			t[2 * j + 1] = from[j];
+		}
+		return csr(nodes, f, f.length, adj, t);
+	}
+
+	/** @return center of each node by id, for {@link LayoutAbstract#setLocations} */
+	Map<String, Point2D> toPoints() {
+		Map<String, Point2D> points = new HashMap<String, Point2D>(nodes * 2);
+		for (int i = 0; i < nodes; i++) {
+			points.put(ids[i], new Point2D.Float(x[i], y[i]));
+		}
+		return points;
+	}
+}
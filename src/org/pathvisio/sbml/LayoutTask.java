@@ -0,0 +1,129 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.core.util.ProgressKeeper;
+import org.pathvisio.gui.ProgressDialog;
+import org.pathvisio.gui.SwingEngine;
+
+/**
+ * Computes a layout in the background while a progress dialog is shown.
+ * Intermediate positions are drawn on the canvas, at most one frame per
+ * {@link LayoutAbstract#FRAME_INTERVAL}. When the layout is done the nodes
+ * go back to where they were and the result is applied as one undoable
+ * action; when it is cancelled they just go back.
+ */
+class LayoutTask extends SwingWorker<Map<String, Point2D>, Map<String, Point2D>>
+		implements LayoutAbstract.Preview {
+
+	private final SwingEngine swingEngine;
+	private final LayoutAbstract layout;
+	private final String name;
+	private final ProgressKeeper pk = new ProgressKeeper(100);
+	/** center of each node before the layout */
+	private final Map<PathwayElement, Point2D> original = new HashMap<PathwayElement, Point2D>();
+	/** set on the event thread once the result is in; later frames are dropped */
+	private boolean finished;
+
+	LayoutTask(SwingEngine swingEngine, LayoutAbstract layout, String name) {
+		this.swingEngine = swingEngine;
+		this.layout = layout;
+		this.name = name;
+		for (PathwayElement pe : layout.pwyNodes) {
+			original.put(pe, new Point2D.Double(pe.getMCenterX(), pe.getMCenterY()));
+		}
+	}
+
+	/**
+	 * Runs the layout, showing a modal progress dialog. Call on the event
+	 * thread.
+	 *
+	 * @return true if the layout was applied, false if it was cancelled or
+	 *         failed
+	 */
+	boolean runWithProgress() {
+		ProgressDialog d = new ProgressDialog(
+				JOptionPane.getFrameForComponent(swingEngine
+						.getApplicationPanel()), name, pk, true, true);
+		layout.setProgress(pk, this);
+		execute();
+		d.setVisible(true);
+
+		Map<String, Point2D> points = null;
+		try {
+			points = get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Logger.log.error("Error while computing the layout", e);
+			JOptionPane.showMessageDialog(swingEngine.getApplicationPanel(),
+					e.getCause().getMessage(), "Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+		finished = true;
+		restore();
+		if (points == null || pk.isCancelled()) {
+			return false;
+		}
+		swingEngine.getEngine().getActiveVPathway().getUndoManager()
+				.newAction(name);
+		layout.apply(points);
+		return true;
+	}
+
+	@Override
+	protected Map<String, Point2D> doInBackground() throws Exception {
+		pk.setTaskName(name);
+		try {
+			return layout.computeLocations();
+		} finally {
+			pk.finished();
+		}
+	}
+
+	@Override
+	public void show(Map<String, Point2D> points) {
+		publish(points);
+	}
+
+	/** Draws the newest frame only, older ones are out of date already */
+	@Override
+	protected void process(List<Map<String, Point2D>> frames) {
+		if (!finished && !pk.isCancelled()) {
+			layout.setLocations(frames.get(frames.size() - 1));
+		}
+	}
+
+	private void restore() {
+		for (Map.Entry<PathwayElement, Point2D> e : original.entrySet()) {
+			e.getKey().setMCenterX(e.getValue().getX());
+			e.getKey().setMCenterY(e.getValue().getY());
+		}
+	}
+}
@@ -0,0 +1,248 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+
+/**
+ * LocalLayout Class<p>
+ * Relaxes the layout around a few changed elements, e.g. species that were
+ * just added. Only the nodes within {@link #hops} lines of a changed element
+ * move; they start where they are and feel the forces of the frozen nodes
+ * nearby, so the rest of the map stays put and the new nodes settle in
+ * between. Apart from one pass to find the neighbourhood, the work depends
+ * on the size of the neighbourhood, not of the pathway.
+ */
+public class LocalLayout extends LayoutAbstract {
+
+	/** nodes this many lines away from a changed element still move */
+	public int hops = 2;
+	public int numIterations = 50;
+	/** Barnes-Hut accuracy, see {@link ForceLayout#theta} */
+	public float theta = 0.9f;
+	/** free space wanted between two nodes, on top of their size */
+	public float gap = 20f;
+
+	private final Set<String> changed = new HashSet<String>();
+
+	/**
+	 * create a layout around the changed elements without applying it, see
+	 * {@link #run()}
+	 */
+	public LocalLayout(Pathway pwy, Collection<PathwayElement> changed) {
+		super(pwy);
+		for (PathwayElement pe : changed) {
+			addChanged(pe);
+		}
+	}
+
+	/** lines count as the nodes at their ends */
+	private void addChanged(PathwayElement pe) {
+		if (pe.getObjectType() == ObjectType.LINE) {
+			PathwayElement start = resolve(pe.getStartGraphRef());
+			PathwayElement end = resolve(pe.getEndGraphRef());
+			if (start != null) {
+				changed.add(start.getGraphId());
+			}
+			if (end != null) {
+				changed.add(end.getGraphId());
+			}
+		} else if (pe.getGraphId() != null) {
+			changed.add(pe.getGraphId());
+		}
+	}
+
+	/** @return new center of each node that moves; the others are left out */
+	@Override
+	protected Map<String, Point2D> computeLocations() {
+		LayoutGraph g = buildGraph();
+		int n = g.nodes;
+		Map<String, Point2D> points = new HashMap<String, Point2D>();
+
+		int[] hop = neighbourhood(g);
+		// local index: the moving nodes first, then the frozen ones around
+		List<Integer> local = new ArrayList<Integer>();
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			if (hop[i] >= 0) {
+				local.add(i);
+				minX = Math.min(minX, g.x[i]);
+				minY = Math.min(minY, g.y[i]);
+				maxX = Math.max(maxX, g.x[i]);
+				maxY = Math.max(maxY, g.y[i]);
+			}
+		}
+		int moving = local.size();
+		if (moving == 0) {
+			return points;
+		}
+		float k = g.idealDistance(gap);
+		float margin = 3 * k;
+		for (int i = 0; i < n; i++) {
+			if (hop[i] < 0 && g.x[i] > minX - margin && g.x[i] < maxX + margin
+					&& g.y[i] > minY - margin && g.y[i] < maxY + margin) {
+				local.add(i);
+			}
+		}
+		int size = local.size();
+		int[] index = new int[n];
+		Arrays.fill(index, -1);
+		float[] x = new float[size];
+		float[] y = new float[size];
+		for (int l = 0; l < size; l++) {
+			int i = local.get(l);
+			index[i] = l;
+			x[l] = g.x[i];
+			y[l] = g.y[i];
+		}
+
+		// springs that pull on at least one moving node
+		int[] springFrom = new int[g.springs];
+		int[] springTo = new int[g.springs];
+		float[] springLength = new float[g.springs];
+		int springs = 0;
+		for (int j = 0; j < g.springs; j++) {
+			int a = index[g.from[j]];
+			int b = index[g.to[j]];
+			if (a >= 0 && b >= 0 && (a < moving || b < moving)) {
+				springFrom[springs] = a;
+				springTo[springs] = b;
+				springLength[springs] = g.length[j];
+				springs++;
+			}
+		}
+
+		float[] dispX = new float[moving];
+		float[] dispY = new float[moving];
+		float[] force = new float[2];
+		int[] stack = QuadTree.newStack();
+		QuadTree tree = new QuadTree(size);
+		for (int it = 0; it < numIterations && !isCancelled(); it++) {
+			// warm start: never move further than one node distance
+			float temperature = k * (1 - it / (float) numIterations) + 1;
+			tree.build(x, y, size);
+			for (int l = 0; l < moving; l++) {
+				force[0] = 0;
+				force[1] = 0;
+				tree.repulsion(l, x[l], y[l], theta, k * k, stack, force);
+				dispX[l] = force[0];
+				dispY[l] = force[1];
+			}
+			for (int j = 0; j < springs; j++) {
+				int a = springFrom[j];
+				int b = springTo[j];
+				float dx = x[a] - x[b];
+				float dy = y[a] - y[b];
+				float f = (float) Math.sqrt(dx * dx + dy * dy) / springLength[j];
+				if (a < moving) {
+					dispX[a] -= dx * f;
+					dispY[a] -= dy * f;
+				}
+				if (b < moving) {
+					dispX[b] += dx * f;
+					dispY[b] += dy * f;
+				}
+			}
+			for (int l = 0; l < moving; l++) {
+				float d = (float) Math.sqrt(dispX[l] * dispX[l] + dispY[l] * dispY[l]);
+				if (d > 0) {
+					float step = Math.min(d, temperature) / d;
+					x[l] += dispX[l] * step;
+					y[l] += dispY[l] * step;
+				}
+			}
+			if (progress(it + 1, numIterations)) {
+				preview(toPoints(g, local, x, y, moving));
+			}
+		}
+		return toPoints(g, local, x, y, moving);
+	}
+
+	private static Map<String, Point2D> toPoints(LayoutGraph g,
+			List<Integer> local, float[] x, float[] y, int moving) {
+		Map<String, Point2D> points = new HashMap<String, Point2D>(moving * 2);
+		for (int l = 0; l < moving; l++) {
+			points.put(g.ids[local.get(l)], new Point2D.Float(x[l], y[l]));
+		}
+		return points;
+	}
+
+	/**
+	 * Breadth first search from the changed nodes along the lines
+	 *
+	 * @return distance in lines from the nearest changed node, -1 if further
+	 *         than {@link #hops}
+	 */
+	private int[] neighbourhood(LayoutGraph g) {
+		int n = g.nodes;
+		int[] adj = new int[g.springs * 2];
+		int[] start = g.neighbours(adj);
+
+		int[] hop = new int[n];
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+		for (int i = 0; i < n; i++) {
+			hop[i] = -1;
+			if (changed.contains(g.ids[i])) {
+				hop[i] = 0;
+				queue[tail++] = i;
+			}
+		}
+		while (head < tail) {
+			int v = queue[head++];
+			if (hop[v] == hops) {
+				continue;
+			}
+			for (int k = start[v]; k < start[v + 1]; k++) {
+				int w = adj[k];
+				if (hop[w] < 0) {
+					hop[w] = hop[v] + 1;
+					queue[tail++] = w;
+				}
+			}
+		}
+		return hop;
+	}
+
+	/** Moves the nodes to the given centers, without shifting the map */
+	@Override
+	protected void setLocations(Map<String, Point2D> points) {
+		for (Entry<String, Point2D> e : points.entrySet()) {
+			PathwayElement pe = elementIndex.get(e.getKey());
+			pe.setMCenterX(e.getValue().getX());
+			pe.setMCenterY(e.getValue().getY());
+		}
+	}
+}
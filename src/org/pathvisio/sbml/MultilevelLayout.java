@@ -0,0 +1,291 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.pathvisio.core.model.Pathway;
+
+/**
+ * MultilevelLayout Class<p>
+ * Force-directed layout for very large pathways. The graph is coarsened
+ * level by level, collapsing each process node with two of its species and
+ * then pairs of neighbours, until only a few nodes are left. That level is
+ * laid out like {@link ForceLayout} does; then each level is unfolded: the
+ * nodes start where their group ended up and a few cool iterations sort them
+ * out. The levels shrink geometrically, so the total work stays close to
+ * linear in the size of the pathway.
+ */
+public class MultilevelLayout extends ForceLayout {
+
+	/** stop coarsening once a level has no more nodes than this */
+	public int coarsest = 50;
+	/**
+	 * iterations on each finer level; the coarsest level gets
+	 * {@link #numIterations}
+	 */
+	public int refineIterations = 30;
+
+	/** stop coarsening when a level keeps more than this part of the nodes */
+	private static final float MIN_SHRINK = 0.8f;
+
+	/** create a layout for a pathway without applying it, see {@link #run()} */
+	public MultilevelLayout(Pathway pwy) {
+		super(pwy);
+	}
+
+	@Override
+	protected Map<String, Point2D> computeLocations() {
+		LayoutGraph g = buildGraph();
+		// the ports of a reaction are already folded into its process node
+		Set<String> processes = new HashSet<String>(portIndex.values());
+		boolean[] process = new boolean[g.nodes];
+		for (int i = 0; i < g.nodes; i++) {
+			process[i] = processes.contains(g.ids[i]);
+		}
+		layout(g, process);
+		return g.toPoints();
+	}
+
+	/**
+	 * Lays out g in place
+	 *
+	 * @param process
+	 *            which nodes are process nodes, may be null
+	 */
+	void layout(LayoutGraph g, boolean[] process) {
+		int n = g.nodes;
+		if (n == 0) {
+			return;
+		}
+		Random random = new Random(seed);
+		float k0 = g.idealDistance(gap);
+
+		// levels.get(l + 1) groups the nodes of levels.get(l) by parents.get(l)
+		List<LayoutGraph> levels = new ArrayList<LayoutGraph>();
+		List<int[]> parents = new ArrayList<int[]>();
+		levels.add(g);
+		LayoutGraph level = g;
+		float[] mass = new float[n];
+		Arrays.fill(mass, 1);
+		while (level.nodes > coarsest) {
+			int[] parent = new int[level.nodes];
+			int m = match(level, mass, process, parent, random);
+			if (m > level.nodes * MIN_SHRINK) {
+				break;
+			}
+			float[] coarseMass = new float[m];
+			level = coarsen(level, mass, parent, m, coarseMass,
+					k(k0, n, m));
+			levels.add(level);
+			parents.add(parent);
+			mass = coarseMass;
+			process = null;
+		}
+
+		int top = levels.size() - 1;
+		int total = numIterations + top * refineIterations;
+		jitter(level);
+		float k = k(k0, n, level.nodes);
+		relax(level, k, k * (float) Math.sqrt(level.nodes), numIterations,
+				0, total, top == 0);
+		int done = numIterations;
+		for (int l = top - 1; l >= 0; l--) {
+			LayoutGraph fine = levels.get(l);
+			LayoutGraph coarse = levels.get(l + 1);
+			int[] parent = parents.get(l);
+			k = k(k0, n, fine.nodes);
+			// start around the group, the repulsion spreads it out
+			for (int i = 0; i < fine.nodes; i++) {
+				fine.x[i] = coarse.x[parent[i]] + (random.nextFloat() - 0.5f) * k;
+				fine.y[i] = coarse.y[parent[i]] + (random.nextFloat() - 0.5f) * k;
+			}
+			relax(fine, k, k, refineIterations, done, total, l == 0);
+			done += refineIterations;
+		}
+	}
+
+	/**
+	 * @return the distance between the nodes of a level with m nodes, so
+	 *         that every level covers about the same area
+	 */
+	private static float k(float k0, int n, int m) {
+		return k0 * (float) Math.sqrt(n / (float) m);
+	}
+
+	/**
+	 * Groups the nodes of g for the next level: first each process node with
+	 * up to two of its neighbours, then pairs of neighbours. A node whose
+	 * neighbours are all taken joins the lightest group next to it, so hubs
+	 * with many leaves collapse at once; isolated nodes are paired up.
+	 *
+	 * @param parent
+	 *            filled with the group of each node
+	 * @return the number of groups
+	 */
+	private static int match(LayoutGraph g, float[] mass, boolean[] process,
+			int[] parent, Random random) {
+		int n = g.nodes;
+		int[] adj = new int[g.springs * 2];
+		int[] start = g.neighbours(adj);
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		Arrays.fill(parent, -1);
+		float[] groupMass = new float[n];
+		int m = 0;
+
+		if (process != null) {
+			for (int v : order) {
+				if (!process[v] || parent[v] >= 0) {
+					continue;
+				}
+				int a = lightest(v, start, adj, mass, parent, -1);
+				if (a < 0) {
+					continue;
+				}
+				int b = lightest(v, start, adj, mass, parent, a);
+				parent[v] = m;
+				parent[a] = m;
+				groupMass[m] = mass[v] + mass[a];
+				if (b >= 0) {
+					parent[b] = m;
+					groupMass[m] += mass[b];
+				}
+				m++;
+			}
+		}
+		for (int v : order) {
+			if (parent[v] >= 0) {
+				continue;
+			}
+			int a = lightest(v, start, adj, mass, parent, -1);
+			if (a >= 0) {
+				parent[v] = m;
+				parent[a] = m;
+				groupMass[m] = mass[v] + mass[a];
+				m++;
+			}
+		}
+		int isolated = -1;
+		for (int v : order) {
+			if (parent[v] >= 0) {
+				continue;
+			}
+			int group = -1;
+			for (int e = start[v]; e < start[v + 1]; e++) {
+				int w = parent[adj[e]];
+				if (group < 0 || groupMass[w] < groupMass[group]) {
+					group = w;
+				}
+			}
+			if (group < 0) {
+				if (isolated >= 0) {
+					group = parent[isolated];
+					isolated = -1;
+				} else {
+					group = m++;
+					isolated = v;
+				}
+			}
+			parent[v] = group;
+			groupMass[group] += mass[v];
+		}
+		return m;
+	}
+
+	/**
+	 * @return the lightest neighbour of v that is not in a group yet and is
+	 *         not except, or -1
+	 */
+	private static int lightest(int v, int[] start, int[] adj, float[] mass,
+			int[] parent, int except) {
+		int best = -1;
+		for (int e = start[v]; e < start[v + 1]; e++) {
+			int w = adj[e];
+			if (parent[w] < 0 && w != except && w != v
+					&& (best < 0 || mass[w] < mass[best])) {
+				best = w;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the next level: one node per group, at the center of mass of
+	 *         the group, and one spring of length k between groups that
+	 *         have a spring between them
+	 */
+	private static LayoutGraph coarsen(LayoutGraph g, float[] mass,
+			int[] parent, int m, float[] coarseMass, float k) {
+		float[] sumX = new float[m];
+		float[] sumY = new float[m];
+		for (int i = 0; i < g.nodes; i++) {
+			int p = parent[i];
+			sumX[p] += g.x[i] * mass[i];
+			sumY[p] += g.y[i] * mass[i];
+			coarseMass[p] += mass[i];
+		}
+		LayoutGraph c = new LayoutGraph(m, g.springs);
+		for (int p = 0; p < m; p++) {
+			c.addNode(null, sumX[p] / coarseMass[p], sumY[p] / coarseMass[p],
+					0, 0);
+		}
+
+		int[] from = new int[g.springs];
+		int[] to = new int[g.springs];
+		int count = 0;
+		for (int j = 0; j < g.springs; j++) {
+			int a = parent[g.from[j]];
+			int b = parent[g.to[j]];
+			if (a != b) {
+				from[count] = Math.min(a, b);
+				to[count] = Math.max(a, b);
+				count++;
+			}
+		}
+		int[] adj = new int[count];
+		int[] start = LayoutGraph.csr(m, from, count, adj, to);
+		int[] seen = new int[m];
+		Arrays.fill(seen, -1);
+		for (int a = 0; a < m; a++) {
+			for (int e = start[a]; e < start[a + 1]; e++) {
+				int b = adj[e];
+				if (seen[b] != a) {
+					seen[b] = a;
+					c.addSpring(a, b, k);
+				}
+			}
+		}
+		return c;
+	}
+}
@@ -1,123 +1,224 @@
-// PathSBML Plugin
-// SBML Plugin for PathVisio.
-// Copyright 2013 developed for Google Summer of Code
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-// http://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-//
-
-package org.pathvisio.sbml;
-
-import java.awt.geom.Point2D;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import org.pathvisio.core.model.PathwayElement;
-import org.pathvisio.gui.SwingEngine;
-
-import prefuse.action.layout.graph.ForceDirectedLayout;
-import prefuse.util.force.DragForce;
-import prefuse.util.force.ForceItem;
-import prefuse.util.force.ForceSimulator;
-import prefuse.util.force.NBodyForce;
-import prefuse.util.force.SpringForce;
-
-/**
- * Prefuse Class<p>
- * Implements the Force-Directed layout algorithm from the Prefuse package.
- * @author applecool
- *
- */
-public class Prefuse extends LayoutAbstract{
-
-	public int numIterations = 100;
-	public float defaultSpringCoefficient = 1e-4f;
-	public float defaultSpringLength = 100.0f;
-	public double defaultNodeMass = 3.0;
-	public boolean isDeterministic;
-
-	/**
-	 * create a new prefuse Force-Directed Layout.
-	 * @param swingEngine The PathVisio swing engine
-	 * @param selection Boolean whether to use currently selected nodes or complete pathway
-	 */
-	public Prefuse(SwingEngine swingEngine, boolean selection){
-		super(swingEngine,selection);
-		ForceDirectedLayout l = new ForceDirectedLayout("Layout");
-		ForceSimulator f = new ForceSimulator();
-		f.addForce(new NBodyForce());
-		f.addForce(new SpringForce());
-		f.addForce(new DragForce());
-		Map<String,ForceItem> nodes = new HashMap<String,ForceItem>();
-		for (PathwayElement pe: pwyNodes){
-			ForceItem item = new ForceItem();
-			item.location[0] = (float) pe.getMCenterX();
-			item.location[1] = (float) pe.getMCenterY();
-			nodes.put(pe.getGraphId(),item);
-			f.addItem(item);
-
-		}
-
-
-
-		for (PathwayElement pe: pwyLines){
-			String start="",end="";
-			if( pwy.getElementById(pe.getStartGraphRef())==null )
-			{
-				start =(getReaction(pe.getStartGraphRef()));
-			}else{
-				start=pe.getStartGraphRef();
-			}
-			if( pwy.getElementById(pe.getEndGraphRef())==null )
-			{
-				end =(getReaction(pe.getEndGraphRef()));
-			}
-			else{
-				end=pe.getEndGraphRef();
-			}
-
-			float springLength = pythagoras(pwy.getElementById(start).getMWidth()/2, pwy.getElementById(start).getMHeight()/2) + pythagoras(pwy.getElementById(end).getMWidth()/2,pwy.getElementById(end).getMHeight()/2);
-			f.addSpring(nodes.get(start), nodes.get(end), defaultSpringCoefficient, springLength);
-		}
-
-
-
-		l.setForceSimulator(f);
-		long timestep = 1000L;
-		for (int i=0;i<numIterations; i++){
-			timestep *= (1.0 - i/(double)numIterations);
-			long step = timestep+50;
-			f.runSimulator(step);
-		}
-		Map<String,Point2D> points = new HashMap<String,Point2D>();
-		for (Entry<String,ForceItem> e : nodes.entrySet()){
-			points.put(e.getKey(), new Point2D.Float(e.getValue().location[0], e.getValue().location[1]));
-		}
-		setLocations(points);
-		//	drawStates();
-		//drawLines();
-
-	}
-
-	/**
-	 * calculate the length of the hypotenuse
-	 * @param a length of side a
-	 * @param b length of side b
-	 * @return length of the hypotenuse
-	 */
-	public static float pythagoras(double a, double b){
-
-		return (float)Math.sqrt(Math.pow(a,2) + Math.pow(b, 2));
-	}
-
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+
+import prefuse.action.layout.graph.ForceDirectedLayout;
+import prefuse.util.force.DragForce;
+import prefuse.util.force.ForceItem;
+import prefuse.util.force.ForceSimulator;
+import prefuse.util.force.NBodyForce;
+import prefuse.util.force.SpringForce;
+
+/**
+ * Prefuse Class<p>
+ * Implements the Force-Directed layout algorithm from the Prefuse package.
+ * @author applecool
+ *
+ */
+public class Prefuse extends LayoutAbstract{
+
+	/** iterations over which the time step decays to its minimum */
+	public int numIterations = 100;
+	/** upper bound on the iterations, the layout usually stops earlier */
+	public int maxIterations = 1000;
+	public float defaultSpringCoefficient = 1e-4f;
+	public float defaultSpringLength = 100.0f;
+	public double defaultNodeMass = 3.0;
+	public boolean isDeterministic;
+	/** stop once no node moves further than this in one iteration */
+	public float convergenceThreshold = 1f;
+	/**
+	 * stop after this many milliseconds, 0 for no limit. Off by default: with
+	 * a limit the result depends on the speed of the machine, without one
+	 * {@link #maxIterations} bounds the work.
+	 */
+	public long timeLimit = 0;
+
+	private int iterationsUsed;
+	private float finalEnergy;
+	private float maxDisplacement;
+	private boolean converged;
+
+	/**
+	 * create a prefuse layout for a pathway without applying it, see {@link #run()}
+	 * @param pwy the pathway to lay out
+	 */
+	public Prefuse(Pathway pwy){
+		super(pwy);
+	}
+
+	@Override
+	protected Map<String,Point2D> computeLocations(){
+		ForceDirectedLayout l = new ForceDirectedLayout("Layout");
+		ForceSimulator f = new ForceSimulator();
+		f.addForce(new NBodyForce());
+		f.addForce(new SpringForce());
+		f.addForce(new DragForce());
+		Map<String,ForceItem> nodes = new HashMap<String,ForceItem>();
+		for (PathwayElement pe: pwyNodes){
+			ForceItem item = new ForceItem();
+			item.location[0] = (float) pe.getMCenterX();
+			item.location[1] = (float) pe.getMCenterY();
+			nodes.put(pe.getGraphId(),item);
+			f.addItem(item);
+
+		}
+
+
+
+		for (PathwayElement pe: pwyLines){
+			PathwayElement start = resolve(pe.getStartGraphRef());
+			PathwayElement end = resolve(pe.getEndGraphRef());
+			// lines to elements that are not laid out don't pull
+			if (start == null || end == null
+					|| !nodes.containsKey(start.getGraphId())
+					|| !nodes.containsKey(end.getGraphId())){
+				continue;
+			}
+			float springLength = pythagoras(start.getMWidth()/2, start.getMHeight()/2) + pythagoras(end.getMWidth()/2,end.getMHeight()/2);
+			f.addSpring(nodes.get(start.getGraphId()), nodes.get(end.getGraphId()), defaultSpringCoefficient, springLength);
+		}
+
+
+
+		l.setForceSimulator(f);
+		simulate(f, nodes);
+		return toPoints(nodes);
+		//	drawStates();
+		//drawLines();
+
+	}
+
+	private static Map<String,Point2D> toPoints(Map<String,ForceItem> nodes){
+		Map<String,Point2D> points = new HashMap<String,Point2D>();
+		for (Entry<String,ForceItem> e : nodes.entrySet()){
+			points.put(e.getKey(), new Point2D.Float(e.getValue().location[0], e.getValue().location[1]));
+		}
+		return points;
+	}
+
+	/**
+	 * Runs the simulator until the largest move of an iteration drops below
+	 * {@link #convergenceThreshold}, {@link #maxIterations} have run or the
+	 * time limit, if set, is reached. The time step follows the decaying
+	 * schedule, scaled down when the energy goes up and back up again after
+	 * a few iterations of steady progress.
+	 */
+	private void simulate(ForceSimulator f, Map<String,ForceItem> nodes){
+		ForceItem[] items = nodes.values().toArray(new ForceItem[nodes.size()]);
+		float[] prevX = new float[items.length];
+		float[] prevY = new float[items.length];
+		long deadline = timeLimit > 0 ? System.currentTimeMillis() + timeLimit : Long.MAX_VALUE;
+		double timestep = 1000;
+		float scale = 1;
+		int progress = 0;
+		float energy = Float.MAX_VALUE;
+		iterationsUsed = 0;
+		converged = false;
+		while (iterationsUsed < maxIterations && System.currentTimeMillis() < deadline && !isCancelled()){
+			for (int i = 0; i < items.length; i++){
+				prevX[i] = items[i].location[0];
+				prevY[i] = items[i].location[1];
+			}
+			timestep *= (1.0 - Math.min(iterationsUsed, numIterations)/(double)numIterations);
+			f.runSimulator((long) ((timestep + 50) * scale));
+			iterationsUsed++;
+
+			float newEnergy = 0;
+			maxDisplacement = 0;
+			for (int i = 0; i < items.length; i++){
+				ForceItem item = items[i];
+				float dx = item.location[0] - prevX[i];
+				float dy = item.location[1] - prevY[i];
+				maxDisplacement = Math.max(maxDisplacement, dx*dx + dy*dy);
+				newEnergy += item.mass * (item.velocity[0]*item.velocity[0] + item.velocity[1]*item.velocity[1]) / 2;
+			}
+			maxDisplacement = (float) Math.sqrt(maxDisplacement);
+			if (progress(iterationsUsed, maxIterations)){
+				preview(toPoints(nodes));
+			}
+			if (maxDisplacement < convergenceThreshold){
+				converged = true;
+				energy = newEnergy;
+				break;
+			}
+			// adaptive step: back off when the system heats up
+			if (newEnergy < energy){
+				if (++progress >= 5){
+					progress = 0;
+					scale = Math.min(1, scale / 0.9f);
+				}
+			}
+			else {
+				progress = 0;
+				scale = Math.max(0.1f, scale * 0.9f);
+			}
+			energy = newEnergy;
+		}
+		finalEnergy = iterationsUsed == 0 ? 0 : energy;
+		Logger.log.info("Prefuse layout: " + getReport());
+	}
+
+	/** @return the iterations the last layout ran */
+	public int getIterationsUsed(){
+		return iterationsUsed;
+	}
+
+	/** @return kinetic energy of the nodes after the last iteration */
+	public float getFinalEnergy(){
+		return finalEnergy;
+	}
+
+	/** @return the largest move of a node in the last iteration */
+	public float getMaxDisplacement(){
+		return maxDisplacement;
+	}
+
+	/** @return true if the last layout stopped because the nodes came to rest */
+	public boolean isConverged(){
+		return converged;
+	}
+
+	/** @return a one line summary, for tuning the spring parameters */
+	public String getReport(){
+		return iterationsUsed + " iterations, energy " + finalEnergy
+				+ ", max displacement " + maxDisplacement
+				+ (converged ? ", converged" : ", not converged");
+	}
+
+	/**
+	 * calculate the length of the hypotenuse
+	 * @param a length of side a
+	 * @param b length of side b
+	 * @return length of the hypotenuse
+	 */
+	public static float pythagoras(double a, double b){
+
+		return (float)Math.sqrt(Math.pow(a,2) + Math.pow(b, 2));
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+/**
+ * Barnes-Hut quadtree over the node positions of a layout, in flat arrays.
+ * <p>
+ * A cell far enough away from a node, relative to its size, acts on it as
+ * one body at its center of mass, which brings the repulsion between n nodes
+ * down to O(n log n). Once built, {@link #repulsion} only reads the tree, so
+ * it can be called from several threads at once.
+ */
+class QuadTree {
+
+	private static final int EMPTY = -1;
+	private static final int INTERNAL = -2;
+	/** cells smaller than this are not split; nodes in it act as one */
+	private static final float MIN_CELL = 1e-3f;
+	private static final int MAX_DEPTH = 64;
+
+	private int cells;
+	/** four per cell, 0 if the child doesn't exist (the root is no child) */
+	private int[] children;
+	/** node index for a leaf, EMPTY or INTERNAL */
+	private int[] body;
+	private float[] mass;
+	private float[] comX;
+	private float[] comY;
+	private float[] left;
+	private float[] top;
+	private float[] size;
+	/** positions of the last build */
+	private float[] xs;
+	private float[] ys;
+
+	QuadTree(int capacity) {
+		allocate(Math.max(16, capacity * 2));
+	}
+
+	private void allocate(int n) {
+		children = new int[n * 4];
+		body = new int[n];
+		mass = new float[n];
+		comX = new float[n];
+		comY = new float[n];
+		left = new float[n];
+		top = new float[n];
+		size = new float[n];
+	}
+
+	private void grow() {
+		int n = body.length * 2;
+		int[] c = new int[n * 4];
+		System.arraycopy(children, 0, c, 0, cells * 4);
+		children = c;
+		body = copy(body, n);
+		mass = copy(mass, n);
+		comX = copy(comX, n);
+		comY = copy(comY, n);
+		left = copy(left, n);
+		top = copy(top, n);
+		size = copy(size, n);
+	}
+
+	private int[] copy(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, cells);
+		return b;
+	}
+
+	private float[] copy(float[] a, int n) {
+		float[] b = new float[n];
+		System.arraycopy(a, 0, b, 0, cells);
+		return b;
+	}
+
+	private int newCell(float l, float t, float s) {
+		if (cells == body.length) {
+			grow();
+		}
+		int c = cells++;
+		children[c * 4] = 0;
+		children[c * 4 + 1] = 0;
+		children[c * 4 + 2] = 0;
+		children[c * 4 + 3] = 0;
+		body[c] = EMPTY;
+		mass[c] = 0;
+		comX[c] = 0;
+		comY[c] = 0;
+		left[c] = l;
+		top[c] = t;
+		size[c] = s;
+		return c;
+	}
+
+	/** Rebuilds the tree for the first n positions */
+	void build(float[] x, float[] y, int n) {
+		cells = 0;
+		xs = x;
+		ys = y;
+		float minX = Float.MAX_VALUE;
+		float minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE;
+		float maxY = -Float.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		newCell(minX, minY, Math.max(maxX - minX, maxY - minY) + 1);
+		for (int i = 0; i < n; i++) {
+			insert(i);
+		}
+	}
+
+	private void insert(int i) {
+		float px = xs[i];
+		float py = ys[i];
+		int c = 0;
+		for (int depth = 0;; depth++) {
+			float m = mass[c] + 1;
+			comX[c] = (comX[c] * mass[c] + px) / m;
+			comY[c] = (comY[c] * mass[c] + py) / m;
+			mass[c] = m;
+			if (body[c] == EMPTY) {
+				body[c] = i;
+				return;
+			}
+			if (body[c] >= 0) {
+				if (size[c] < MIN_CELL || depth >= MAX_DEPTH) {
+					// coincident nodes, keep them together
+					return;
+				}
+				// move the node that was here one level down
+				int j = body[c];
+				body[c] = INTERNAL;
+				int child = child(c, xs[j], ys[j]);
+				mass[child] = 1;
+				comX[child] = xs[j];
+				comY[child] = ys[j];
+				body[child] = j;
+			}
+			c = child(c, px, py);
+		}
+	}
+
+	/** @return the child of c that contains (px, py), created if needed */
+	private int child(int c, float px, float py) {
+		float half = size[c] / 2;
+		int q = 0;
+		float l = left[c];
+		float t = top[c];
+		if (px >= l + half) {
+			q |= 1;
+			l += half;
+		}
+		if (py >= t + half) {
+			q |= 2;
+			t += half;
+		}
+		int child = children[c * 4 + q];
+		if (child == 0) {
+			child = newCell(l, t, half);
+			children[c * 4 + q] = child;
+		}
+		return child;
+	}
+
+	/**
+	 * Adds the repulsion on node i to force, as strength * mass / distance
+	 * pointing away from each body
+	 *
+	 * @param stack
+	 *            scratch space of the calling thread, see {@link #newStack()}
+	 */
+	void repulsion(int i, float px, float py, float theta, float strength,
+			int[] stack, float[] force) {
+		float theta2 = theta * theta;
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int c = stack[--sp];
+			if (mass[c] == 0) {
+				continue;
+			}
+			float dx = px - comX[c];
+			float dy = py - comY[c];
+			float d2 = dx * dx + dy * dy;
+			boolean leaf = body[c] >= 0;
+			if (leaf && body[c] == i && mass[c] == 1) {
+				continue;
+			}
+			if (leaf || size[c] * size[c] < theta2 * d2) {
+				if (d2 < 1) {
+					// (almost) on top of each other, push apart along i
+					dx = (i % 2 == 0 ? 1 : -1);
+					dy = ((i / 2) % 2 == 0 ? 1 : -1);
+					d2 = 1;
+				}
+				float m = leaf && body[c] == i ? mass[c] - 1 : mass[c];
+				float f = strength * m / d2;
+				force[0] += dx * f;
+				force[1] += dy * f;
+			} else {
+				for (int q = 0; q < 4; q++) {
+					int child = children[c * 4 + q];
+					if (child != 0) {
+						stack[sp++] = child;
+					}
+				}
+			}
+		}
+	}
+
+	/** @return scratch space for {@link #repulsion} */
+	static int[] newStack() {
+		return new int[MAX_DEPTH * 4 + 4];
+	}
+}
@@ -0,0 +1,189 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbgn.SbgnFormat;
+import org.sbgn.ArcClazz;
+import org.sbgn.GlyphClazz;
+
+/**
+ * Which species take part in which process node of an SBGN pathway.
+ * <p>
+ * Arcs are attached to the anchors of the port lines of a process node
+ * (reactants and products) or to the process node itself (modifiers). The
+ * index maps every port anchor to its process node, so each arc is resolved
+ * with a single lookup.
+ */
+class ReactionIndex {
+
+	/** Species connected to one process node, in pathway order */
+	static class Connections {
+		private final PathwayElement processNode;
+		final List<String> reactants = new ArrayList<String>();
+		final List<String> products = new ArrayList<String>();
+		final List<String> modifiers = new ArrayList<String>();
+		/** the arcs behind the ids above, in the same order */
+		final List<PathwayElement> reactantArcs = new ArrayList<PathwayElement>();
+		final List<PathwayElement> productArcs = new ArrayList<PathwayElement>();
+		final List<PathwayElement> modifierArcs = new ArrayList<PathwayElement>();
+		/** port lines, starting at the process node */
+		final List<PathwayElement> ports = new ArrayList<PathwayElement>();
+
+		Connections(PathwayElement processNode) {
+			this.processNode = processNode;
+		}
+
+		PathwayElement getProcessNode() {
+			return processNode;
+		}
+	}
+
+	/** process node graph id -> connections */
+	private final Map<String, Connections> reactions = new LinkedHashMap<String, Connections>();
+	/** port anchor graph id -> process node graph id */
+	private final Map<String, String> ports = new HashMap<String, String>();
+
+	/** arcs and ports seen by {@link #add}, resolved by {@link #resolveArcs} */
+	private final List<PathwayElement> arcs = new ArrayList<PathwayElement>();
+	private final List<PathwayElement> portLines = new ArrayList<PathwayElement>();
+
+	/** Builds the index with one pass over the data objects of pwy */
+	static ReactionIndex build(Pathway pwy) {
+		ReactionIndex index = new ReactionIndex();
+		for (PathwayElement elt : pwy.getDataObjects()) {
+			index.add(elt);
+		}
+		index.resolveArcs();
+		return index;
+	}
+
+	/**
+	 * Adds a process node, port or arc. Other elements are ignored. Arcs are
+	 * only connected by {@link #resolveArcs()}, once all ports are known.
+	 */
+	void add(PathwayElement elt) {
+		String sbgnClass = elt.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS);
+		if (elt.getObjectType() == ObjectType.LINE) {
+			if ("true".equals(elt
+					.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_IS_PORT))) {
+				if (elt.getMAnchors().size() > 0) {
+					ports.put(elt.getMAnchors().get(0).getGraphId(),
+							elt.getStartGraphRef());
+				}
+				portLines.add(elt);
+			} else if (sbgnClass != null) {
+				arcs.add(elt);
+			}
+		} else if (sbgnClass != null && isProcess(sbgnClass)) {
+			reactions.put(elt.getGraphId(), new Connections(elt));
+		}
+	}
+
+	void resolveArcs() {
+		for (PathwayElement port : portLines) {
+			Connections c = get(port.getStartGraphRef());
+			if (c != null) {
+				c.ports.add(port);
+			}
+		}
+		for (PathwayElement arc : arcs) {
+			addArc(arc);
+		}
+		arcs.clear();
+		portLines.clear();
+	}
+
+	/** @return true if an element of this SBGN class is a process node */
+	static boolean isProcess(String sbgnClass) {
+		switch (GlyphClazz.fromClazz(sbgnClass)) {
+		case PROCESS:
+		case UNCERTAIN_PROCESS:
+		case OMITTED_PROCESS:
+		case ASSOCIATION:
+		case DISSOCIATION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void addArc(PathwayElement arc) {
+		String start = arc.getStartGraphRef();
+		String end = arc.getEndGraphRef();
+		Connections c = get(ports.get(start));
+		if (c != null) {
+			c.products.add(end);
+			c.productArcs.add(arc);
+			return;
+		}
+		c = get(ports.get(end));
+		if (c != null) {
+			c.reactants.add(start);
+			c.reactantArcs.add(arc);
+			return;
+		}
+		c = get(end);
+		if (c != null
+				&& isModifier(arc
+						.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS))) {
+			c.modifiers.add(start);
+			c.modifierArcs.add(arc);
+		}
+	}
+
+	/**
+	 * @return true if an arc of this SBGN class, ending at a process node,
+	 *         makes its start a modifier of the reaction
+	 */
+	static boolean isModifier(String sbgnClass) {
+		switch (ArcClazz.fromClazz(sbgnClass)) {
+		case CATALYSIS:
+		case STIMULATION:
+		case INHIBITION:
+		case MODULATION:
+		case NECESSARY_STIMULATION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** @return the connections of a process node, or null */
+	Connections get(String processId) {
+		return processId == null ? null : reactions.get(processId);
+	}
+
+	/** @return graph id of the process node a port anchor belongs to, or null */
+	String getProcessOfPort(String anchorId) {
+		return ports.get(anchorId);
+	}
+
+	Collection<Connections> getReactions() {
+		return reactions.values();
+	}
+}
@@ -0,0 +1,263 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.ReactionIndex.Connections;
+import org.pathvisio.sbml.peer.ExportOptions;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.pathvisio.sbml.peer.PeerSpecies;
+import org.sbml.jsbml.ListOf;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Reaction;
+import org.sbml.jsbml.SBMLException;
+import org.sbml.jsbml.SimpleSpeciesReference;
+import org.sbml.jsbml.Species;
+import org.sbml.jsbml.ext.layout.Layout;
+import org.sbml.jsbml.ext.layout.ReactionGlyph;
+
+/**
+ * Exports a pathway that was imported from SBML by patching the imported
+ * document.
+ * <p>
+ * Names and layout positions are already written back by the species peers
+ * while the user edits. This adds species for new glyphs, removes species
+ * whose glyphs are all gone, and adds, removes or rewires reactions. A
+ * document without a layout gets one written from the pathway. Anything
+ * the pathway doesn't show (units, parameters, kinetic laws, compartments,
+ * annotations) is kept as it was.
+ */
+class RoundTripExporter {
+
+	private final PeerModel peers;
+	private final Pathway pathway;
+	private final Model model;
+	private final ExportPreflight preflight;
+	private final ExportOptions options;
+
+	/** graph id of a species glyph -> SBML species id */
+	private final Map<String, String> speciesIds = new HashMap<String, String>();
+	/** the species glyphs left after patching */
+	private final List<PathwayElement> glyphs = new ArrayList<PathwayElement>();
+
+	private int addedSpecies;
+	private int removedSpecies;
+	private int addedReactions;
+	private int removedReactions;
+	private int patchedReactions;
+	/** species references added or removed */
+	private int rewired;
+
+	RoundTripExporter(PeerModel peers) {
+		this(peers, new ExportOptions());
+	}
+
+	RoundTripExporter(PeerModel peers, ExportOptions options) {
+		this.peers = peers;
+		this.options = options;
+		this.pathway = peers.getPathway();
+		this.model = peers.getModel();
+		this.preflight = ExportPreflight.run(pathway);
+	}
+
+	/**
+	 * @throws ConverterException
+	 *             if a line is not connected at both ends, before the
+	 *             document is touched
+	 */
+	void doExport(File file) throws ConverterException {
+		if (!preflight.isConnected()) {
+			throw new ConverterException("Unconnected interactions found: "
+					+ preflight.getUnconnectedLines()
+					+ ". Model cannot be exported");
+		}
+		long start = System.nanoTime();
+		patch();
+		preflight.record("patch", start);
+		Logger.log.info("Round trip export of " + model.getId() + ": +"
+				+ addedSpecies + "/-" + removedSpecies + " species, +"
+				+ addedReactions + "/-" + removedReactions + "/~"
+				+ patchedReactions + " reactions");
+		start = System.nanoTime();
+		try {
+			SbmlFiles.writeDocument(peers.getDoc(), file);
+		} catch (SBMLException e) {
+			throw new ConverterException(e);
+		} catch (XMLStreamException e) {
+			throw new ConverterException(e);
+		} catch (IOException e) {
+			throw new ConverterException(e);
+		}
+		preflight.record("write", start);
+		Logger.log.info(preflight.getReport());
+	}
+
+	ExportPreflight getPreflight() {
+		return preflight;
+	}
+
+	/** Brings the retained document up to date with the pathway */
+	void patch() {
+		patchSpecies();
+		patchReactions();
+		// documents that came without a layout get one, which the peers keep
+		// up to date from then on
+		if (options.isLayout() && peers.getFirstLayout() == null) {
+			peers.bindSpeciesGlyphs(new SbmlLayoutWriter(preflight, glyphs,
+					speciesIds).write(peers.getDoc()));
+		}
+	}
+
+	private void patchSpecies() {
+		for (PeerSpecies peer : peers.getSpeciesPeers()) {
+			if (peer.getSpeciesElement().getParent() != pathway) {
+				if (peers.removeSpeciesPeer(peer)) {
+					removedSpecies++;
+				}
+			}
+		}
+		for (PeerSpecies peer : peers.getSpeciesPeers()) {
+			speciesIds.put(peer.getSpeciesElement().getGraphId(), peer
+					.getSpecies().getId());
+			glyphs.add(peer.getSpeciesElement());
+		}
+		for (PathwayElement elt : preflight.getSpecies()) {
+			if (peers.getPeerOfGlyph(elt) != null) {
+				continue;
+			}
+			if (model.getSpecies(elt.getGraphId()) == null) {
+				PeerSpecies peer = peers.addSpecies(elt);
+				annotate(peer.getSpecies(), elt);
+				addedSpecies++;
+			}
+			speciesIds.put(elt.getGraphId(), elt.getGraphId());
+			glyphs.add(elt);
+		}
+	}
+
+	private void annotate(Species sp, PathwayElement elt) {
+		String uri = preflight.getAnnotation(elt);
+		if (uri != null) {
+			SbmlExportHelper.annotate(sp, uri);
+		}
+	}
+
+	private void patchReactions() {
+		ReactionIndex index = preflight.getIndex();
+		Layout layout = peers.getFirstLayout();
+		for (Reaction r : new ArrayList<Reaction>(model.getListOfReactions())) {
+			if (index.get(r.getId()) == null) {
+				model.removeReaction(r.getId());
+				if (layout != null) {
+					for (ReactionGlyph g : layout.findReactionGlyphs(r.getId())) {
+						layout.getListOfReactionGlyphs().remove(g);
+					}
+				}
+				removedReactions++;
+			}
+		}
+		for (Connections c : index.getReactions()) {
+			String id = c.getProcessNode().getGraphId();
+			Reaction r = model.getReaction(id);
+			boolean added = r == null;
+			if (added) {
+				r = model.createReaction(id);
+				addedReactions++;
+			}
+			int before = rewired;
+			for (String sid : keepWanted(r.getListOfReactants(), c.reactants)) {
+				r.createReactant().setSpecies(sid);
+				rewired++;
+			}
+			for (String sid : keepWanted(r.getListOfProducts(), c.products)) {
+				r.createProduct().setSpecies(sid);
+				rewired++;
+			}
+			for (String sid : keepWanted(r.getListOfModifiers(), c.modifiers)) {
+				r.createModifier().setSpecies(sid);
+				rewired++;
+			}
+			if (rewired != before && !added) {
+				patchedReactions++;
+			}
+		}
+	}
+
+	/**
+	 * Removes the references of refs that the pathway no longer has. Kept
+	 * references keep their stoichiometry and other attributes.
+	 *
+	 * @param glyphs
+	 *            graph ids of the glyphs connected in the pathway
+	 * @return species ids that still need a reference
+	 */
+	private List<String> keepWanted(
+			ListOf<? extends SimpleSpeciesReference> refs, List<String> glyphs) {
+		List<String> wanted = new ArrayList<String>();
+		for (String gid : glyphs) {
+			String sid = speciesIds.get(gid);
+			// arcs to glyphs that aren't species have nothing to refer to
+			if (sid != null) {
+				wanted.add(sid);
+			}
+		}
+		List<SimpleSpeciesReference> stale = new ArrayList<SimpleSpeciesReference>();
+		for (SimpleSpeciesReference ref : refs) {
+			if (!wanted.remove(ref.getSpecies())) {
+				stale.add(ref);
+			}
+		}
+		for (SimpleSpeciesReference ref : stale) {
+			refs.remove(ref);
+		}
+		rewired += stale.size();
+		return wanted;
+	}
+
+	int getAddedSpecies() {
+		return addedSpecies;
+	}
+
+	int getRemovedSpecies() {
+		return removedSpecies;
+	}
+
+	int getAddedReactions() {
+		return addedReactions;
+	}
+
+	int getRemovedReactions() {
+		return removedReactions;
+	}
+
+	int getPatchedReactions() {
+		return patchedReactions;
+	}
+}
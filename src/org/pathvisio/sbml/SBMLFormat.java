@@ -18,42 +18,171 @@
 package org.pathvisio.sbml;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.pathvisio.core.model.AbstractPathwayFormat;
 import org.pathvisio.core.model.ConverterException;
 import org.pathvisio.core.model.Pathway;
-import org.pathvisio.core.util.RootElementFinder;
+import org.pathvisio.sbml.peer.ExportOptions;
+import org.pathvisio.sbml.peer.ImportOptions;
+import org.pathvisio.sbml.peer.PeerModel;
 import org.sbml.jsbml.SBMLDocument;
 
 public class SBMLFormat extends AbstractPathwayFormat
 {
 	public static SBMLDocument modelDoc;
+	/**
+	 * SBML file of the last import that was served from the import cache. The
+	 * side pane parses it into {@link #modelDoc} when it is shown.
+	 */
+	static File pendingModelFile;
 	private final SBMLPlugin parent;
+	private final ImportOptions importOptions = new ImportOptions();
+	private ImportCache importCache;
+	private final ExportOptions exportOptions = new ExportOptions();
+	/**
+	 * peers of the pathways imported by this format, for round trip export.
+	 * The peers listen to the pathway elements, so they live as long as the
+	 * pathway does.
+	 */
+	private final Map<Pathway, WeakReference<PeerModel>> importedModels = new WeakHashMap<Pathway, WeakReference<PeerModel>>();
+	/**
+	 * incremental exporters of the pathways saved by this format. Like the
+	 * peers, they are held by the pathway they listen to.
+	 */
+	private final Map<Pathway, WeakReference<IncrementalSbmlExporter>> exporters = new WeakHashMap<Pathway, WeakReference<IncrementalSbmlExporter>>();
 
-	/** @param parent may be null */
+	/**
+	 * @param parent
+	 *            may be null, in which case no dialogs are shown and the
+	 *            imported document is not kept for the SBML side pane
+	 */
 	public SBMLFormat (SBMLPlugin parent)
 	{
 		this.parent = parent;
 	}
 
+	/**
+	 * The import cache is used unless the pathway needs peers for a round
+	 * trip export: a cached pathway has none. Streamed imports have none
+	 * either, so they are always cached.
+	 */
 	@Override
 	public Pathway doImport(File file)
 			throws ConverterException
 			{
-		SbmlImportHelper helper = new SbmlImportHelper();
+		String key = null;
+		if (importCache != null
+				&& !(exportOptions.isRoundTrip() && !SbmlImportHelper
+						.isStreamed(file, importOptions))) {
+			try {
+				key = ImportCache.key(file, importOptions);
+			} catch (IOException e) {
+				throw new ConverterException(e);
+			}
+			Pathway cached = importCache.get(key);
+			if (cached != null) {
+				if (parent != null) {
+					modelDoc = null;
+					pendingModelFile = file;
+				}
+				return cached;
+			}
+		}
+		SbmlImportHelper helper = new SbmlImportHelper(importOptions,
+				parent != null);
 		Pathway result = helper.doImport(file);
-		modelDoc = helper.getDocument();
+		if (helper.getPeerModel() != null) {
+			importedModels.put(result, new WeakReference<PeerModel>(helper
+					.getPeerModel()));
+		}
+		if (parent != null) {
+			modelDoc = helper.getDocument();
+			pendingModelFile = null;
+		}
+		if (key != null) {
+			importCache.put(key, result);
+		}
 		return result;
 
 			}
 
+	/** @return the settings used by {@link #doImport(File)} */
+	public ImportOptions getImportOptions() {
+		return importOptions;
+	}
+
+	/** @return the cache used by {@link #doImport(File)}, or null */
+	public ImportCache getImportCache() {
+		return importCache;
+	}
+
+	/** @param cache may be null to always convert, the default */
+	public void setImportCache(ImportCache cache) {
+		this.importCache = cache;
+	}
+
+	/** @return the settings used by {@link #doExport(File, Pathway)} */
+	public ExportOptions getExportOptions() {
+		return exportOptions;
+	}
+
 	@Override
 	public void doExport(File file, Pathway pathway) throws ConverterException {
-		SbmlExportHelper helper = new SbmlExportHelper(file, pathway);
+		PeerModel imported = getImportedModel(pathway);
+		if (imported != null && exportOptions.isRoundTrip()
+				&& !exportOptions.isStreaming()) {
+			new RoundTripExporter(imported, exportOptions).doExport(file);
+			return;
+		}
+		IncrementalSbmlExporter exporter = getIncrementalExporter(pathway);
+		if (exporter != null) {
+			exporter.save(file);
+			return;
+		}
+		SbmlExportHelper helper = new SbmlExportHelper(file, pathway,
+				exportOptions);
 		helper.doExport();
 		}
 
-	private static final String[] EXTENSIONS = new String[] { "sbml", "xml" };
+	/**
+	 * @return the exporter that tracks the edits of pathway, created on the
+	 *         first save, or null if the pathway is not exported
+	 *         incrementally
+	 */
+	private IncrementalSbmlExporter getIncrementalExporter(Pathway pathway) {
+		if (!exportOptions.isIncremental() || exportOptions.isStreaming()) {
+			return null;
+		}
+		WeakReference<IncrementalSbmlExporter> ref = exporters.get(pathway);
+		IncrementalSbmlExporter exporter = ref == null ? null : ref.get();
+		if (exporter == null) {
+			int level = Integer.parseInt(pathway.getMappInfo()
+					.getDynamicProperty("SBML_Level"));
+			if (!SbmlStreamWriter.supports(level)) {
+				return null;
+			}
+			exporter = new IncrementalSbmlExporter(pathway, exportOptions);
+			exporters.put(pathway, new WeakReference<IncrementalSbmlExporter>(
+					exporter));
+		}
+		return exporter;
+	}
+
+	/**
+	 * @return the peers of a pathway imported by this format, or null if it
+	 *         was streamed, served from the cache or not imported from SBML
+	 */
+	public PeerModel getImportedModel(Pathway pathway) {
+		WeakReference<PeerModel> ref = importedModels.get(pathway);
+		return ref == null ? null : ref.get();
+	}
+
+	private static final String[] EXTENSIONS = new String[] { "sbml", "xml",
+			SbmlFiles.GZIP_EXTENSION };
 
 	@Override
 	public String[] getExtensions()
@@ -73,7 +202,7 @@ public class SBMLFormat extends AbstractPathwayFormat
 		String uri;
 		try
 		{
-			uri = "" + RootElementFinder.getRootUri(f);
+			uri = "" + SbmlFiles.getRootNamespace(f);
 			return uri.startsWith ("http://www.sbml.org");
 		}
 		catch (Exception e)
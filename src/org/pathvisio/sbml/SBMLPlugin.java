@@ -23,7 +23,9 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -43,14 +45,19 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import org.pathvisio.core.Engine;
 import org.pathvisio.core.debug.Logger;
 import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
 import org.pathvisio.core.model.PathwayIO;
 import org.pathvisio.core.preferences.GlobalPreference;
 import org.pathvisio.core.preferences.Preference;
+import org.pathvisio.core.preferences.PreferenceManager;
 import org.pathvisio.core.util.ProgressKeeper;
 import org.pathvisio.core.util.Utils;
+import org.pathvisio.core.view.Graphics;
 import org.pathvisio.desktop.PvDesktop;
 import org.pathvisio.desktop.plugin.Plugin;
 import org.pathvisio.gui.ProgressDialog;
+import org.pathvisio.sbml.peer.LazyComments;
+import org.pathvisio.sbml.peer.PeerModel;
 import org.sbml.jsbml.SBMLDocument;
 
 import uk.ac.ebi.biomodels.ws.BioModelsWSClient;
@@ -71,7 +78,8 @@ public class SBMLPlugin implements Plugin {
 	private JMenuItem sbmlImport;
 	private JMenuItem sbmlExport;
 	private JMenuItem biomodels;
-	private JMenuItem layout;
+	private JMenu layout;
+	private JMenuItem localLayout;
 	private JMenuItem validate;
 	Component sbmlPanel;
 
@@ -81,9 +89,14 @@ public class SBMLPlugin implements Plugin {
 	final File tmpDir = new File(GlobalPreference.getPluginDir(),
 			"models-cache");
 
+	/** kept when the plugin is unloaded, unlike tmpDir */
+	final File importCacheDir = new File(GlobalPreference.getPluginDir(),
+			"sbml-import-cache");
+
 	private final ValidateAction validateAction = new ValidateAction();
 
-	private final FRLayoutAction layoutAction = new FRLayoutAction();
+
+	private final LocalLayoutAction localLayoutAction = new LocalLayoutAction();
 
 	private final ImportModelAction importmodelAction = new ImportModelAction();
 
@@ -119,10 +132,11 @@ public class SBMLPlugin implements Plugin {
 
 	}
 	/**
-	 * This class adds the action to the Force Directed Layout button.
+	 * This class adds the action to an entry of the Force Directed Layout
+	 * menu, one per {@link LayoutEngine}.
 	 * 
-	 * Works properly only with three data nodes. Doesn't work with process
-	 * nodes. This method is added just to experiment with FR Layout algorithm.
+	 * Lays out the whole active pathway, data nodes and process nodes, in the
+	 * background with a progress dialog; see {@link LayoutTask}.
 	 * 
 	 * @author applecool
 	 * 
@@ -134,15 +148,72 @@ public class SBMLPlugin implements Plugin {
 		 */
 		private static final long serialVersionUID = 1L;
 
-		FRLayoutAction() {
-			putValue(NAME, "Force Directed Layout");
+		private final LayoutEngine engine;
+
+		FRLayoutAction(LayoutEngine engine) {
+			this.engine = engine;
+			putValue(NAME, engine.getLabel());
 		}
 
 		@Override
 		public void actionPerformed(ActionEvent arg0) {
-			new Prefuse(desktop.getSwingEngine(), false);
+			Pathway pathway = desktop.getSwingEngine().getEngine()
+					.getActivePathway();
+			// models that carry their own layout don't need one
+			if (pathway != null
+					&& "true".equals(pathway.getMappInfo().getDynamicProperty(
+							PeerModel.PROPERTY_LAYOUT))) {
+				int answer = JOptionPane.showConfirmDialog(
+						desktop.getFrame(),
+						"This pathway is positioned by the layout stored in its SBML file.\n"
+								+ "Replace it with a force directed layout?",
+						(String) getValue(NAME), JOptionPane.YES_NO_OPTION);
+				if (answer != JOptionPane.YES_OPTION) {
+					return;
+				}
+			}
+			if (pathway == null
+					|| !new LayoutTask(desktop.getSwingEngine(),
+							engine.create(pathway), engine.getLabel())
+							.runWithProgress()) {
+				return;
+			}
+			pathway.getMappInfo().setDynamicProperty(PeerModel.PROPERTY_LAYOUT,
+					null);
+		}
+
+	}
+
+	/**
+	 * Relaxes the layout around the selected elements, e.g. after adding a
+	 * few species, and leaves the rest of the pathway where it is.
+	 */
+	private class LocalLayoutAction extends AbstractAction {
+
+		private static final long serialVersionUID = 1L;
+
+		LocalLayoutAction() {
+			putValue(NAME, "Relax layout around selection");
 		}
 
+		@Override
+		public void actionPerformed(ActionEvent arg0) {
+			Pathway pathway = desktop.getSwingEngine().getEngine()
+					.getActivePathway();
+			if (pathway == null) {
+				return;
+			}
+			List<PathwayElement> changed = new ArrayList<PathwayElement>();
+			for (Graphics g : desktop.getSwingEngine().getEngine()
+					.getActiveVPathway().getSelectedGraphics()) {
+				changed.add(g.getPathwayElement());
+			}
+			if (!changed.isEmpty()) {
+				new LayoutTask(desktop.getSwingEngine(), new LocalLayout(
+						pathway, changed), (String) getValue(NAME))
+						.runWithProgress();
+			}
+		}
 	}
 
 	/**
@@ -151,24 +222,34 @@ public class SBMLPlugin implements Plugin {
 	 */
 	public static enum PlPreference implements Preference {
 		/**
-		 * 
+		 * attraction multiplier of the JUNG Fruchterman-Reingold layout
 		 */
-		PL_LAYOUT_FR_ATTRACTION("0.5"), /**
-		 * 
+		PL_LAYOUT_FR_ATTRACTION("0.5"),
+		/**
+		 * repulsion multiplier of the JUNG Fruchterman-Reingold layout
 		 */
-		PL_LAYOUT_FR_REPULSION("1"), /**
-		 * 
+		PL_LAYOUT_FR_REPULSION("1"),
+		/**
+		 * force multiplier of the JUNG spring layout
+		 */
+		PL_LAYOUT_SPRING_FORCE("0.33"),
+		/**
+		 * repulsion range of the JUNG spring layout, in pixels
+		 */
+		PL_LAYOUT_SPRING_REPULSION("100"),
+		/**
+		 * stretch of the JUNG spring layout
+		 */
+		PL_LAYOUT_SPRING_STRETCH("0.7"),
+		/**
+		 * size of the import cache in megabytes, 0 to turn it off
 		 */
-		PL_LAYOUT_SPRING_FORCE(
-				"0.33"), /**
-				 * 
-				 */
-				PL_LAYOUT_SPRING_REPULSION("100"),
-				/**
-				 * 
-				 */
-				PL_LAYOUT_SPRING_STRETCH(
-						"0.7");
+		PL_IMPORT_CACHE_SIZE("0"),
+		/**
+		 * keep converting only the edits when a pathway is saved as SBML
+		 * again, off by default
+		 */
+		PL_EXPORT_INCREMENTAL("false");
 
 		private final String defaultVal;
 
@@ -224,8 +305,8 @@ public class SBMLPlugin implements Plugin {
 			modelChooser.setVisible(true);
 			// filtering the files based on their extensions.
 			FileNameExtensionFilter filter = new FileNameExtensionFilter(
-					"SBML(Systems Biology Markup Language) (.sbml,.xml)",
-					"sbml", "xml");
+					"SBML(Systems Biology Markup Language) (.sbml,.xml,.xml.gz)",
+					"sbml", "xml", SbmlFiles.GZIP_EXTENSION);
 			modelChooser.setFileFilter(filter);
 			int returnVal = modelChooser.showOpenDialog(desktop
 					.getSwingEngine().getApplicationPanel());
@@ -250,8 +331,8 @@ public class SBMLPlugin implements Plugin {
 			modelChooser.setVisible(true);
 			// filtering the files based on their extensions.
 			FileNameExtensionFilter filter = new FileNameExtensionFilter(
-					"SBML(Systems Biology Markup Language) (.sbml,.xml)",
-					"sbml", "xml");
+					"SBML(Systems Biology Markup Language) (.sbml,.xml,.xml.gz)",
+					"sbml", "xml", SbmlFiles.GZIP_EXTENSION);
 			modelChooser.setFileFilter(filter);
 			int returnVal = modelChooser.showOpenDialog(desktop
 					.getSwingEngine().getApplicationPanel());
@@ -284,7 +365,11 @@ public class SBMLPlugin implements Plugin {
 		// egModel = new JMenuItem("Open Example Model");
 		sbmlImport = new JMenuItem("Import local model file");
 		biomodels = new JMenuItem("Import model directly from BioModels");
-		layout = new JMenuItem("Apply force directed layout");
+		layout = new JMenu("Apply force directed layout");
+		for (LayoutEngine engine : LayoutEngine.values()) {
+			layout.add(new JMenuItem(new FRLayoutAction(engine)));
+		}
+		localLayout = new JMenuItem(localLayoutAction);
 		validate = new JMenuItem("Validate selected model");
 		sbmlExport= new JMenuItem("Export pathway as SBML model");
 
@@ -292,7 +377,6 @@ public class SBMLPlugin implements Plugin {
 
 		sbmlImport.addActionListener(importmodelAction);
 		biomodels.addActionListener(biomodelAction);
-		layout.addActionListener(layoutAction);
 		validate.addActionListener(validateAction);
 		sbmlExport.addActionListener(exportmodelAction);
 
@@ -300,6 +384,7 @@ public class SBMLPlugin implements Plugin {
 		sbmlmenu.add(sbmlImport);
 		sbmlmenu.add(biomodels);
 		sbmlmenu.add(layout);
+		sbmlmenu.add(localLayout);
 		sbmlmenu.add(validate);
 		sbmlmenu.add(sbmlExport);
 
@@ -326,6 +411,15 @@ public class SBMLPlugin implements Plugin {
 
 			// register importer / exporter
 			sbmlformat = new SBMLFormat(this);
+			long quota = PreferenceManager.getCurrent().getInt(
+					PlPreference.PL_IMPORT_CACHE_SIZE) * 1024L * 1024L;
+			if (quota > 0) {
+				sbmlformat.setImportCache(new ImportCache(importCacheDir,
+						quota));
+			}
+			sbmlformat.getExportOptions().setIncremental(
+					PreferenceManager.getCurrent().getBoolean(
+							PlPreference.PL_EXPORT_INCREMENTAL));
 			desktop.getSwingEngine().getEngine().addPathwayExporter(sbmlformat);
 			desktop.getSwingEngine().getEngine().addPathwayImporter(sbmlformat);
 
@@ -372,7 +466,8 @@ public class SBMLPlugin implements Plugin {
 
 			Pathway pw = sbmlformat.doImport(tmp);
 
-			File tmp2 = new File(tmpDir, id + extension );
+			File tmp2 = new File(tmpDir, id + ".gpml");
+			LazyComments.materialize(pw);
 			pw.writeToXml(tmp2, true);
 
 			Engine engine = desktop.getSwingEngine().getEngine();
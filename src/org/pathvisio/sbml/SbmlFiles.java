@@ -0,0 +1,190 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.SBMLException;
+import org.sbml.jsbml.SBMLWriter;
+import org.sbml.jsbml.xml.stax.SBMLReader;
+
+/**
+ * Opens SBML files that may be gzip compressed.
+ * <p>
+ * Input is recognized as gzip by its magic bytes, so a compressed file
+ * without the .gz extension is read as well. Output is compressed when the
+ * file name ends with .gz. (De)compression is done while streaming, no
+ * temporary files are written.
+ */
+public class SbmlFiles {
+
+	public static final String GZIP_EXTENSION = "gz";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * shared by all streaming readers; DTDs and external entities are off,
+	 * SBML uses neither and the input may come from untrusted model dumps
+	 */
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory
+			.newInstance();
+	static {
+		INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		INPUT_FACTORY.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	}
+
+	private SbmlFiles() {
+	}
+
+	/** @return true if the file starts with the gzip magic bytes */
+	public static boolean isGzip(File file) throws IOException {
+		return startsWith(file, 0x1f, 0x8b);
+	}
+
+	/** @return true if the file starts with the zstd magic bytes */
+	static boolean isZstd(File file) throws IOException {
+		return startsWith(file, 0x28, 0xb5, 0x2f, 0xfd);
+	}
+
+	private static boolean startsWith(File file, int... magic)
+			throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			for (int b : magic) {
+				if (in.read() != b) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return a buffered stream of the uncompressed content of file */
+	public static InputStream openInput(File file) throws IOException {
+		if (isZstd(file)) {
+			throw new IOException("zstd compressed files are not supported: "
+					+ file);
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(file),
+				BUFFER_SIZE);
+		if (isGzip(file)) {
+			in = new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return in;
+	}
+
+	/**
+	 * @return a buffered stream to file, compressing the content if the name
+	 *         ends with .gz
+	 */
+	public static OutputStream openOutput(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+				BUFFER_SIZE);
+		if (isCompressedName(file.getName())) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		return out;
+	}
+
+	/** @return true if the name ends with .gz */
+	public static boolean isCompressedName(String name) {
+		return name.toLowerCase().endsWith("." + GZIP_EXTENSION);
+	}
+
+	/** @return the name without a trailing .gz */
+	public static String stripCompression(String name) {
+		if (isCompressedName(name)) {
+			return name.substring(0, name.length()
+					- GZIP_EXTENSION.length() - 1);
+		}
+		return name;
+	}
+
+	/** Reads a (possibly compressed) SBML file */
+	public static SBMLDocument readDocument(File file) throws IOException,
+			XMLStreamException {
+		InputStream in = openInput(file);
+		try {
+			return new SBMLReader().readSBMLFromStream(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes doc, compressed if the file name ends with .gz */
+	public static void writeDocument(SBMLDocument doc, File file)
+			throws IOException, XMLStreamException, SBMLException {
+		OutputStream out = openOutput(file);
+		try {
+			new SBMLWriter().write(doc, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return a streaming reader of in that doesn't read DTDs or external
+	 *         entities
+	 */
+	static XMLStreamReader createReader(InputStream in)
+			throws XMLStreamException {
+		return INPUT_FACTORY.createXMLStreamReader(in);
+	}
+
+	/**
+	 * @return the namespace of the root element of the (possibly compressed)
+	 *         file
+	 */
+	public static String getRootNamespace(File file) throws IOException,
+			XMLStreamException {
+		InputStream in = openInput(file);
+		try {
+			XMLStreamReader r = createReader(in);
+			try {
+				while (r.hasNext()) {
+					if (r.next() == XMLStreamConstants.START_ELEMENT) {
+						return r.getNamespaceURI();
+					}
+				}
+				return null;
+			} finally {
+				r.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -21,35 +21,93 @@ import java.io.File;
 
 import javax.swing.JOptionPane;
 
+import org.pathvisio.core.model.ConverterException;
 import org.pathvisio.core.model.Pathway;
+import org.pathvisio.sbml.peer.ImportOptions;
 import org.pathvisio.sbml.peer.PeerModel;
 import org.sbml.jsbml.SBMLDocument;
-import org.sbml.jsbml.xml.stax.SBMLReader;
 
 public class SbmlImportHelper {
 	private PeerModel br;
 	SBMLDocument doc;
+	private final ImportOptions options;
+	private final boolean interactive;
 
+	public SbmlImportHelper() {
+		this(new ImportOptions(), true);
+	}
+
+	/**
+	 * @param interactive
+	 *            if false, no dialogs are shown; failures are only reported
+	 *            through exceptions
+	 */
+	public SbmlImportHelper(ImportOptions options, boolean interactive) {
+		this.options = options;
+		this.interactive = interactive;
+	}
+
+	/**
+	 * @return true if the file is imported with the streaming reader, which
+	 *         gives a pathway without peers
+	 */
+	static boolean isStreamed(File file, ImportOptions options) {
+		return options.isStreaming(file)
+				&& SbmlStreamImportHelper.isStreamable(file);
+	}
 
-	public Pathway doImport(File file) {
+	public Pathway doImport(File file) throws ConverterException {
+		if (isStreamed(file, options)) {
+			return doStreamingImport(file);
+		}
 		try {
-			doc = new SBMLReader()
-			.readSBML(file.getAbsolutePath());
+			doc = SbmlFiles.readDocument(file);
 
-			br = PeerModel.createFromDoc(doc);
-			if(br.getDoc().getErrorCount() == 0)
-			JOptionPane.showMessageDialog(null, "Model Imported succesfully");
+			br = PeerModel.createFromDoc(doc, options);
 		}
 		catch (Exception ex) {
-			System.out.println(ex.getStackTrace());
-			System.out.println("WARNING :" + doc.getModel().getName()
-					+ " could not be converted." +br.getDoc().getErrorCount()+" errors and warnings encountered. Check log for more details.");
+			System.out.println("WARNING :" + file.getName()
+					+ " could not be converted.");
+			throw new ConverterException(ex);
+		}
+		if (interactive && br.getDoc().getErrorCount() == 0) {
+			JOptionPane.showMessageDialog(null, "Model Imported succesfully");
 		}
 		return br.getPathway();
 	}
 
+	/**
+	 * Large models are converted straight from the file, without a JSBML
+	 * document.
+	 */
+	private Pathway doStreamingImport(File file) throws ConverterException {
+		Pathway pathway;
+		try {
+			pathway = new SbmlStreamImportHelper().doImport(file);
+		} catch (Exception ex) {
+			System.out.println("WARNING :" + file.getName()
+					+ " could not be converted.");
+			throw new ConverterException(ex);
+		}
+		if (interactive) {
+			JOptionPane.showMessageDialog(null, "Model Imported succesfully");
+		}
+		return pathway;
+	}
+
+	/**
+	 * @return the SBML document of the last import, or null if it was
+	 *         streamed
+	 */
 	public SBMLDocument getDocument() {
-		return br.getDoc();
+		return br == null ? null : br.getDoc();
+	}
+
+	/**
+	 * @return the peers of the last import, or null if it was streamed
+	 */
+	public PeerModel getPeerModel() {
+		return br;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,201 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.ReactionIndex.Connections;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.ext.layout.BoundingBox;
+import org.sbml.jsbml.ext.layout.CompartmentGlyph;
+import org.sbml.jsbml.ext.layout.Curve;
+import org.sbml.jsbml.ext.layout.CurveSegment;
+import org.sbml.jsbml.ext.layout.ExtendedLayoutModel;
+import org.sbml.jsbml.ext.layout.GraphicalObject;
+import org.sbml.jsbml.ext.layout.Layout;
+import org.sbml.jsbml.ext.layout.LayoutConstants;
+import org.sbml.jsbml.ext.layout.ReactionGlyph;
+import org.sbml.jsbml.ext.layout.SpeciesGlyph;
+import org.sbml.jsbml.ext.layout.SpeciesReferenceGlyph;
+import org.sbml.jsbml.ext.layout.SpeciesReferenceRole;
+
+/**
+ * Writes the positions of a pathway into the SBML layout extension: a glyph
+ * for every compartment and species, and a glyph for every reaction whose
+ * curve follows the ports of its process node. Each arc becomes a species
+ * reference glyph with a straight curve.
+ * <p>
+ * Positions are the top left corner of an element, as the layout
+ * specification has it.
+ */
+class SbmlLayoutWriter {
+
+	static final String LAYOUT_ID = "pathvisio_layout";
+
+	private final ExportPreflight preflight;
+	private final List<PathwayElement> species;
+	/** glyph graph id -> species id, null if they are the same */
+	private final Map<String, String> speciesIds;
+	/** graph ids of the species glyphs written so far */
+	private final Set<String> written = new HashSet<String>();
+
+	SbmlLayoutWriter(ExportPreflight preflight) {
+		this(preflight, preflight.getSpecies(), null);
+	}
+
+	/**
+	 * @param species
+	 *            the elements that get a species glyph
+	 * @param speciesIds
+	 *            species id of each of those elements by graph id
+	 */
+	SbmlLayoutWriter(ExportPreflight preflight, List<PathwayElement> species,
+			Map<String, String> speciesIds) {
+		this.preflight = preflight;
+		this.species = species;
+		this.speciesIds = speciesIds;
+	}
+
+	/** Adds a new layout to the model of doc */
+	Layout write(SBMLDocument doc) {
+		// SBMLWriter doesn't declare the prefix of the curve segment types
+		doc.addNamespace("xsi", "xmlns", SbmlStreamWriter.XSI_NS);
+
+		Model model = doc.getModel();
+		ExtendedLayoutModel ext = (ExtendedLayoutModel) model
+				.getExtension(LayoutConstants.namespaceURI);
+		if (ext == null) {
+			ext = new ExtendedLayoutModel(model);
+			model.addExtension(LayoutConstants.namespaceURI, ext);
+		}
+		Layout layout = ext.createLayout(LAYOUT_ID);
+
+		double width = 0;
+		double height = 0;
+		for (PathwayElement elt : preflight.getCompartments()) {
+			if (model.getCompartment(elt.getGraphId()) != null) {
+				CompartmentGlyph g = layout.createCompartmentGlyph(
+						PeerModel.glyphId(elt.getGraphId()), elt.getGraphId());
+				setBounds(g, elt);
+			}
+			width = Math.max(width, elt.getMLeft() + elt.getMWidth());
+			height = Math.max(height, elt.getMTop() + elt.getMHeight());
+		}
+		for (PathwayElement elt : species) {
+			String sid = getSpeciesId(elt.getGraphId());
+			if (sid != null && model.getSpecies(sid) != null) {
+				SpeciesGlyph g = layout.createSpeciesGlyph(
+						PeerModel.glyphId(elt.getGraphId()), sid);
+				setBounds(g, elt);
+				written.add(elt.getGraphId());
+			}
+			width = Math.max(width, elt.getMLeft() + elt.getMWidth());
+			height = Math.max(height, elt.getMTop() + elt.getMHeight());
+		}
+		for (Connections c : preflight.getIndex().getReactions()) {
+			String id = c.getProcessNode().getGraphId();
+			if (model.getReaction(id) != null) {
+				writeReaction(layout, c);
+			}
+		}
+		layout.createDimensions(width, height, 0);
+		return layout;
+	}
+
+	private String getSpeciesId(String graphId) {
+		if (speciesIds == null) {
+			return graphId;
+		}
+		return speciesIds.get(graphId);
+	}
+
+	private void writeReaction(Layout layout, Connections c) {
+		PathwayElement pn = c.getProcessNode();
+		ReactionGlyph g = layout.createReactionGlyph(
+				PeerModel.glyphId(pn.getGraphId()), pn.getGraphId());
+		setBounds(g, pn);
+		Curve curve = createCurve(g);
+		for (PathwayElement port : c.ports) {
+			// ports start at the process node, the curve goes through it
+			if (curve.getListOfCurveSegments().isEmpty()) {
+				addSegment(curve, port.getMEndX(), port.getMEndY(),
+						port.getMStartX(), port.getMStartY());
+			} else {
+				addSegment(curve, port.getMStartX(), port.getMStartY(),
+						port.getMEndX(), port.getMEndY());
+			}
+		}
+		if (!curve.getListOfCurveSegments().isEmpty()) {
+			g.setCurve(curve);
+		}
+		addReferences(g, c.reactantArcs, SpeciesReferenceRole.SUBSTRATE, true);
+		addReferences(g, c.productArcs, SpeciesReferenceRole.PRODUCT, false);
+		addReferences(g, c.modifierArcs, SpeciesReferenceRole.MODIFIER, true);
+	}
+
+	/**
+	 * @param atStart
+	 *            true if the species is at the start of the arcs
+	 */
+	private void addReferences(ReactionGlyph g, List<PathwayElement> arcs,
+			SpeciesReferenceRole role, boolean atStart) {
+		for (PathwayElement arc : arcs) {
+			String species = atStart ? arc.getStartGraphRef() : arc
+					.getEndGraphRef();
+			if (!written.contains(species)) {
+				continue;
+			}
+			SpeciesReferenceGlyph srg = g.createSpeciesReferenceGlyph(
+					PeerModel.glyphId(arc.getGraphId()),
+					PeerModel.glyphId(species));
+			srg.setRole(role);
+			Curve curve = createCurve(g);
+			addSegment(curve, arc.getMStartX(), arc.getMStartY(),
+					arc.getMEndX(), arc.getMEndY());
+			srg.setCurve(curve);
+		}
+	}
+
+	private static Curve createCurve(GraphicalObject parent) {
+		Curve curve = new Curve();
+		curve.setLevel(parent.getLevel());
+		curve.setVersion(parent.getVersion());
+		return curve;
+	}
+
+	private static void addSegment(Curve curve, double x1, double y1,
+			double x2, double y2) {
+		CurveSegment s = new CurveSegment();
+		s.setType("LineSegment");
+		s.createStart(x1, y1, 0);
+		s.createEnd(x2, y2, 0);
+		curve.getListOfCurveSegments().add(s);
+	}
+
+	static void setBounds(GraphicalObject g, PathwayElement elt) {
+		BoundingBox bb = g.createBoundingBox(elt.getMWidth(),
+				elt.getMHeight(), 0);
+		bb.createPosition(elt.getMLeft(), elt.getMTop(), 0);
+	}
+}
@@ -0,0 +1,363 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.GraphLink.GraphIdContainer;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbgn.SbgnTemplates;
+import org.pathvisio.sbml.peer.AnnotationResolver;
+import org.pathvisio.sbml.peer.OccupancyGrid;
+import org.pathvisio.sbml.peer.PeerCompartment;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbgn.ArcClazz;
+import org.sbgn.GlyphClazz;
+
+/**
+ * Imports an SBML file without building a JSBML document first.
+ * <p>
+ * The file is walked with a StAX cursor and pathway elements are created as
+ * soon as a reaction has been read completely, placed the same way as
+ * {@link PeerModel} does. Only the species id index and the placement state
+ * are kept in memory, so peak heap scales with the largest reaction rather
+ * than with the whole model. Documents that use the layout or qual packages
+ * need the JSBML object tree and should be imported with {@link PeerModel}.
+ * <p>
+ * Level 1 documents are read too: they call species "specie" in version 1
+ * and identify species and reactions by their name.
+ *
+ * @see #isStreamable(File)
+ */
+public class SbmlStreamImportHelper {
+
+	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+	private static final int REACTANTS = 0;
+	private static final int PRODUCTS = 1;
+	private static final int MODIFIERS = 2;
+
+	private final Pathway pwy = new Pathway();
+
+	/** species id -> first MIRIAM resource, or null if not annotated */
+	private final Map<String, String> speciesIndex = new LinkedHashMap<String, String>();
+	/** species id -> name, only for species that have one */
+	private final Map<String, String> speciesNames = new HashMap<String, String>();
+	/** species id -> compartment id, only for species that have one */
+	private final Map<String, String> speciesCompartments = new HashMap<String, String>();
+	/** species id -> element that currently carries that graph id */
+	private final Map<String, PathwayElement> speciesElements = new HashMap<String, PathwayElement>();
+
+	private String sbmlNs;
+	/** level 1 identifies elements by their name attribute */
+	private boolean level1;
+
+	// state of the species or reaction being read
+	private String currentSpecies;
+	private String currentResource;
+	private boolean inAnnotation;
+	private String currentReaction;
+	private int currentRole;
+	private final List<List<String>> currentRefs = new ArrayList<List<String>>();
+
+	private double xco = 500;
+	private double yco = 500;
+	private final OccupancyGrid grid = new OccupancyGrid();
+
+	SbmlStreamImportHelper() {
+		for (int i = 0; i <= MODIFIERS; i++) {
+			currentRefs.add(new ArrayList<String>());
+		}
+	}
+
+	/**
+	 * Checks the namespaces declared on the root element. Only documents
+	 * without the layout and qual packages can be streamed.
+	 */
+	public static boolean isStreamable(File file) {
+		try {
+			InputStream in = SbmlFiles.openInput(file);
+			try {
+				XMLStreamReader r = SbmlFiles.createReader(in);
+				try {
+					while (r.hasNext()) {
+						if (r.next() == XMLStreamConstants.START_ELEMENT) {
+							for (int i = 0; i < r.getNamespaceCount(); i++) {
+								String ns = r.getNamespaceURI(i);
+								if (ns != null
+										&& (ns.contains("layout") || ns
+												.contains("qual"))) {
+									return false;
+								}
+							}
+							return true;
+						}
+					}
+				} finally {
+					r.close();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			Logger.log.warn("Could not read root element of " + file, e);
+		}
+		return false;
+	}
+
+	public Pathway doImport(File file) throws XMLStreamException, IOException {
+		InputStream in = SbmlFiles.openInput(file);
+		try {
+			XMLStreamReader r = SbmlFiles.createReader(in);
+			try {
+				read(r);
+			} finally {
+				r.close();
+			}
+		} finally {
+			in.close();
+		}
+		doSpecies();
+		return pwy;
+	}
+
+	private void read(XMLStreamReader r) throws XMLStreamException {
+		while (r.hasNext()) {
+			switch (r.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				startElement(r);
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				endElement(r);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private void startElement(XMLStreamReader r) {
+		String name = r.getLocalName();
+		String ns = r.getNamespaceURI();
+		if (sbmlNs == null) {
+			// root element
+			sbmlNs = ns;
+			String level = r.getAttributeValue(null, "level");
+			String version = r.getAttributeValue(null, "version");
+			pwy.getMappInfo().setDynamicProperty("SBML_Level", level);
+			pwy.getMappInfo().setDynamicProperty("SBML_Version", version);
+			level1 = "1".equals(level);
+			return;
+		}
+		if (inAnnotation) {
+			if (currentResource == null && RDF_NS.equals(ns)
+					&& "li".equals(name)) {
+				currentResource = r.getAttributeValue(RDF_NS, "resource");
+			}
+			return;
+		}
+		if (!sbmlNs.equals(ns)) {
+			return;
+		}
+		if ("model".equals(name)) {
+			pwy.getMappInfo().setMapInfoName(r.getAttributeValue(null, "id"));
+			pwy.getMappInfo().setMapInfoDataSource("Converted from SBML");
+		} else if ("species".equals(name) || "specie".equals(name)) {
+			currentSpecies = getId(r);
+			currentResource = null;
+			String label = r.getAttributeValue(null, "name");
+			if (label != null && label.length() > 0) {
+				speciesNames.put(currentSpecies, label);
+			}
+			String compartment = r.getAttributeValue(null, "compartment");
+			if (compartment != null && compartment.length() > 0) {
+				speciesCompartments.put(currentSpecies, compartment);
+			}
+		} else if ("annotation".equals(name) && currentSpecies != null) {
+			inAnnotation = true;
+		} else if ("reaction".equals(name)) {
+			currentReaction = getId(r);
+			for (List<String> refs : currentRefs) {
+				refs.clear();
+			}
+		} else if ("listOfReactants".equals(name)) {
+			currentRole = REACTANTS;
+		} else if ("listOfProducts".equals(name)) {
+			currentRole = PRODUCTS;
+		} else if ("listOfModifiers".equals(name)) {
+			currentRole = MODIFIERS;
+		} else if (("speciesReference".equals(name)
+				|| "specieReference".equals(name) || "modifierSpeciesReference"
+					.equals(name)) && currentReaction != null) {
+			currentRefs.get(currentRole).add(
+					r.getAttributeValue(null, "species"));
+		}
+	}
+
+	/** @return the identifier of a species or reaction */
+	private String getId(XMLStreamReader r) {
+		return r.getAttributeValue(null, level1 ? "name" : "id");
+	}
+
+	private void endElement(XMLStreamReader r) {
+		String name = r.getLocalName();
+		if (inAnnotation) {
+			if ("annotation".equals(name) && sbmlNs.equals(r.getNamespaceURI())) {
+				inAnnotation = false;
+			}
+			return;
+		}
+		if (("species".equals(name) || "specie".equals(name))
+				&& currentSpecies != null) {
+			speciesIndex.put(currentSpecies, currentResource);
+			currentSpecies = null;
+			currentResource = null;
+		} else if ("reaction".equals(name) && currentReaction != null) {
+			doReaction(currentReaction, currentRefs.get(REACTANTS),
+					currentRefs.get(PRODUCTS), currentRefs.get(MODIFIERS));
+			currentReaction = null;
+		}
+	}
+
+	/** Same placement as PeerModel.doReactions, for a single reaction */
+	private void doReaction(String id, List<String> reactants,
+			List<String> products, List<String> modifiers) {
+		Point2D slot = grid.place(xco, yco, 3 * PeerModel.M_PN, PeerModel.M_PN);
+		double x = slot.getX();
+		double y = slot.getY();
+		PathwayElement[] process = SbgnTemplates.createProcessNode(pwy,
+				GlyphClazz.PROCESS, x, y, PeerModel.M_PN, id);
+		for (PathwayElement elt : process) {
+			pwy.add(elt);
+		}
+		GraphIdContainer port1 = process[0].getMAnchors().get(0);
+		GraphIdContainer port2 = process[1].getMAnchors().get(0);
+
+		boolean next = true;
+		if (reactants.size() > 0 && products.size() > 0) {
+			String sid = products.get(0);
+			PathwayElement pelt = speciesElements.remove(sid);
+			if (pelt != null) {
+				pelt.setGraphId(pwy.getUniqueGraphId());
+				xco = pelt.getMCenterX() + 100;
+				yco = pelt.getMCenterY();
+				next = false;
+			}
+		}
+		if (next) {
+			nextLocation();
+		}
+
+		double yy = y;
+		for (String sid : products) {
+			PathwayElement pelt = createOrGetSpecies(sid, x + 80, yy,
+					GlyphClazz.SIMPLE_CHEMICAL);
+			PathwayElement arc = SbgnTemplates.createArc(pwy,
+					ArcClazz.PRODUCTION, x + PeerModel.M_PN, y, port2,
+					pelt.getMLeft(), pelt.getMCenterY(), pelt);
+			pwy.add(annotate(arc, sid));
+			yy += 20;
+		}
+
+		yy = y;
+		for (String sid : reactants) {
+			PathwayElement pelt = createOrGetSpecies(sid, x - 80, yy,
+					GlyphClazz.SIMPLE_CHEMICAL);
+			PathwayElement arc = SbgnTemplates.createArc(pwy,
+					ArcClazz.CONSUMPTION, pelt.getMLeft() + pelt.getMWidth(),
+					pelt.getMCenterY(), pelt, x - PeerModel.M_PN, y, port1);
+			pwy.add(annotate(arc, sid));
+			yy += 20;
+		}
+
+		for (String sid : modifiers) {
+			PathwayElement pelt = createOrGetSpecies(sid, x, y - 80,
+					GlyphClazz.MACROMOLECULE);
+			PathwayElement arc = SbgnTemplates.createArc(pwy,
+					ArcClazz.CATALYSIS, pelt.getMCenterX(), pelt.getMTop()
+							+ pelt.getMHeight(), pelt, x, y, process[2]);
+			pwy.add(annotate(arc, sid));
+		}
+	}
+
+	/** adds the species that are not part of any reaction */
+	private void doSpecies() {
+		for (String sid : speciesIndex.keySet()) {
+			if (!speciesElements.containsKey(sid)) {
+				nextLocation();
+				createOrGetSpecies(sid, xco, yco,
+						GlyphClazz.BIOLOGICAL_ACTIVITY);
+			}
+		}
+	}
+
+	private PathwayElement createOrGetSpecies(String sId, double prefX,
+			double prefY, GlyphClazz gc) {
+		PathwayElement pelt = speciesElements.get(sId);
+		if (pelt == null) {
+			pelt = SbgnTemplates.createGlyph(gc, pwy, 0, 0);
+			pelt.setGraphId(sId);
+			Point2D p = grid.place(prefX, prefY, pelt.getMWidth(),
+					pelt.getMHeight());
+			pelt.setMCenterX(p.getX());
+			pelt.setMCenterY(p.getY());
+			// the same label as PeerModel gives it
+			String label = speciesNames.get(sId);
+			pelt.setTextLabel(label != null ? label : sId);
+			String compartment = speciesCompartments.get(sId);
+			if (compartment != null) {
+				pelt.setDynamicProperty(PeerCompartment.PROPERTY_COMPARTMENT,
+						compartment);
+			}
+			pwy.add(annotate(pelt, sId));
+			speciesElements.put(sId, pelt);
+		}
+		return pelt;
+	}
+
+	private PathwayElement annotate(PathwayElement pelt, String sId) {
+		String resource = speciesIndex.get(sId);
+		if (resource != null) {
+			AnnotationResolver.getDefault().annotate(pelt, resource);
+		}
+		return pelt;
+	}
+
+	private void nextLocation() {
+		yco += 150;
+		if (yco > 1000) {
+			yco = 30;
+			xco += 300;
+		}
+	}
+
+}
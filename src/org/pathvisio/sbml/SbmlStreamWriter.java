@@ -0,0 +1,546 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbgn.SbgnFormat;
+import org.pathvisio.sbml.ReactionIndex.Connections;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbgn.GlyphClazz;
+import org.sbml.jsbml.ext.layout.LayoutConstants;
+
+/**
+ * Writes a pathway as SBML while walking it, without building a JSBML
+ * document.
+ * <p>
+ * Gives the same elements as the JSBML based export in
+ * {@link SbmlExportHelper}: a compartment for every compartment glyph, a
+ * species for every entity pool node and a reaction for every process node,
+ * but no layout. Only the export preflight and the writer's buffer are kept
+ * in memory.
+ * <p>
+ * Levels 2 and 3 are written, with the attributes each level requires.
+ * Level 1 names elements differently and has no metaids; it is left to the
+ * JSBML based export.
+ */
+class SbmlStreamWriter {
+
+	private static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String BQBIOL_NS = "http://biomodels.net/biology-qualifiers/";
+	private static final String BQMODEL_NS = "http://biomodels.net/model-qualifiers/";
+	static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+	static final String LAYOUT_NS = LayoutConstants.namespaceURI;
+
+	private final Pathway pathway;
+	private final ExportPreflight preflight;
+	private XMLStreamWriter w;
+	private int depth;
+	private int level;
+	private int version;
+
+	SbmlStreamWriter(Pathway pathway, ExportPreflight preflight) {
+		this.pathway = pathway;
+		this.preflight = preflight;
+	}
+
+	/** writer for fragments, see {@link #speciesFragment} */
+	private SbmlStreamWriter(XMLStreamWriter w, int depth, int level,
+			int version) {
+		this(null, null);
+		this.w = w;
+		this.depth = depth;
+		this.level = level;
+		this.version = version;
+	}
+
+	/** @return true if documents of this level can be written */
+	static boolean supports(int level) {
+		return level >= 2;
+	}
+
+	/**
+	 * @return the species element of elt, indented for the given depth and
+	 *         starting with a line break
+	 */
+	static String speciesFragment(PathwayElement elt, int level,
+			int version, int depth) throws XMLStreamException {
+		StringWriter out = new StringWriter();
+		XMLStreamWriter w = XMLOutputFactory.newInstance()
+				.createXMLStreamWriter(out);
+		new SbmlStreamWriter(w, depth, level, version).writeSpecies(elt,
+				ExportPreflight.compartmentOf(elt),
+				ExportPreflight.annotationUri(elt));
+		w.flush();
+		w.close();
+		return out.toString();
+	}
+
+	/**
+	 * @return the reaction element of c, indented for the given depth and
+	 *         starting with a line break
+	 */
+	static String reactionFragment(Connections c, int level, int version,
+			int depth) throws XMLStreamException {
+		StringWriter out = new StringWriter();
+		XMLStreamWriter w = XMLOutputFactory.newInstance()
+				.createXMLStreamWriter(out);
+		new SbmlStreamWriter(w, depth, level, version).writeReaction(c);
+		w.flush();
+		w.close();
+		return out.toString();
+	}
+
+	/**
+	 * @param name
+	 *            may be null
+	 * @return the compartment element, indented for the given depth and
+	 *         starting with a line break
+	 */
+	static String compartmentFragment(String id, String name, int level,
+			int version, int depth) throws XMLStreamException {
+		StringWriter out = new StringWriter();
+		XMLStreamWriter w = XMLOutputFactory.newInstance()
+				.createXMLStreamWriter(out);
+		new SbmlStreamWriter(w, depth, level, version).writeCompartment(id,
+				name);
+		w.flush();
+		w.close();
+		return out.toString();
+	}
+
+	/**
+	 * @param element
+	 *            compartmentGlyph or speciesGlyph
+	 * @param reference
+	 *            id of the compartment or species shown by the glyph
+	 * @return the layout glyph of elt, written like {@link SbmlLayoutWriter}
+	 *         does, indented for the given depth and starting with a line
+	 *         break. The layout prefix is declared by the enclosing list of
+	 *         layouts.
+	 */
+	static String glyphFragment(String element, String reference,
+			PathwayElement elt, int depth) throws XMLStreamException {
+		StringWriter out = new StringWriter();
+		XMLStreamWriter w = XMLOutputFactory.newInstance()
+				.createXMLStreamWriter(out);
+		new SbmlStreamWriter(w, depth, 0, 0).writeGlyph(element,
+				element.equals("compartmentGlyph") ? "compartment"
+						: "species", reference, elt);
+		w.flush();
+		w.close();
+		return out.toString();
+	}
+
+	/**
+	 * @param species
+	 *            graph ids of the species that have a glyph; arcs to other
+	 *            species get no reference glyph
+	 * @return the reaction glyph of c, written like {@link SbmlLayoutWriter}
+	 *         does, see {@link #glyphFragment}
+	 */
+	static String reactionGlyphFragment(Connections c, Set<String> species,
+			int depth) throws XMLStreamException {
+		StringWriter out = new StringWriter();
+		XMLStreamWriter w = XMLOutputFactory.newInstance()
+				.createXMLStreamWriter(out);
+		new SbmlStreamWriter(w, depth, 0, 0).writeReactionGlyph(c, species);
+		w.flush();
+		w.close();
+		return out.toString();
+	}
+
+	/** @return v without a fraction if it has none, as SBMLWriter does */
+	static String number(double v) {
+		if (v == Math.rint(v) && !Double.isInfinite(v)
+				&& Math.abs(v) < Long.MAX_VALUE) {
+			return String.valueOf((long) v);
+		}
+		return String.valueOf(v);
+	}
+
+	/**
+	 * @return the SBML core namespace of a level and version
+	 * @throws IllegalArgumentException
+	 *             for levels that can't be written, see {@link #supports(int)}
+	 */
+	static String namespace(int level, int version) {
+		if (!supports(level)) {
+			throw new IllegalArgumentException("SBML level " + level
+					+ " can't be streamed");
+		}
+		if (level == 2) {
+			return version == 1 ? "http://www.sbml.org/sbml/level2"
+					: "http://www.sbml.org/sbml/level2/version" + version;
+		}
+		return "http://www.sbml.org/sbml/level" + level + "/version"
+				+ version + "/core";
+	}
+
+	void write(File file) throws IOException, XMLStreamException {
+		OutputStream out = SbmlFiles.openOutput(file);
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	void write(OutputStream out) throws XMLStreamException {
+		level = Integer.parseInt(pathway.getMappInfo().getDynamicProperty(
+				"SBML_Level"));
+		version = Integer.parseInt(pathway.getMappInfo().getDynamicProperty(
+				"SBML_Version"));
+		String ns = namespace(level, version);
+
+		w = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+		w.writeStartDocument("UTF-8", "1.0");
+		start("sbml");
+		w.writeDefaultNamespace(ns);
+		w.writeAttribute("level", String.valueOf(level));
+		w.writeAttribute("version", String.valueOf(version));
+		start("model");
+		w.writeAttribute("id", pathway.getMappInfo().getMapInfoName());
+
+		if (!preflight.getCompartments().isEmpty()
+				|| !preflight.getImplicitCompartments().isEmpty()) {
+			start("listOfCompartments");
+			for (PathwayElement elt : preflight.getCompartments()) {
+				writeCompartment(elt.getGraphId(), elt.getTextLabel());
+			}
+			for (String id : preflight.getImplicitCompartments()) {
+				writeCompartment(id, null);
+			}
+			end();
+		}
+
+		if (!preflight.getSpecies().isEmpty()) {
+			start("listOfSpecies");
+			for (PathwayElement elt : preflight.getSpecies()) {
+				writeSpecies(elt, ExportPreflight.compartmentOf(elt),
+						preflight.getAnnotation(elt));
+			}
+			end();
+		}
+
+		ReactionIndex index = preflight.getIndex();
+		if (!index.getReactions().isEmpty()) {
+			start("listOfReactions");
+			for (Connections c : index.getReactions()) {
+				writeReaction(c);
+			}
+			end();
+		}
+
+		end(); // model
+		end(); // sbml
+		w.writeEndDocument();
+		w.flush();
+		w.close();
+	}
+
+	/** @return true if elt is exported as an SBML species */
+	static boolean isSpecies(PathwayElement elt) {
+		if (elt.getObjectType() == ObjectType.LINE) {
+			return false;
+		}
+		String sbgnClass = elt
+				.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS);
+		if (sbgnClass == null) {
+			return false;
+		}
+		switch (GlyphClazz.fromClazz(sbgnClass)) {
+		case SIMPLE_CHEMICAL:
+		case SIMPLE_CHEMICAL_MULTIMER:
+		case MACROMOLECULE:
+		case MACROMOLECULE_MULTIMER:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private void writeCompartment(String id, String name)
+			throws XMLStreamException {
+		empty("compartment");
+		w.writeAttribute("id", id);
+		if (name != null && !name.isEmpty()) {
+			w.writeAttribute("name", name);
+		}
+		if (level >= 3) {
+			w.writeAttribute("constant", "true");
+		}
+	}
+
+	/** @param uri annotation of the species, or null */
+	private void writeSpecies(PathwayElement elt, String compartment,
+			String uri) throws XMLStreamException {
+		if (uri == null) {
+			empty("species");
+			writeSpeciesAttributes(elt, compartment);
+			return;
+		}
+		String metaid = "metaid_" + elt.getGraphId();
+		start("species");
+		w.writeAttribute("metaid", metaid);
+		writeSpeciesAttributes(elt, compartment);
+		start("annotation");
+		start("rdf", "RDF", RDF_NS);
+		w.writeNamespace("rdf", RDF_NS);
+		w.writeNamespace("bqbiol", BQBIOL_NS);
+		w.writeNamespace("bqmodel", BQMODEL_NS);
+		start("rdf", "Description", RDF_NS);
+		w.writeAttribute("rdf", RDF_NS, "about", "#" + metaid);
+		start("bqbiol", "is", BQBIOL_NS);
+		start("rdf", "Bag", RDF_NS);
+		empty("rdf", "li", RDF_NS);
+		w.writeAttribute("rdf", RDF_NS, "resource", uri);
+		end(); // Bag
+		end(); // is
+		end(); // Description
+		end(); // RDF
+		end(); // annotation
+		end(); // species
+	}
+
+	private void writeSpeciesAttributes(PathwayElement elt, String compartment)
+			throws XMLStreamException {
+		w.writeAttribute("id", elt.getGraphId());
+		w.writeAttribute("compartment", compartment);
+		if (level >= 3) {
+			w.writeAttribute("hasOnlySubstanceUnits", "false");
+			w.writeAttribute("boundaryCondition", "false");
+			w.writeAttribute("constant", "false");
+		}
+	}
+
+	private void writeReaction(Connections c) throws XMLStreamException {
+		String id = c.getProcessNode().getGraphId();
+		if (c.reactants.isEmpty() && c.products.isEmpty()
+				&& c.modifiers.isEmpty()) {
+			empty("reaction");
+			writeReactionAttributes(id);
+			return;
+		}
+		start("reaction");
+		writeReactionAttributes(id);
+		writeReferences("listOfReactants", "speciesReference", c.reactants);
+		writeReferences("listOfProducts", "speciesReference", c.products);
+		writeReferences("listOfModifiers", "modifierSpeciesReference",
+				c.modifiers);
+		end();
+	}
+
+	private void writeReactionAttributes(String id) throws XMLStreamException {
+		w.writeAttribute("id", id);
+		if (level >= 3) {
+			// process nodes are irreversible
+			w.writeAttribute("reversible", "false");
+			if (level == 3 && version == 1) {
+				w.writeAttribute("fast", "false");
+			}
+		}
+	}
+
+	private void writeReferences(String list, String element,
+			List<String> species) throws XMLStreamException {
+		if (species.isEmpty()) {
+			return;
+		}
+		start(list);
+		for (String sid : species) {
+			empty(element);
+			w.writeAttribute("species", sid);
+			if (level >= 3 && "speciesReference".equals(element)) {
+				w.writeAttribute("constant", "true");
+			}
+		}
+		end();
+	}
+
+	// layout glyphs, see SbmlLayoutWriter
+
+	private void writeGlyph(String element, String attribute,
+			String reference, PathwayElement elt) throws XMLStreamException {
+		start("layout", element, LAYOUT_NS);
+		w.writeAttribute("layout", LAYOUT_NS, "id",
+				PeerModel.glyphId(elt.getGraphId()));
+		w.writeAttribute("layout", LAYOUT_NS, attribute, reference);
+		writeBoundingBox(elt);
+		end();
+	}
+
+	private void writeReactionGlyph(Connections c, Set<String> species)
+			throws XMLStreamException {
+		PathwayElement pn = c.getProcessNode();
+		start("layout", "reactionGlyph", LAYOUT_NS);
+		w.writeAttribute("layout", LAYOUT_NS, "id",
+				PeerModel.glyphId(pn.getGraphId()));
+		w.writeAttribute("layout", LAYOUT_NS, "reaction", pn.getGraphId());
+		writeBoundingBox(pn);
+		if (!c.ports.isEmpty()) {
+			start("layout", "curve", LAYOUT_NS);
+			start("layout", "listOfCurveSegments", LAYOUT_NS);
+			boolean first = true;
+			for (PathwayElement port : c.ports) {
+				// ports start at the process node, the curve goes through it
+				if (first) {
+					writeSegment(port.getMEndX(), port.getMEndY(),
+							port.getMStartX(), port.getMStartY());
+					first = false;
+				} else {
+					writeSegment(port.getMStartX(), port.getMStartY(),
+							port.getMEndX(), port.getMEndY());
+				}
+			}
+			end();
+			end();
+		}
+		if (hasReferenceGlyph(c.reactantArcs, species, true)
+				|| hasReferenceGlyph(c.productArcs, species, false)
+				|| hasReferenceGlyph(c.modifierArcs, species, true)) {
+			start("layout", "listOfSpeciesReferenceGlyphs", LAYOUT_NS);
+			writeReferenceGlyphs(c.reactantArcs, species, "substrate", true);
+			writeReferenceGlyphs(c.productArcs, species, "product", false);
+			writeReferenceGlyphs(c.modifierArcs, species, "modifier", true);
+			end();
+		}
+		end();
+	}
+
+	private static boolean hasReferenceGlyph(List<PathwayElement> arcs,
+			Set<String> species, boolean atStart) {
+		for (PathwayElement arc : arcs) {
+			if (species.contains(atStart ? arc.getStartGraphRef() : arc
+					.getEndGraphRef())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param atStart
+	 *            true if the species is at the start of the arcs
+	 */
+	private void writeReferenceGlyphs(List<PathwayElement> arcs,
+			Set<String> species, String role, boolean atStart)
+			throws XMLStreamException {
+		for (PathwayElement arc : arcs) {
+			String sid = atStart ? arc.getStartGraphRef() : arc
+					.getEndGraphRef();
+			if (!species.contains(sid)) {
+				continue;
+			}
+			start("layout", "speciesReferenceGlyph", LAYOUT_NS);
+			w.writeAttribute("layout", LAYOUT_NS, "id",
+					PeerModel.glyphId(arc.getGraphId()));
+			w.writeAttribute("layout", LAYOUT_NS, "role", role);
+			w.writeAttribute("layout", LAYOUT_NS, "speciesGlyph",
+					PeerModel.glyphId(sid));
+			start("layout", "curve", LAYOUT_NS);
+			start("layout", "listOfCurveSegments", LAYOUT_NS);
+			writeSegment(arc.getMStartX(), arc.getMStartY(), arc.getMEndX(),
+					arc.getMEndY());
+			end();
+			end();
+			end();
+		}
+	}
+
+	private void writeBoundingBox(PathwayElement elt)
+			throws XMLStreamException {
+		start("layout", "boundingBox", LAYOUT_NS);
+		writePoint("position", elt.getMLeft(), elt.getMTop());
+		empty("layout", "dimensions", LAYOUT_NS);
+		w.writeAttribute("layout", LAYOUT_NS, "height",
+				number(elt.getMHeight()));
+		w.writeAttribute("layout", LAYOUT_NS, "depth", "0");
+		w.writeAttribute("layout", LAYOUT_NS, "width",
+				number(elt.getMWidth()));
+		end();
+	}
+
+	private void writeSegment(double x1, double y1, double x2, double y2)
+			throws XMLStreamException {
+		start("layout", "curveSegment", LAYOUT_NS);
+		w.writeAttribute("xsi", XSI_NS, "type", "LineSegment");
+		writePoint("start", x1, y1);
+		writePoint("end", x2, y2);
+		end();
+	}
+
+	private void writePoint(String element, double x, double y)
+			throws XMLStreamException {
+		empty("layout", element, LAYOUT_NS);
+		w.writeAttribute("layout", LAYOUT_NS, "x", number(x));
+		w.writeAttribute("layout", LAYOUT_NS, "y", number(y));
+		w.writeAttribute("layout", LAYOUT_NS, "z", "0");
+	}
+
+	// indentation, two spaces per level like SBMLWriter
+
+	private void indent() throws XMLStreamException {
+		w.writeCharacters("\n");
+		for (int i = 0; i < depth; i++) {
+			w.writeCharacters("  ");
+		}
+	}
+
+	private void start(String name) throws XMLStreamException {
+		indent();
+		w.writeStartElement(name);
+		depth++;
+	}
+
+	private void start(String prefix, String name, String ns)
+			throws XMLStreamException {
+		indent();
+		w.writeStartElement(prefix, name, ns);
+		depth++;
+	}
+
+	private void empty(String name) throws XMLStreamException {
+		indent();
+		w.writeEmptyElement(name);
+	}
+
+	private void empty(String prefix, String name, String ns)
+			throws XMLStreamException {
+		indent();
+		w.writeEmptyElement(prefix, name, ns);
+	}
+
+	private void end() throws XMLStreamException {
+		depth--;
+		indent();
+		w.writeEndElement();
+	}
+}
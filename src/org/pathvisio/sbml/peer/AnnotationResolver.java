@@ -0,0 +1,259 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml.peer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+import org.pathvisio.core.debug.Logger;
+import org.pathvisio.core.model.DataNodeType;
+import org.pathvisio.core.model.PathwayElement;
+
+/**
+ * Translates MIRIAM resources to BridgeDb Xrefs and back.
+ * <p>
+ * Both the <code>urn:miriam:chebi:CHEBI%3A15422</code> and the
+ * <code>http://identifiers.org/chebi/CHEBI:15422</code> form are understood.
+ * Each resource is parsed once; the result is kept in a bounded map that can
+ * be shared between threads.
+ */
+public class AnnotationResolver {
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static final AnnotationResolver DEFAULT = new AnnotationResolver(
+			DEFAULT_CAPACITY);
+
+	private static final String URN_PREFIX = "urn:miriam:";
+
+	/**
+	 * MIRIAM namespace -> BridgeDb system code. Matched in this order with
+	 * contains(), the first entry of a system code is used for export.
+	 */
+	private static final String[][] NAMESPACES = new String[][] {
+			{ "chebi", "Ce" }, { "pubchem.substance", "Cps" },
+			{ "pubchem.compound", "Cpc" }, { "kegg.compound", "Ck" },
+			{ "kegg", "Ck" },
+			{ "cas", "Ca" }, { "uniprot", "S" } };
+
+	private static final Map<String, String> EXPORT_NAMESPACES = new HashMap<String, String>();
+	static {
+		for (String[] ns : NAMESPACES) {
+			if (!EXPORT_NAMESPACES.containsKey(ns[1])) {
+				EXPORT_NAMESPACES.put(ns[1], ns[0]);
+			}
+		}
+		EXPORT_NAMESPACES.put("T", "obo.go");
+	}
+
+	/** Cached result of parsing one resource */
+	public static class Resolved {
+		private final DataSource dataSource;
+		private final String id;
+		private final DataNodeType type;
+
+		Resolved(DataSource dataSource, String id, DataNodeType type) {
+			this.dataSource = dataSource;
+			this.id = id;
+			this.type = type;
+		}
+
+		public DataSource getDataSource() {
+			return dataSource;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public DataNodeType getDataNodeType() {
+			return type;
+		}
+	}
+
+	/** cached for resources that could not be resolved */
+	private static final Resolved UNRESOLVED = new Resolved(null, null, null);
+
+	private final ConcurrentMap<String, Resolved> cache = new ConcurrentHashMap<String, Resolved>();
+	private final int capacity;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/** @param capacity maximum number of cached resources */
+	public AnnotationResolver(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/** @return the resolver shared by import and export */
+	public static AnnotationResolver getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param uri
+	 *            a MIRIAM resource
+	 * @return the data source, id and data node type, or null if the resource
+	 *         can't be mapped to a known data source
+	 */
+	public Resolved resolve(String uri) {
+		Resolved result = cache.get(uri);
+		if (result != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			result = parse(uri);
+			if (cache.size() >= capacity) {
+				// drop an arbitrary entry, hub species are re-added right away
+				Iterator<String> it = cache.keySet().iterator();
+				if (it.hasNext()) {
+					it.next();
+					it.remove();
+				}
+			}
+			cache.putIfAbsent(uri, result);
+		}
+		return result == UNRESOLVED ? null : result;
+	}
+
+	/**
+	 * Sets the Xref and data node type of a pathway element from a MIRIAM
+	 * resource. The element is left unchanged if the resource can't be
+	 * resolved.
+	 *
+	 * @return the element
+	 */
+	public PathwayElement annotate(PathwayElement pelt, String uri) {
+		return apply(pelt, resolve(uri));
+	}
+
+	/**
+	 * Sets the Xref and data node type of a pathway element.
+	 *
+	 * @param r
+	 *            a result of {@link #resolve(String)}, may be null
+	 * @return the element
+	 */
+	public static PathwayElement apply(PathwayElement pelt, Resolved r) {
+		if (r != null) {
+			pelt.setDataSource(r.getDataSource());
+			pelt.setElementID(r.getId());
+			pelt.setDataNodeType(r.getDataNodeType());
+		}
+		return pelt;
+	}
+
+	/**
+	 * Reverse of {@link #resolve(String)}: the MIRIAM urn for an Xref, using
+	 * the same namespace table as the import.
+	 */
+	public String toUri(Xref xref) {
+		String ns = EXPORT_NAMESPACES.get(xref.getDataSource().getSystemCode());
+		if (ns == null) {
+			return xref.getURN();
+		}
+		return URN_PREFIX + ns + ":" + xref.getId().replace(":", "%3A");
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+
+	private static Resolved parse(String uri) {
+		String database;
+		String identifier;
+		if (uri.startsWith(URN_PREFIX)) {
+			String[] xe = uri.substring(URN_PREFIX.length()).split(":", 2);
+			if (xe.length < 2) {
+				return UNRESOLVED;
+			}
+			database = xe[0];
+			try {
+				identifier = URLDecoder.decode(xe[1], "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				identifier = xe[1];
+			}
+		} else {
+			// identifiers.org and other "http://.../namespace/id" forms
+			String[] de = uri.split("org/", 2);
+			if (de.length < 2) {
+				return UNRESOLVED;
+			}
+			String[] xe = de[1].split("/", 2);
+			if (xe.length < 2) {
+				return UNRESOLVED;
+			}
+			database = xe[0];
+			identifier = xe[1];
+		}
+
+		DataSource ds = null;
+		String lower = database.toLowerCase();
+		if (lower.equals("obo.go") || lower.equals("go")) {
+			ds = DataSource.getExistingBySystemCode("T");
+		} else {
+			for (String[] ns : NAMESPACES) {
+				if (lower.contains(ns[0])) {
+					ds = DataSource.getExistingBySystemCode(ns[1]);
+					break;
+				}
+			}
+		}
+		if (ds == null) {
+			ds = DataSource.getExistingByFullName(database.toUpperCase());
+		}
+		if (ds == null) {
+			ds = DataSource.getExistingByFullName(lower);
+		}
+		if (ds == null) {
+			Logger.log.warn("Could not find a match for " + database);
+			return UNRESOLVED;
+		}
+
+		DataNodeType type;
+		if ("Protein".equalsIgnoreCase(ds.getType())) {
+			type = DataNodeType.PROTEIN;
+		} else if ("Metabolite".equalsIgnoreCase(ds.getType())) {
+			type = DataNodeType.METABOLITE;
+		} else {
+			type = DataNodeType.GENEPRODUCT;
+		}
+		return new Resolved(ds, identifier, type);
+	}
+}
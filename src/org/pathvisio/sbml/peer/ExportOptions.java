@@ -0,0 +1,87 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml.peer;
+
+/**
+ * Settings that control how a pathway is written as SBML.
+ */
+public class ExportOptions {
+
+	private boolean streaming = false;
+	private boolean roundTrip = true;
+	private boolean layout = true;
+	private boolean incremental = false;
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * @param streaming
+	 *            if true, SBML is written while the pathway is walked instead
+	 *            of building a JSBML document first
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public boolean isRoundTrip() {
+		return roundTrip;
+	}
+
+	/**
+	 * @param roundTrip
+	 *            if true, a pathway imported from SBML is exported by patching
+	 *            the imported document, so that everything the pathway
+	 *            doesn't show is kept. Pathways without an imported document
+	 *            are always converted from scratch.
+	 */
+	public void setRoundTrip(boolean roundTrip) {
+		this.roundTrip = roundTrip;
+	}
+
+	public boolean isLayout() {
+		return layout;
+	}
+
+	/**
+	 * @param layout
+	 *            if true, element positions are written to the SBML layout
+	 *            extension, so that the model can be drawn without running a
+	 *            layout after import. Streaming export never writes a layout.
+	 */
+	public void setLayout(boolean layout) {
+		this.layout = layout;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @param incremental
+	 *            if true, pathways that are not exported as a round trip
+	 *            keep an exporter that listens to their edits, so that saving
+	 *            again only converts what changed. Level 1 pathways and
+	 *            streaming export are always converted from scratch.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+}
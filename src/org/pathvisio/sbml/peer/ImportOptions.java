@@ -0,0 +1,113 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml.peer;
+
+import java.io.File;
+
+/**
+ * Settings that control how an SBML file is converted to a pathway.
+ */
+public class ImportOptions {
+
+	/** Files of this size or larger are imported with the streaming reader */
+	public static final long DEFAULT_STREAMING_THRESHOLD = 20L * 1024 * 1024;
+
+	private long streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+	private boolean parallel = false;
+	private boolean bulkLoad = true;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private NotesMode notesMode = NotesMode.LAZY;
+
+	/** What to do with the notes and annotation of the SBML document */
+	public static enum NotesMode {
+		/** copy them to the pathway comments during import */
+		EAGER,
+		/** copy them when they are needed, see {@link LazyComments} */
+		LAZY,
+		/** leave them out of the pathway */
+		DROP
+	}
+
+	public long getStreamingThreshold() {
+		return streamingThreshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            file size in bytes from which on the streaming reader is
+	 *            used, 0 to always stream, a negative value to never stream
+	 */
+	public void setStreamingThreshold(long threshold) {
+		this.streamingThreshold = threshold;
+	}
+
+	/**
+	 * @return true if the given file is large enough to be imported with the
+	 *         streaming reader
+	 */
+	public boolean isStreaming(File file) {
+		return streamingThreshold >= 0 && file.length() >= streamingThreshold;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * @param parallel
+	 *            if true, reactions are read and their annotations resolved
+	 *            on a thread pool before they are added to the pathway. Only
+	 *            used for large annotated models on more than one thread,
+	 *            smaller ones are faster without the pool.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isBulkLoad() {
+		return bulkLoad;
+	}
+
+	/**
+	 * @param bulkLoad
+	 *            if true, peers start listening to their pathway elements
+	 *            only after all elements have been created, and the SBML side
+	 *            is synchronized once at the end
+	 */
+	public void setBulkLoad(boolean bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/** @param threads size of the thread pool used in parallel mode */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public NotesMode getNotesMode() {
+		return notesMode;
+	}
+
+	public void setNotesMode(NotesMode notesMode) {
+		this.notesMode = notesMode;
+	}
+
+}
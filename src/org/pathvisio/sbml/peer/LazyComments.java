@@ -0,0 +1,113 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml.peer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.sbml.jsbml.SBMLDocument;
+
+/**
+ * Notes and annotation of an SBML document that have not been copied to the
+ * mapp info of the converted pathway yet.
+ * <p>
+ * Serializing the XHTML notes and the RDF annotation to strings is costly
+ * for large models, so the import only remembers the document. Call
+ * {@link #materialize(Pathway)} before the comments are needed, e.g. before
+ * the pathway is written to GPML. Pathways shown in the editor are changed
+ * on the event thread only, so materialize them there.
+ */
+public class LazyComments {
+
+	private static final Map<Pathway, LazyComments> PENDING = Collections
+			.synchronizedMap(new WeakHashMap<Pathway, LazyComments>());
+
+	private final SBMLDocument doc;
+
+	private LazyComments(SBMLDocument doc) {
+		this.doc = doc;
+	}
+
+	/** Remembers the notes and annotation of doc for the given pathway */
+	static void register(Pathway pathway, SBMLDocument doc) {
+		if (doc.isSetNotes() || doc.isSetAnnotation()) {
+			PENDING.put(pathway, new LazyComments(doc));
+		}
+	}
+
+	/** @return true if the comments of this pathway have not been added yet */
+	public static boolean isPending(Pathway pathway) {
+		return PENDING.containsKey(pathway);
+	}
+
+	/**
+	 * Adds the pending notes and annotation to the mapp info of the pathway.
+	 * Does nothing if there are none or they were added already.
+	 */
+	public static void materialize(Pathway pathway) {
+		LazyComments comments = PENDING.remove(pathway);
+		if (comments != null) {
+			addComments(pathway.getMappInfo(), comments.doc);
+		}
+	}
+
+	/**
+	 * Lets a copy of a pathway add the same pending comments, without adding
+	 * them to the original
+	 */
+	public static void share(Pathway original, Pathway copy) {
+		LazyComments comments = PENDING.get(original);
+		if (comments != null) {
+			PENDING.put(copy, comments);
+		}
+	}
+
+	/** Forgets the pending comments of this pathway without adding them */
+	public static void discard(Pathway pathway) {
+		PENDING.remove(pathway);
+	}
+
+	/** Copies notes and annotation of doc to comments of the mapp info */
+	static void addComments(PathwayElement mappInfo, SBMLDocument doc) {
+		/*
+		 * Save notes as comments
+		 */
+		if (doc.isSetNotes()) {
+			try {
+				mappInfo.addComment(doc.getNotesString(), "SBML");
+			} catch (XMLStreamException e) {
+				e.printStackTrace();
+			}
+		}
+		/*
+		 * Save Annotation
+		 */
+		if (doc.isSetAnnotation()) {
+			try {
+				mappInfo.addComment(doc.getAnnotationString(), "Annotation");
+			} catch (XMLStreamException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package org.pathvisio.sbml.peer;
+
+import java.awt.geom.Point2D;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Spatial hash of the space taken by elements placed during import.
+ * <p>
+ * The plane is divided in square cells; an element occupies every cell its
+ * bounding box (plus a margin) touches. {@link #findFree} looks for the
+ * nearest position where a box fits by walking rings of cells around the
+ * preferred position, so as long as the neighbourhood is not full a slot is
+ * found after a few lookups.
+ */
+public class OccupancyGrid {
+
+	public static final double DEFAULT_CELL_SIZE = 20;
+	public static final double DEFAULT_MARGIN = 10;
+
+	/** gives up and returns the preferred position after this many rings */
+	private static final int MAX_RINGS = 200;
+
+	private final double cellSize;
+	private final double margin;
+	private final Set<Long> occupied = new HashSet<Long>();
+
+	public OccupancyGrid() {
+		this(DEFAULT_CELL_SIZE, DEFAULT_MARGIN);
+	}
+
+	/**
+	 * @param cellSize
+	 *            width and height of a cell
+	 * @param margin
+	 *            space kept free around every box
+	 */
+	public OccupancyGrid(double cellSize, double margin) {
+		this.cellSize = cellSize;
+		this.margin = margin;
+	}
+
+	/** Marks the box with the given center and size as taken */
+	public void occupy(double cx, double cy, double w, double h) {
+		int x0 = cell(cx - w / 2 - margin);
+		int x1 = cell(cx + w / 2 + margin);
+		int y0 = cell(cy - h / 2 - margin);
+		int y1 = cell(cy + h / 2 + margin);
+		for (int i = x0; i <= x1; i++) {
+			for (int j = y0; j <= y1; j++) {
+				occupied.add(key(i, j));
+			}
+		}
+	}
+
+	/** @return true if the box does not touch any occupied cell */
+	public boolean isFree(double cx, double cy, double w, double h) {
+		int x0 = cell(cx - w / 2 - margin);
+		int x1 = cell(cx + w / 2 + margin);
+		int y0 = cell(cy - h / 2 - margin);
+		int y1 = cell(cy + h / 2 + margin);
+		for (int i = x0; i <= x1; i++) {
+			for (int j = y0; j <= y1; j++) {
+				if (occupied.contains(key(i, j))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the center closest to (prefX, prefY), in steps of one cell,
+	 *         where a box of the given size is free. The preferred position
+	 *         itself if nothing is free nearby.
+	 */
+	public Point2D findFree(double prefX, double prefY, double w, double h) {
+		if (isFree(prefX, prefY, w, h)) {
+			return new Point2D.Double(prefX, prefY);
+		}
+		for (int r = 1; r <= MAX_RINGS; r++) {
+			// walk the ring starting with the cells straight right, left,
+			// below and above, which keeps rows and columns aligned
+			for (int d = 0; d <= r; d++) {
+				for (int s = 0; s < 8; s++) {
+					int dx, dy;
+					int a = (s & 1) == 0 ? d : -d;
+					int b = (s & 2) == 0 ? r : -r;
+					if ((s & 4) == 0) {
+						dx = b;
+						dy = a;
+					} else {
+						dx = a;
+						dy = b;
+					}
+					double x = prefX + dx * cellSize;
+					double y = prefY + dy * cellSize;
+					if (isFree(x, y, w, h)) {
+						return new Point2D.Double(x, y);
+					}
+				}
+			}
+		}
+		return new Point2D.Double(prefX, prefY);
+	}
+
+	/** Finds a free position and occupies it */
+	public Point2D place(double prefX, double prefY, double w, double h) {
+		Point2D p = findFree(prefX, prefY, w, h);
+		occupy(p.getX(), p.getY(), w, h);
+		return p;
+	}
+
+	public void clear() {
+		occupied.clear();
+	}
+
+	private int cell(double v) {
+		return (int) Math.floor(v / cellSize);
+	}
+
+	private static long key(int i, int j) {
+		return ((long) i << 32) | (j & 0xffffffffL);
+	}
+}
@@ -1,6 +1,29 @@
 package org.pathvisio.sbml.peer;
 
+import org.pathvisio.core.model.PathwayElement;
+import org.sbml.jsbml.Species;
+
+/**
+ * Links species to their SBML compartment. A data node has no compartment
+ * in PathVisio, so the id of the compartment is kept as a dynamic property
+ * of the species element, where layouts can find it.
+ */
 public class PeerCompartment
 {
+	public static final String PROPERTY_COMPARTMENT = "SBML_Compartment";
+
+	/** Stores the compartment of sp on the element of the species */
+	static void annotate(PathwayElement elt, Species sp)
+	{
+		if (sp != null && sp.isSetCompartment())
+		{
+			elt.setDynamicProperty(PROPERTY_COMPARTMENT, sp.getCompartment());
+		}
+	}
 
+	/** @return the id of the compartment of a species element, or null */
+	public static String getCompartment(PathwayElement elt)
+	{
+		return elt.getDynamicProperty(PROPERTY_COMPARTMENT);
+	}
 }
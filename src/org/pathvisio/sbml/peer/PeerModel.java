@@ -17,18 +17,25 @@
 
 package org.pathvisio.sbml.peer;
 
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.xml.stream.XMLStreamException;
-
-import org.bridgedb.DataSource;
 import org.bridgedb.Xref;
-import org.pathvisio.core.model.DataNodeType;
 import org.pathvisio.core.model.Pathway;
 import org.pathvisio.core.model.PathwayElement;
 import org.pathvisio.sbgn.SbgnTemplates;
+import org.pathvisio.sbml.peer.AnnotationResolver.Resolved;
 import org.sbgn.ArcClazz;
 import org.sbgn.GlyphClazz;
 import org.sbml.jsbml.Annotation;
@@ -37,11 +44,16 @@ import org.sbml.jsbml.Model;
 import org.sbml.jsbml.ModifierSpeciesReference;
 import org.sbml.jsbml.Reaction;
 import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.SimpleSpeciesReference;
 import org.sbml.jsbml.Species;
 import org.sbml.jsbml.SpeciesReference;
+import org.sbml.jsbml.ext.layout.BoundingBox;
+import org.sbml.jsbml.ext.layout.CurveSegment;
 import org.sbml.jsbml.ext.layout.ExtendedLayoutModel;
 import org.sbml.jsbml.ext.layout.Layout;
 import org.sbml.jsbml.ext.layout.LayoutConstants;
+import org.sbml.jsbml.ext.layout.Point;
+import org.sbml.jsbml.ext.layout.ReactionGlyph;
 import org.sbml.jsbml.ext.layout.SpeciesGlyph;
 import org.sbml.jsbml.ext.qual.Input;
 import org.sbml.jsbml.ext.qual.Output;
@@ -54,17 +66,26 @@ public class PeerModel {
 
 	private final SBMLDocument doc;
 	private final Pathway pwy;
+	private final ImportOptions options;
 
 	private boolean updatingSbml = false;
+	private final List<PeerSpecies> deferredSpecies = new ArrayList<PeerSpecies>();
+	private final List<PeerSpeciesReference> deferredReferences = new ArrayList<PeerSpeciesReference>();
+	private int elementEvents = 0;
+	private int sbmlSyncs = 0;
 
 	/**
 	 * @param doc
 	 * @param pwy
 	 */
 	public PeerModel(SBMLDocument doc, Pathway pwy) {
+		this(doc, pwy, new ImportOptions());
+	}
+
+	public PeerModel(SBMLDocument doc, Pathway pwy, ImportOptions options) {
 		this.doc = doc;
 		this.pwy = pwy;
-
+		this.options = options;
 	}
 
 	public Pathway getPathway() {
@@ -79,21 +100,145 @@ public class PeerModel {
 		return doc.getModel();
 	}
 
-	private void addSpecies(PathwayElement elt, GlyphClazz gc) {
-		PeerSpecies bs = PeerSpecies.createFromElt(this, elt, gc);
-		speciesPeers.put(elt.getGraphId(), bs);
+	/**
+	 * Adds an SBML species for a glyph that was drawn after the import. The
+	 * species goes into the first compartment and, if the document has a
+	 * layout, gets a species glyph in the first layout.
+	 */
+	public PeerSpecies addSpecies(PathwayElement elt) {
+		PeerSpecies bs = PeerSpecies.createFromElt(this, elt, null);
+		Species sp = bs.getSpecies();
+		if (doc.getModel().getNumCompartments() > 0) {
+			sp.setCompartment(doc.getModel().getCompartment(0).getId());
+			PeerCompartment.annotate(elt, sp);
+		}
+		Layout l = getFirstLayout();
+		if (l != null) {
+			SpeciesGlyph g = l.createSpeciesGlyph(glyphId(elt.getGraphId()),
+					sp.getId());
+			g.createBoundingBox();
+			bs.setSpeciesGlyphFromElt(g);
+		}
+		putSpeciesPeer(sp.getId(), bs);
+		return bs;
+	}
+
+	/**
+	 * Forgets the peer of a glyph that was removed from the pathway. The SBML
+	 * species is removed as well once none of its glyphs is left.
+	 * 
+	 * @return true if the SBML species was removed
+	 */
+	public boolean removeSpeciesPeer(PeerSpecies peer) {
+		peer.getSpeciesElement().removeListener(peer);
+		elementPeers.remove(peer.getSpeciesElement());
+		String sid = peer.getSpecies().getId();
+		if (speciesPeers.get(sid) == peer) {
+			speciesPeers.remove(sid);
+		}
+		List<PeerSpecies> others = glyphPeers.get(sid);
+		if (others != null) {
+			others.remove(peer);
+			if (!others.isEmpty()) {
+				speciesPeers.put(sid, others.get(0));
+				return false;
+			}
+			glyphPeers.remove(sid);
+		}
+		doc.getModel().removeSpecies(sid);
+		Layout l = getFirstLayout();
+		if (l != null) {
+			for (SpeciesGlyph g : l.findSpeciesGlyphs(sid)) {
+				l.getListOfSpeciesGlyphs().remove(g);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return id of the layout glyph of a pathway element, used for species,
+	 *         reaction and compartment glyphs
+	 */
+	public static String glyphId(String graphId) {
+		return "glyph_" + graphId;
+	}
+
+	/**
+	 * Binds the species peers to the glyphs written for their elements, so
+	 * that later edits are written to the layout as well
+	 */
+	public void bindSpeciesGlyphs(Layout l) {
+		for (PeerSpecies peer : elementPeers.values()) {
+			SpeciesGlyph g = l.getSpeciesGlyph(glyphId(peer
+					.getSpeciesElement().getGraphId()));
+			if (g != null) {
+				peer.setSpeciesGlyph(g);
+			}
+		}
+	}
+
+	/** @return the first layout of the document, or null */
+	public Layout getFirstLayout() {
+		ExtendedLayoutModel sbase = (ExtendedLayoutModel) doc.getModel()
+				.getExtension(LayoutConstants.namespaceURI);
+		if (sbase == null || sbase.getListOfLayouts().size() == 0) {
+			return null;
+		}
+		return sbase.getListOfLayouts().get(0);
 	}
 
 	private final Map<String, PeerSpecies> speciesPeers = new HashMap<String, PeerSpecies>();
 
+	/**
+	 * glyph -> peer. A species can have several glyphs, e.g. when it is the
+	 * product of one reaction and the reactant of the next.
+	 */
+	private final Map<PathwayElement, PeerSpecies> elementPeers = new IdentityHashMap<PathwayElement, PeerSpecies>();
+
+	/** species id -> the peers of all its glyphs, see {@link #elementPeers} */
+	private final Map<String, List<PeerSpecies>> glyphPeers = new HashMap<String, List<PeerSpecies>>();
+
+	/**
+	 * species id -> the element that currently carries it as graph id. Kept in
+	 * sync with the pathway so lookups don't scan all data objects.
+	 */
+	private final Map<String, PathwayElement> elementIndex = new HashMap<String, PathwayElement>();
+
 	public void putSpeciesPeer(String sId, PeerSpecies sbr) {
 		speciesPeers.put(sId, sbr);
+		PeerSpecies previous = elementPeers.put(sbr.getSpeciesElement(), sbr);
+		if (previous == sbr) {
+			return;
+		}
+		if (previous != null) {
+			List<PeerSpecies> peers = glyphPeers.get(previous.getSpecies()
+					.getId());
+			if (peers != null) {
+				peers.remove(previous);
+			}
+		}
+		List<PeerSpecies> peers = glyphPeers.get(sId);
+		if (peers == null) {
+			peers = new ArrayList<PeerSpecies>(1);
+			glyphPeers.put(sId, peers);
+		}
+		peers.add(sbr);
 	}
 
 	public PeerSpecies getSpeciesPeer(String sid) {
 		return speciesPeers.get(sid);
 	}
 
+	/** @return the peer of a species glyph, or null */
+	public PeerSpecies getPeerOfGlyph(PathwayElement elt) {
+		return elementPeers.get(elt);
+	}
+
+	/** @return the peers of all species glyphs */
+	public List<PeerSpecies> getSpeciesPeers() {
+		return new ArrayList<PeerSpecies>(elementPeers.values());
+	}
+
 
 	/**
 	 * Converts SBML doc to SBGN-PD pathway
@@ -103,32 +248,33 @@ public class PeerModel {
 	 * @return
 	 */
 	public static PeerModel createFromDoc(SBMLDocument doc) {
+		return createFromDoc(doc, new ImportOptions());
+	}
+
+	/**
+	 * Converts SBML doc to SBGN-PD pathway
+	 * 
+	 * @param doc
+	 *            SBML document
+	 * @param options
+	 *            conversion settings
+	 * @return
+	 */
+	public static PeerModel createFromDoc(SBMLDocument doc,
+			ImportOptions options) {
 		Pathway pathway = new Pathway();
 		pathway.getMappInfo().setMapInfoName(doc.getModel().getId());
 		pathway.getMappInfo().setMapInfoDataSource("Converted from SBML");
-		PeerModel bm = new PeerModel(doc, pathway);
-		/*
-		 * Save notes as comments
-		 */
-		if (doc.isSetNotes()) {
-			try {
-				pathway.getMappInfo().addComment(doc.getNotesString(), "SBML");
-			} catch (XMLStreamException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		/*
-		 * Save Annotation
-		 */
-		if (doc.isSetAnnotation()) {
-			try {
-				pathway.getMappInfo().addComment(doc.getAnnotationString(),
-						"Annotation");
-			} catch (XMLStreamException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+		PeerModel bm = new PeerModel(doc, pathway, options);
+		switch (options.getNotesMode()) {
+		case EAGER:
+			LazyComments.addComments(pathway.getMappInfo(), doc);
+			break;
+		case LAZY:
+			LazyComments.register(pathway, doc);
+			break;
+		case DROP:
+			break;
 		}
 		if (doc.isSetLevel()) {
 			pathway.getMappInfo().setDynamicProperty("SBML_Level",
@@ -150,11 +296,63 @@ public class PeerModel {
 
 	private void sbml2sbgn() {
 		updatingSbml = true;
+		fullLayout = hasFullLayout();
+		if (fullLayout) {
+			pwy.getMappInfo().setDynamicProperty(PROPERTY_LAYOUT, "true");
+		}
 		doReactions();
 		doSpecies();
 		doQual();
 		doLayout();
 		updatingSbml = false;
+		attachDeferredPeers();
+	}
+
+	/**
+	 * @return true while elements are being created in bulk load mode. Peers
+	 *         created meanwhile don't listen to their element yet, so setting
+	 *         up positions, labels and Xrefs doesn't write back to SBML.
+	 */
+	boolean isBulkLoading() {
+		return updatingSbml && options.isBulkLoad();
+	}
+
+	void deferPeer(PeerSpecies peer) {
+		deferredSpecies.add(peer);
+	}
+
+	void deferPeer(PeerSpeciesReference peer) {
+		deferredReferences.add(peer);
+	}
+
+	/** Attaches the listeners and syncs each species to SBML once */
+	private void attachDeferredPeers() {
+		for (PeerSpecies peer : deferredSpecies) {
+			peer.attach();
+		}
+		for (PeerSpeciesReference peer : deferredReferences) {
+			peer.attach();
+		}
+		deferredSpecies.clear();
+		deferredReferences.clear();
+	}
+
+	void countElementEvent() {
+		elementEvents++;
+	}
+
+	void countSbmlSync() {
+		sbmlSyncs++;
+	}
+
+	/** @return number of element change events received by species peers */
+	public int getElementEventCount() {
+		return elementEvents;
+	}
+
+	/** @return number of times a species was written back to SBML */
+	public int getSbmlSyncCount() {
+		return sbmlSyncs;
 	}
 
 	private void doSpecies() {
@@ -163,7 +361,7 @@ public class PeerModel {
 		for (Species s : doc.getModel().getListOfSpecies()) {
 			// check it it was already added before
 			String sid = s.getId();
-			if (pwy.getElementById(sid) == null) {
+			if (!elementIndex.containsKey(sid)) {
 				nextLocation();
 				createOrGetSpecies(sid, xco, yco,
 						GlyphClazz.BIOLOGICAL_ACTIVITY);
@@ -171,24 +369,113 @@ public class PeerModel {
 		}
 	}
 
-	/** checks if the given SBML document uses the SBML-layout extension */
-	private void doLayout() {
-		Model model = doc.getModel();
-		ExtendedLayoutModel sbase = (ExtendedLayoutModel) model
-				.getExtension(LayoutConstants.namespaceURI);
-		if (sbase != null) {
-			for (Layout l : sbase.getListOfLayouts()) {
-				// TODO: list of compartment glyphs, text glyphs, etc...
-				for (SpeciesGlyph g : l.getListOfSpeciesGlyphs()) {
-					String sid = g.getSpecies();
-					PeerSpecies sbr = getSpeciesPeer(sid);
-					if (sbr != null) {
-						sbr.setSpeciesGlyph(g);
+	/**
+	 * @return true if the first layout has a positioned glyph for every
+	 *         species. Such models are drawn as the layout says, without
+	 *         fallback placement.
+	 */
+	private boolean hasFullLayout() {
+		Layout l = getFirstLayout();
+		if (l == null) {
+			return false;
+		}
+		Set<String> placed = new HashSet<String>();
+		for (SpeciesGlyph g : l.getListOfSpeciesGlyphs()) {
+			if (g.isSetBoundingBox() && g.getBoundingBox().isSetPosition()) {
+				placed.add(g.getSpecies());
+			}
+		}
+		for (Species s : doc.getModel().getListOfSpecies()) {
+			if (!placed.contains(s.getId())) {
+				return false;
+			}
+		}
+		for (ReactionGlyph g : l.getListOfReactionGlyphs()) {
+			reactionGlyphs.put(g.getReaction(), g);
+		}
+		return true;
+	}
+
+	/**
+	 * @return center of the glyph of a reaction, or null if the layout
+	 *         doesn't place it
+	 */
+	private Point2D getReactionPosition(String reactionId) {
+		ReactionGlyph g = reactionGlyphs.get(reactionId);
+		if (g == null) {
+			return null;
+		}
+		if (g.isSetBoundingBox() && g.getBoundingBox().isSetPosition()
+				&& g.getBoundingBox().isSetDimensions()) {
+			BoundingBox bb = g.getBoundingBox();
+			return new Point2D.Double(bb.getPosition().getX()
+					+ bb.getDimensions().getWidth() / 2, bb.getPosition()
+					.getY() + bb.getDimensions().getHeight() / 2);
+		}
+		if (g.isSetCurve() && g.getCurve().getListOfCurveSegments().size() > 0) {
+			List<CurveSegment> segments = g.getCurve().getListOfCurveSegments();
+			Point start = segments.get(0).getStart();
+			Point end = segments.get(segments.size() - 1).getEnd();
+			return new Point2D.Double((start.getX() + end.getX()) / 2,
+					(start.getY() + end.getY()) / 2);
+		}
+		return null;
+	}
 
+	/**
+	 * checks if the given SBML document uses the SBML-layout extension. The
+	 * glyphs of the first layout are handed to the species peers; a species
+	 * with several glyphs gets them in the order of its pathway elements.
+	 * With a full layout, elements left without a glyph, e.g. the extra
+	 * glyph of a product that is used again, are put on the grid next to
+	 * their reaction.
+	 */
+	private void doLayout() {
+		Layout l = getFirstLayout();
+		if (l == null) {
+			return;
+		}
+		// TODO: list of compartment glyphs, text glyphs, etc...
+		Map<String, List<PeerSpecies>> unbound = new HashMap<String, List<PeerSpecies>>();
+		for (PathwayElement elt : pwy.getDataObjects()) {
+			PeerSpecies peer = elementPeers.get(elt);
+			if (peer == null) {
+				continue;
+			}
+			String sid = peer.getSpecies().getId();
+			List<PeerSpecies> peers = unbound.get(sid);
+			if (peers == null) {
+				peers = new ArrayList<PeerSpecies>();
+				unbound.put(sid, peers);
+			}
+			peers.add(peer);
+		}
+		for (SpeciesGlyph g : l.getListOfSpeciesGlyphs()) {
+			List<PeerSpecies> peers = unbound.get(g.getSpecies());
+			if (peers != null && !peers.isEmpty()) {
+				PeerSpecies peer = peers.remove(0);
+				peer.setSpeciesGlyph(g);
+				PathwayElement pelt = peer.getSpeciesElement();
+				grid.occupy(pelt.getMCenterX(), pelt.getMCenterY(),
+						pelt.getMWidth(), pelt.getMHeight());
+			}
+		}
+		if (fullLayout) {
+			for (List<PeerSpecies> peers : unbound.values()) {
+				for (PeerSpecies peer : peers) {
+					PathwayElement pelt = peer.getSpeciesElement();
+					Point2D pref = preferred.get(pelt);
+					if (pref == null) {
+						pref = new Point2D.Double(xco, yco);
 					}
+					Point2D p = grid.place(pref.getX(), pref.getY(),
+							pelt.getMWidth(), pelt.getMHeight());
+					pelt.setMCenterX(p.getX());
+					pelt.setMCenterY(p.getY());
 				}
 			}
 		}
+		preferred.clear();
 	}
 
 	/** checks if the given SBML document uses the SBML-qual extension */
@@ -212,6 +499,11 @@ public class PeerModel {
 					GlyphClazz.BIOLOGICAL_ACTIVITY, pwy, xco, yco);
 			pelt.setGraphId(qs.getId());
 			pelt.setTextLabel(qs.getName());
+			Point2D p = grid.place(xco, yco, pelt.getMWidth(),
+					pelt.getMHeight());
+			pelt.setMCenterX(p.getX());
+			pelt.setMCenterY(p.getY());
+			elementIndex.put(qs.getId(), pelt);
 
 			List<String> t = qs
 					.filterCVTerms(CVTerm.Qualifier.BQB_IS, "miriam");
@@ -240,9 +532,9 @@ public class PeerModel {
 				Input i = t.getListOfInputs().get(0);
 				Output o = t.getListOfOutputs().get(0);
 
-				PathwayElement iElt = pwy.getElementById(i
+				PathwayElement iElt = elementIndex.get(i
 						.getQualitativeSpecies());
-				PathwayElement oElt = pwy.getElementById(o
+				PathwayElement oElt = elementIndex.get(o
 						.getQualitativeSpecies());
 
 				if (iElt == null || oElt == null) {
@@ -275,69 +567,193 @@ public class PeerModel {
 		}
 	}
 
+	/**
+	 * Everything doReactions needs from one reaction. Staging only reads the
+	 * SBML model, so reactions can be staged on several threads.
+	 */
+	private static class StagedReaction {
+		final Reaction re;
+		final List<StagedReference> products = new ArrayList<StagedReference>();
+		final List<StagedReference> reactants = new ArrayList<StagedReference>();
+		final List<StagedReference> modifiers = new ArrayList<StagedReference>();
+
+		StagedReaction(Reaction re) {
+			this.re = re;
+		}
+	}
+
+	private static class StagedReference {
+		final SimpleSpeciesReference ref;
+		final Resolved xref;
+
+		StagedReference(SimpleSpeciesReference ref, Resolved xref) {
+			this.ref = ref;
+			this.xref = xref;
+		}
+
+		String getSpecies() {
+			return ref.getSpecies();
+		}
+	}
+
+	private StagedReaction stage(Reaction re) {
+		StagedReaction sr = new StagedReaction(re);
+		for (SpeciesReference j : re.getListOfProducts()) {
+			sr.products.add(new StagedReference(j, resolveSpecies(j
+					.getSpecies())));
+		}
+		for (SpeciesReference j : re.getListOfReactants()) {
+			sr.reactants.add(new StagedReference(j, resolveSpecies(j
+					.getSpecies())));
+		}
+		for (ModifierSpeciesReference j : re.getListOfModifiers()) {
+			sr.modifiers.add(new StagedReference(j, resolveSpecies(j
+					.getSpecies())));
+		}
+		return sr;
+	}
+
 	private void doReactions() {
-		for (Reaction re : doc.getModel().getListOfReactions()) {
-			double x = xco;
-			double y = yco;
-			PeerReaction pr = PeerReaction.createFromSbml(this, re, x, y);
-			boolean next = true;
-			if (re.getListOfReactants().size() > 0) {
-				String sid = re.getProduct(0).getSpecies();
-				PathwayElement pelt = pwy.getElementById(sid);
-				if (pelt != null) {
-					pelt.setGraphId(pwy.getUniqueGraphId());
-					xco = pelt.getMCenterX() + 100;
-					yco = pelt.getMCenterY();
-					next = false;
-				}
-			}
-			if (next) {
-				nextLocation();
+		if (useParallel()) {
+			doReactionsParallel();
+		} else {
+			for (Reaction re : doc.getModel().getListOfReactions()) {
+				commit(stage(re));
 			}
+		}
+	}
 
-			double yy = y;
-
-			for (SpeciesReference j : re.getListOfProducts()) {
-				String sid = j.getSpecies();
-				PathwayElement pelt = createOrGetSpecies(sid, x + 80, yy,
-						GlyphClazz.SIMPLE_CHEMICAL);
-				PeerSpeciesReference bsref = PeerSpeciesReference
-						.createFromSpeciesReference(this, j,
-								ArcClazz.PRODUCTION, x + M_PN, y,
-								pr.getPortId(1), pelt.getMLeft(),
-								pelt.getMCenterY(), pelt);
-				pwy.add(sbgnAnnotate(bsref.getElement(), sid));
-				yy += 20;
+	/**
+	 * Staging is mostly resolving annotations; the commit is serial. The pool
+	 * only pays off when there are annotations to resolve, more than one
+	 * thread to resolve them on and enough chunks to overlap with the
+	 * commits. Otherwise the sequential path is used even in parallel mode.
+	 */
+	private boolean useParallel() {
+		Model m = doc.getModel();
+		if (!options.isParallel() || options.getThreads() < 2
+				|| m.getNumReactions() < PARALLEL_MIN_CHUNKS * STAGING_CHUNK) {
+			return false;
+		}
+		for (Species s : m.getListOfSpecies()) {
+			if (s.isSetAnnotation()) {
+				return true;
 			}
+		}
+		return false;
+	}
 
-			yy = y;
-
-			for (SpeciesReference j : re.getListOfReactants()) {
-				String sid = j.getSpecies();
-				PathwayElement pelt = createOrGetSpecies(sid, x - 80, yy,
-						GlyphClazz.SIMPLE_CHEMICAL);
-				PeerSpeciesReference bsref = PeerSpeciesReference
-						.createFromSpeciesReference(this, j,
-								ArcClazz.CONSUMPTION,
-								pelt.getMLeft() + pelt.getMWidth(),
-								pelt.getMCenterY(), pelt, x - M_PN, y,
-								pr.getPortId(0));
-				pwy.add(sbgnAnnotate(bsref.getElement(), sid));
-				yy += 20;
+	/**
+	 * Stages chunks of reactions on a thread pool and commits them to the
+	 * pathway on this thread, in document order. Creating the elements has to
+	 * stay on one thread because graph ids are handed out by the pathway, and
+	 * committing in order gives the same pathway as the sequential path.
+	 */
+	private void doReactionsParallel() {
+		final List<Reaction> reactions = doc.getModel().getListOfReactions();
+		ExecutorService executor = Executors.newFixedThreadPool(options
+				.getThreads());
+		try {
+			List<Future<List<StagedReaction>>> chunks = new ArrayList<Future<List<StagedReaction>>>();
+			for (int i = 0; i < reactions.size(); i += STAGING_CHUNK) {
+				final int from = i;
+				final int to = Math.min(i + STAGING_CHUNK, reactions.size());
+				chunks.add(executor.submit(new Callable<List<StagedReaction>>() {
+					@Override
+					public List<StagedReaction> call() {
+						List<StagedReaction> result = new ArrayList<StagedReaction>(
+								to - from);
+						for (int j = from; j < to; j++) {
+							result.add(stage(reactions.get(j)));
+						}
+						return result;
+					}
+				}));
 			}
+			for (Future<List<StagedReaction>> chunk : chunks) {
+				for (StagedReaction sr : chunk.get()) {
+					commit(sr);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Conversion interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not convert reactions",
+					e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-			for (ModifierSpeciesReference j : re.getListOfModifiers()) {
-				String sid = j.getSpecies();
-				PathwayElement pelt = createOrGetSpecies(sid, x, y - 80,
-						GlyphClazz.MACROMOLECULE);
-				PeerSpeciesReference bsref = PeerSpeciesReference
-						.createFromSpeciesReference(this, j,
-								ArcClazz.CATALYSIS, pelt.getMCenterX(),
-								pelt.getMTop() + pelt.getMHeight(), pelt, x, y,
-								pr.getProcessNodeElt());
-				pwy.add(sbgnAnnotate(bsref.getElement(), sid));
+	private void commit(StagedReaction sr) {
+		Reaction re = sr.re;
+		Point2D slot = fullLayout ? getReactionPosition(re.getId()) : null;
+		if (slot == null) {
+			slot = grid.place(xco, yco, 3 * M_PN, M_PN);
+		}
+		double x = slot.getX();
+		double y = slot.getY();
+		PeerReaction pr = PeerReaction.createFromSbml(this, re, x, y);
+		boolean next = true;
+		if (sr.reactants.size() > 0 && sr.products.size() > 0) {
+			String sid = sr.products.get(0).getSpecies();
+			// the product gets a new graph id so the next reaction that
+			// uses it creates a fresh glyph
+			PathwayElement pelt = elementIndex.remove(sid);
+			if (pelt != null) {
+				pelt.setGraphId(pwy.getUniqueGraphId());
+				xco = pelt.getMCenterX() + 100;
+				yco = pelt.getMCenterY();
+				next = false;
 			}
 		}
+		if (next) {
+			nextLocation();
+		}
+
+		double yy = y;
+
+		for (StagedReference j : sr.products) {
+			String sid = j.getSpecies();
+			PathwayElement pelt = createOrGetSpecies(sid, x + 80, yy,
+					GlyphClazz.SIMPLE_CHEMICAL, j.xref);
+			PeerSpeciesReference bsref = PeerSpeciesReference
+					.createFromSpeciesReference(this, j.ref,
+							ArcClazz.PRODUCTION, x + M_PN, y,
+							pr.getPortId(1), pelt.getMLeft(),
+							pelt.getMCenterY(), pelt);
+			pwy.add(AnnotationResolver.apply(bsref.getElement(), j.xref));
+			yy += 20;
+		}
+
+		yy = y;
+
+		for (StagedReference j : sr.reactants) {
+			String sid = j.getSpecies();
+			PathwayElement pelt = createOrGetSpecies(sid, x - 80, yy,
+					GlyphClazz.SIMPLE_CHEMICAL, j.xref);
+			PeerSpeciesReference bsref = PeerSpeciesReference
+					.createFromSpeciesReference(this, j.ref,
+							ArcClazz.CONSUMPTION,
+							pelt.getMLeft() + pelt.getMWidth(),
+							pelt.getMCenterY(), pelt, x - M_PN, y,
+							pr.getPortId(0));
+			pwy.add(AnnotationResolver.apply(bsref.getElement(), j.xref));
+			yy += 20;
+		}
+
+		for (StagedReference j : sr.modifiers) {
+			String sid = j.getSpecies();
+			PathwayElement pelt = createOrGetSpecies(sid, x, y - 80,
+					GlyphClazz.MACROMOLECULE, j.xref);
+			PeerSpeciesReference bsref = PeerSpeciesReference
+					.createFromSpeciesReference(this, j.ref,
+							ArcClazz.CATALYSIS, pelt.getMCenterX(),
+							pelt.getMTop() + pelt.getMHeight(), pelt, x, y,
+							pr.getProcessNodeElt());
+			pwy.add(AnnotationResolver.apply(bsref.getElement(), j.xref));
+		}
 	}
 
 	private void nextLocation() {
@@ -351,17 +767,34 @@ public class PeerModel {
 
 	private PathwayElement createOrGetSpecies(String sId, double prefX,
 			double prefY, GlyphClazz gc) {
-		PathwayElement pelt = pwy.getElementById(sId);
+		return createOrGetSpecies(sId, prefX, prefY, gc, resolveSpecies(sId));
+	}
+
+	private PathwayElement createOrGetSpecies(String sId, double prefX,
+			double prefY, GlyphClazz gc, Resolved xref) {
+		PathwayElement pelt = elementIndex.get(sId);
 		if (pelt == null) {
 			Species sp = doc.getModel().getSpecies(sId);
 			PeerSpecies sbr = PeerSpecies.createFromSpecies(this, sp, gc);
 			putSpeciesPeer(sId, sbr);
 			pelt = sbr.getSpeciesElement();
-			pelt.setMCenterX(prefX);
-			pelt.setMCenterY(prefY);
-			pelt.setTextLabel(sId);
-			pelt = sbgnAnnotate(pelt, sId);
+			// with a full layout the species glyph positions the element,
+			// see doLayout
+			if (fullLayout) {
+				preferred.put(pelt, new Point2D.Double(prefX, prefY));
+			} else {
+				Point2D p = grid.place(prefX, prefY, pelt.getMWidth(),
+						pelt.getMHeight());
+				pelt.setMCenterX(p.getX());
+				pelt.setMCenterY(p.getY());
+			}
+			// keep the species name, it is written back on export
+			if (sp == null || !sp.isSetName()) {
+				pelt.setTextLabel(sId);
+			}
+			pelt = AnnotationResolver.apply(pelt, xref);
 			pwy.add(pelt);
+			elementIndex.put(sId, pelt);
 		}
 		return pelt;
 	}
@@ -369,79 +802,49 @@ public class PeerModel {
 
 
 	PathwayElement sbgnAnnotate(PathwayElement pelt, String sId) {
-		Boolean datasourceset = false;
-		DataSource ds = DataSource.getExistingBySystemCode("L");
-		if (doc.getModel().getSpecies(sId).isSetAnnotation()) {
-			Annotation annotation = doc.getModel().getSpecies(sId)
-					.getAnnotation();
+		return AnnotationResolver.apply(pelt, resolveSpecies(sId));
+	}
+
+	/** @return the Xref of a species' first CV term, or null */
+	private Resolved resolveSpecies(String sId) {
+		Species sp = doc.getModel().getSpecies(sId);
+		if (sp != null && sp.isSetAnnotation()) {
+			Annotation annotation = sp.getAnnotation();
 			List<String> annotationList = annotation.getCVTerm(0)
 					.getResources();
-			String xrefString = annotationList.get(0);
-
-			String[] de = xrefString.split("org/", 2);
-			String[] xe = de[1].split("/", 2);
-
-			String database = xe[0];
-			String identifier = xe[1];
-			/*
-			 * Ontology databases
-			 */
-			if (database.contains("chebi") || database.contains("CHEBI")) {
-				datasourceset = true;
-				ds = DataSource.getExistingBySystemCode("Ce");
-			}else if (database.contains("pubchem.substance") || database.contains("PUBCHEM")) {
-				datasourceset = true;
-				ds = DataSource.getExistingBySystemCode("Cps");
-			}else if (database.contains("kegg") || database.contains("KEGG")) {
-				datasourceset = true;
-				ds = DataSource.getExistingBySystemCode("Ck");
-			}else if (database.contains("cas") || database.contains("CAS")) {
-				datasourceset = true;
-				ds = DataSource.getExistingBySystemCode("Ca");
-			}else {
-				if (database.equalsIgnoreCase("obo.go") || database.equalsIgnoreCase("go")) {
-					datasourceset = true;
-					ds = DataSource.getExistingBySystemCode("T");
-				}else {
-					if (database.contains("uniprot") || database.contains("UNIPROT")) {
-						datasourceset = true;
-						ds = DataSource.getExistingBySystemCode("S");
-					}else {
-						try {
-							ds = DataSource.getExistingByFullName(database.toUpperCase());
-							if(ds == null){
-							ds = DataSource.getExistingByFullName(database.toLowerCase());
-							}
-							datasourceset = true;
-						} catch (Exception e) {
-							System.out
-							.println("WARNING : Could not find a match for "
-									+ database);
-						}
-					}
-
-				}
-			}
-			if (datasourceset) {
-				pelt.setDataSource(ds);
-				pelt.setElementID(identifier);
-				if (ds.getType().equalsIgnoreCase("Protein")) {
-					pelt.setDataNodeType(DataNodeType.PROTEIN);
-				} else if (ds.getType().equalsIgnoreCase("Metabolite")) {
-					pelt.setDataNodeType(DataNodeType.METABOLITE);
-				} else {
-					pelt.setDataNodeType(DataNodeType.GENEPRODUCT);
-				}
-				datasourceset = false;
-			}
+			return AnnotationResolver.getDefault().resolve(
+					annotationList.get(0));
 		}
-		return pelt;
+		return null;
 	}
 
+	/**
+	 * xco and yco only give the preferred position of the next reaction or
+	 * species, the grid moves it to the nearest free spot
+	 */
 	private double xco = 500;
 	private double yco = 500;
+	private final OccupancyGrid grid = new OccupancyGrid();
+	/** true if the document's layout places every species */
+	private boolean fullLayout;
+	/**
+	 * species element -> position it would get without a layout, only for
+	 * full layouts. Used by {@link #doLayout()} for elements without glyph.
+	 */
+	private final Map<PathwayElement, Point2D> preferred = new IdentityHashMap<PathwayElement, Point2D>();
+	/** reaction id -> glyph in the first layout, only for full layouts */
+	private final Map<String, ReactionGlyph> reactionGlyphs = new HashMap<String, ReactionGlyph>();
+	/**
+	 * set to "true" on the info of pathways that were positioned by the
+	 * layout of their SBML document
+	 */
+	public static final String PROPERTY_LAYOUT = "SBML_Layout";
 	final static double M_WIDTH = 80;
 	final static double M_HEIGHT = 30;
-	final static double M_PN = 20;
+	public final static double M_PN = 20;
+	/** number of reactions staged per task in parallel mode */
+	private final static int STAGING_CHUNK = 256;
+	/** smaller models are imported sequentially, see {@link #useParallel()} */
+	private final static int PARALLEL_MIN_CHUNKS = 4;
 
 }
\ No newline at end of file
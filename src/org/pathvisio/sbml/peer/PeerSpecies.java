@@ -33,12 +33,31 @@ public class PeerSpecies implements PathwayElementListener
 	private final PathwayElement pathwayElement;
 	private final Species nodes;
 	private SpeciesGlyph nodeGlyphs;
+	private final PeerModel parent;
 
 	public PeerSpecies(PathwayElement elt, Species sp)
 	{
+		this(null, elt, sp);
+	}
+
+	/**
+	 * While the parent model is being bulk loaded the listener is not
+	 * attached; the parent calls {@link #attach()} once all elements are in
+	 * place.
+	 */
+	private PeerSpecies(PeerModel parent, PathwayElement elt, Species sp)
+	{
+		this.parent = parent;
 		this.pathwayElement = elt;
 		this.nodes = sp;
-		elt.addListener(this);
+		if (parent == null || !parent.isBulkLoading())
+		{
+			elt.addListener(this);
+		}
+		else
+		{
+			parent.deferPeer(this);
+		}
 	}
 
 	public static PeerSpecies createFromSpecies(PeerModel parent, Species sp,
@@ -47,12 +66,23 @@ public class PeerSpecies implements PathwayElementListener
 		PathwayElement elt = SbgnTemplates.createGlyph(gc, parent.getPathway(),
 				0, 0);
 		elt.setGraphId(sp.getId());
+		PeerCompartment.annotate(elt, sp);
 		
-		PeerSpecies bs = new PeerSpecies(elt, sp);
+		PeerSpecies bs = new PeerSpecies(parent, elt, sp);
 		bs.updateElt();
 		return bs;
 	}
 
+	/**
+	 * Starts listening to the pathway element and writes its current state
+	 * to the SBML species. Used at the end of a bulk load.
+	 */
+	void attach()
+	{
+		pathwayElement.addListener(this);
+		updateSpecies();
+	}
+
 	/*
 	 * Save all infiormation available in the model in the pathway
 	 */
@@ -74,7 +104,7 @@ public class PeerSpecies implements PathwayElementListener
 			PathwayElement elt, GlyphClazz gc)
 	{
 		Species sp = parent.getModel().createSpecies(elt.getGraphId());
-		PeerSpecies bs = new PeerSpecies(elt, sp);
+		PeerSpecies bs = new PeerSpecies(parent, elt, sp);
 		bs.updateSpecies();
 		return bs;
 	}
@@ -84,9 +114,15 @@ public class PeerSpecies implements PathwayElementListener
 		return pathwayElement;
 	}
 
+	public Species getSpecies()
+	{
+		return nodes;
+	}
+
 	@Override
 	public void gmmlObjectModified(PathwayElementEvent e)
 	{
+		if (parent != null) parent.countElementEvent();
 		updateSpecies();
 	}
 
@@ -104,19 +140,20 @@ public class PeerSpecies implements PathwayElementListener
 			pathwayElement.setTextLabel(nodes.getName());
 			if (nodeGlyphs != null)
 			{
+				// the position is the top left corner, so set the size first
 				BoundingBox bb = nodeGlyphs.getBoundingBox();
-				Point p = bb.getPosition();
-				if (p != null)
-				{
-					pathwayElement.setMCenterX(p.getX());
-					pathwayElement.setMCenterY(p.getY());
-				}
 				Dimensions d = bb.getDimensions();
 				if (d != null)
 				{
 					pathwayElement.setMWidth(d.getWidth());
 					pathwayElement.setMHeight(d.getHeight());
 				}
+				Point p = bb.getPosition();
+				if (p != null)
+				{
+					pathwayElement.setMLeft(p.getX());
+					pathwayElement.setMTop(p.getY());
+				}
 			}
 		}
 		finally
@@ -132,6 +169,7 @@ public class PeerSpecies implements PathwayElementListener
 		try
 		{
 			updatingSpecies = true;
+			if (parent != null) parent.countSbmlSync();
 			nodes.setName(pathwayElement.getTextLabel());
 			if (nodeGlyphs != null)
 			{
@@ -142,15 +180,15 @@ public class PeerSpecies implements PathwayElementListener
 
 				Point p = bb.getPosition();
 				if (p == null) {
-					bb.createPosition();
+					p = bb.createPosition();
 				}
 
-				p.setX(pathwayElement.getMCenterX());
-				p.setY(pathwayElement.getMCenterY());
+				p.setX(pathwayElement.getMLeft());
+				p.setY(pathwayElement.getMTop());
 
 				Dimensions d = bb.getDimensions();
 				if (d == null) {
-					bb.createDimensions();
+					d = bb.createDimensions();
 				}
 
 				d.setWidth(pathwayElement.getMWidth());
@@ -169,4 +207,11 @@ public class PeerSpecies implements PathwayElementListener
 		updateElt();
 	}
 
+	/** Like {@link #setSpeciesGlyph}, but the glyph takes the element's bounds */
+	void setSpeciesGlyphFromElt(SpeciesGlyph g)
+	{
+		this.nodeGlyphs = g;
+		updateSpecies();
+	}
+
 }
\ No newline at end of file
@@ -33,7 +33,20 @@ public class PeerSpeciesReference implements PathwayElementListener
 			SimpleSpeciesReference sref)
 	{
 		this.pathwayELement = elt;
-		elt.addListener(this);
+		if (parent != null && parent.isBulkLoading())
+		{
+			parent.deferPeer(this);
+		}
+		else
+		{
+			elt.addListener(this);
+		}
+	}
+
+	/** Starts listening to the pathway element after a bulk load */
+	void attach()
+	{
+		pathwayELement.addListener(this);
 	}
 
 	public static PeerSpeciesReference createFromSpeciesReference(
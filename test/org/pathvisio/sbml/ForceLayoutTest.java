@@ -0,0 +1,82 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.util.ProgressKeeper;
+
+public class ForceLayoutTest extends TestCase
+{
+	private static Pathway createNetwork(int reactions)
+	{
+		return SbmlFixtures.toPathway(SbmlFixtures.createNetwork(reactions));
+	}
+
+	public void testAllNodesPlaced()
+	{
+		ForceLayout layout = new ForceLayout(createNetwork(200));
+		Map<String, Point2D> points = layout.computeLocations();
+		assertEquals(layout.pwyNodes.size(), points.size());
+		for (Point2D p : points.values())
+		{
+			assertFalse(Double.isNaN(p.getX()) || Double.isNaN(p.getY()));
+		}
+	}
+
+	public void testDeterministic()
+	{
+		Map<String, Point2D> a = new ForceLayout(createNetwork(200)).computeLocations();
+		Map<String, Point2D> b = new ForceLayout(createNetwork(200)).computeLocations();
+		assertEquals(a, b);
+	}
+
+	public void testPrefuseStopsWhenConverged()
+	{
+		Prefuse p = new Prefuse(createNetwork(5));
+		p.computeLocations();
+		assertTrue(p.getReport(), p.isConverged());
+		assertTrue(p.getIterationsUsed() < p.maxIterations);
+		assertTrue(p.getMaxDisplacement() < p.convergenceThreshold);
+	}
+
+	/** Without a time limit the same pathway always gets the same layout */
+	public void testPrefuseDeterministic()
+	{
+		Pathway pwy = createNetwork(50);
+		Prefuse p = new Prefuse(pwy);
+		Map<String, Point2D> a = p.computeLocations();
+		int iterations = p.getIterationsUsed();
+		assertEquals(a, p.computeLocations());
+		assertEquals(iterations, p.getIterationsUsed());
+	}
+
+	public void testCancelledLayoutStops()
+	{
+		Prefuse p = new Prefuse(createNetwork(50));
+		ProgressKeeper pk = new ProgressKeeper(100);
+		pk.cancel();
+		p.setProgress(pk, null);
+		Map<String, Point2D> points = p.computeLocations();
+		assertEquals(0, p.getIterationsUsed());
+		assertEquals(p.pwyNodes.size(), points.size());
+	}
+}
@@ -0,0 +1,153 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement.Comment;
+import org.pathvisio.sbml.peer.ImportOptions;
+import org.pathvisio.sbml.peer.ImportOptions.NotesMode;
+import org.pathvisio.sbml.peer.LazyComments;
+import org.sbml.jsbml.SBMLDocument;
+
+public class ImportCacheTest extends TestCase
+{
+	private File dir;
+	private ImportCache cache;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		dir = File.createTempFile("import-cache", "");
+		dir.delete();
+		cache = new ImportCache(dir, Long.MAX_VALUE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		cache.flush();
+		cache.clear();
+		dir.delete();
+	}
+
+	/** @return a small model with notes, written to a temporary file */
+	private static File createModel(int reactions) throws Exception
+	{
+		SBMLDocument doc = SbmlFixtures.createChain(reactions);
+		doc.setNotes("<notes><body xmlns=\"http://www.w3.org/1999/xhtml\">"
+				+ "<p>cached</p></body></notes>");
+		return SbmlFixtures.write(doc, ".xml");
+	}
+
+	private SBMLFormat createFormat(boolean roundTrip)
+	{
+		SBMLFormat format = new SBMLFormat(null);
+		format.setImportCache(cache);
+		format.getExportOptions().setRoundTrip(roundTrip);
+		return format;
+	}
+
+	public void testMissThenHit() throws Exception
+	{
+		File f = createModel(20);
+		SBMLFormat format = createFormat(false);
+		Pathway converted = format.doImport(f);
+		assertEquals(1, cache.getMissCount());
+		assertEquals(0, cache.getHitCount());
+		// writing the entry leaves the pathway and its pending comments alone
+		assertTrue(LazyComments.isPending(converted));
+		cache.flush();
+
+		Pathway cached = format.doImport(f);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(converted.getDataObjects().size(), cached
+				.getDataObjects().size());
+		assertNull(format.getImportedModel(cached));
+		boolean notes = false;
+		for (Comment c : cached.getMappInfo().getComments())
+		{
+			notes |= c.getComment().contains("cached");
+		}
+		assertTrue(notes);
+		assertEquals(0.5, cache.getHitRate(), 0.0001);
+	}
+
+	/** Round trip export needs the peers, which a cached pathway lacks */
+	public void testRoundTripBypassesCache() throws Exception
+	{
+		File f = createModel(20);
+		SBMLFormat format = createFormat(true);
+		format.doImport(f);
+		cache.flush();
+		Pathway again = format.doImport(f);
+		assertNotNull(format.getImportedModel(again));
+		assertEquals(0, cache.getHitCount());
+		assertEquals(0, cache.size());
+
+		// streamed imports have no peers anyway, so they are cached
+		format.getImportOptions().setStreamingThreshold(0);
+		format.doImport(f);
+		cache.flush();
+		format.doImport(f);
+		assertEquals(1, cache.getHitCount());
+	}
+
+	public void testKeyChanges() throws Exception
+	{
+		File f = createModel(5);
+		ImportOptions options = new ImportOptions();
+		String key = ImportCache.key(f, options);
+		assertEquals(key, ImportCache.key(f, options));
+		assertEquals(key, ImportCache.key(f));
+
+		ImportOptions drop = new ImportOptions();
+		drop.setNotesMode(NotesMode.DROP);
+		assertFalse(key.equals(ImportCache.key(f, drop)));
+
+		ImportOptions stream = new ImportOptions();
+		stream.setStreamingThreshold(0);
+		assertFalse(key.equals(ImportCache.key(f, stream)));
+
+		File other = createModel(6);
+		assertFalse(key.equals(ImportCache.key(other, options)));
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws Exception
+	{
+		String[] keys = new String[3];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = ImportCache.key(createModel(10 + i));
+			cache.put(keys[i], new Pathway());
+		}
+		cache.flush();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < keys.length; i++)
+		{
+			new File(dir, keys[i] + ".gpml").setLastModified(now - 60000
+					* (keys.length - i));
+		}
+		cache.setQuota(cache.size() - 1);
+		assertNull(cache.get(keys[0]));
+		assertNotNull(cache.get(keys[1]));
+		assertNotNull(cache.get(keys[2]));
+	}
+}
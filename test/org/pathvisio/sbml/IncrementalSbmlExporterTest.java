@@ -0,0 +1,268 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.bio.BioDataSource;
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbgn.SbgnFormat;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbgn.GlyphClazz;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Reaction;
+import org.sbml.jsbml.Species;
+import org.sbml.jsbml.ext.layout.ExtendedLayoutModel;
+import org.sbml.jsbml.ext.layout.Layout;
+import org.sbml.jsbml.ext.layout.LayoutConstants;
+import org.sbml.jsbml.ext.layout.ReactionGlyph;
+import org.sbml.jsbml.ext.layout.SpeciesGlyph;
+import org.sbml.jsbml.xml.stax.SBMLReader;
+
+public class IncrementalSbmlExporterTest extends TestCase
+{
+	private static Pathway createChain(int reactions)
+	{
+		return SbmlFixtures.toPathway(SbmlFixtures.createChain(reactions));
+	}
+
+	/**
+	 * Syncing after an edit must only touch the edited elements; see
+	 * {@link SbmlBenchmark} for the time it takes.
+	 */
+	public void testSyncProportionalToEdit() throws Exception
+	{
+		Pathway pwy = createChain(5000);
+		File out = File.createTempFile("incremental", ".xml");
+		out.deleteOnExit();
+
+		IncrementalSbmlExporter exporter = new IncrementalSbmlExporter(pwy);
+		exporter.save(out);
+		assertEquals(pwy.getDataObjects().size(), exporter.getLastSyncCount());
+
+		Model model = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		assertEquals(5001, model.getNumSpecies());
+		assertEquals(5000, model.getNumReactions());
+
+		for (int edit : new int[] { 1, 10, 100, 1000 })
+		{
+			int n = 0;
+			for (PathwayElement elt : pwy.getDataObjects())
+			{
+				if (n == edit) break;
+				if (SbmlStreamWriter.isSpecies(elt))
+				{
+					elt.setElementID("CHEBI:" + edit + n);
+					n++;
+				}
+			}
+			exporter.save(out);
+			assertEquals(edit, exporter.getLastSyncCount());
+		}
+
+		// removing a species must drop it from the next export
+		PathwayElement removed = pwy.getElementById("s0");
+		pwy.remove(removed);
+		exporter.save(out);
+		model = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		assertEquals(5000, model.getNumSpecies());
+		assertNull(model.getSpecies("s0"));
+		assertNotNull(model.getSpecies("s5000"));
+		exporter.dispose();
+	}
+
+	/**
+	 * The incremental file must have the sections of the full export:
+	 * compartments, annotated species, reactions and the layout.
+	 */
+	public void testSameSectionsAsFullExport() throws Exception
+	{
+		BioDataSource.init();
+		Pathway pwy = createChain(20);
+		pwy.getElementById("s3").setDataSource(DataSource.getBySystemCode("Ce"));
+		pwy.getElementById("s3").setElementID("CHEBI:15422");
+
+		File out = File.createTempFile("incremental", ".xml");
+		out.deleteOnExit();
+		IncrementalSbmlExporter exporter = new IncrementalSbmlExporter(pwy);
+		exporter.save(out);
+		// a move must reach the layout of the next save
+		PathwayElement moved = pwy.getElementById("s5");
+		moved.setMLeft(moved.getMLeft() + 100);
+		exporter.save(out);
+		exporter.dispose();
+
+		SBMLFormat format = new SBMLFormat(null);
+		format.getExportOptions().setRoundTrip(false);
+		File full = File.createTempFile("full", ".xml");
+		full.deleteOnExit();
+		format.doExport(full, pwy);
+		Model a = new SBMLReader().readSBML(full.getAbsolutePath()).getModel();
+		Model b = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		for (int i = 0; i < a.getNumCompartments(); i++)
+		{
+			assertNotNull(b.getCompartment(a.getCompartment(i).getId()));
+		}
+		for (int i = 0; i < b.getNumSpecies(); i++)
+		{
+			assertNotNull(b.getCompartment(b.getSpecies(i).getCompartment()));
+		}
+		assertEquals(describe(a), describe(b));
+		assertEquals("metaid_s3", b.getSpecies("s3").getMetaId());
+		assertEquals(1, b.getSpecies("s3").getNumCVTerms());
+
+		Layout la = getLayout(a);
+		Layout lb = getLayout(b);
+		assertNotNull(lb);
+		assertEquals(la.getCompartmentGlyphCount(), lb.getCompartmentGlyphCount());
+		assertEquals(la.getSpeciesGlyphCount(), lb.getSpeciesGlyphCount());
+		assertEquals(la.getReactionGlyphCount(), lb.getReactionGlyphCount());
+		for (int i = 0; i < la.getSpeciesGlyphCount(); i++)
+		{
+			SpeciesGlyph ga = la.getSpeciesGlyph(i);
+			SpeciesGlyph gb = lb.getSpeciesGlyph(ga.getId());
+			assertEquals(ga.getSpecies(), gb.getSpecies());
+			assertEquals(ga.getBoundingBox().getPosition().getX(), gb
+					.getBoundingBox().getPosition().getX(), 0.001);
+			assertEquals(ga.getBoundingBox().getPosition().getY(), gb
+					.getBoundingBox().getPosition().getY(), 0.001);
+		}
+		for (int i = 0; i < la.getReactionGlyphCount(); i++)
+		{
+			ReactionGlyph ga = la.getReactionGlyph(i);
+			ReactionGlyph gb = lb.getReactionGlyph(ga.getId());
+			assertEquals(ga.getListOfSpeciesReferenceGlyphs().size(), gb
+					.getListOfSpeciesReferenceGlyphs().size());
+			assertEquals(ga.isSetCurve(), gb.isSetCurve());
+		}
+	}
+
+	private static Layout getLayout(Model m)
+	{
+		ExtendedLayoutModel ext = (ExtendedLayoutModel) m
+				.getExtension(LayoutConstants.namespaceURI);
+		return ext == null || ext.getListOfLayouts().size() == 0 ? null : ext
+				.getListOfLayouts().get(0);
+	}
+
+	/** @return the species and reactions of m, sorted */
+	private static List<String> describe(Model m)
+	{
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < m.getNumSpecies(); i++)
+		{
+			Species sp = m.getSpecies(i);
+			result.add("species " + sp.getId() + " " + sp.getNumCVTerms());
+		}
+		for (int i = 0; i < m.getNumReactions(); i++)
+		{
+			Reaction r = m.getReaction(i);
+			result.add("reaction " + r.getId() + " " + r.getNumReactants()
+					+ " " + r.getNumProducts() + " " + r.getNumModifiers());
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * A species whose class changes while its arcs stay must leave the
+	 * reactions and their glyphs, and come back with its class
+	 */
+	public void testSpeciesClassChangeRebuildsReactions() throws Exception
+	{
+		Pathway pwy = createChain(3);
+		File out = File.createTempFile("incremental", ".xml");
+		out.deleteOnExit();
+		IncrementalSbmlExporter exporter = new IncrementalSbmlExporter(pwy);
+		exporter.save(out);
+
+		PathwayElement s1 = pwy.getElementById("s1");
+		String sbgnClass = s1.getDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS);
+		s1.setDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS,
+				GlyphClazz.UNSPECIFIED_ENTITY.getClazz());
+		exporter.save(out);
+		Model model = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		assertNull(model.getSpecies("s1"));
+		assertEquals(0, model.getReaction("r0").getNumProducts());
+		assertEquals(0, model.getReaction("r1").getNumReactants());
+		Layout layout = getLayout(model);
+		assertEquals(1, layout.getReactionGlyph(PeerModel.glyphId("r0"))
+				.getListOfSpeciesReferenceGlyphs().size());
+
+		s1.setDynamicProperty(SbgnFormat.PROPERTY_SBGN_CLASS, sbgnClass);
+		exporter.save(out);
+		model = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		assertNotNull(model.getSpecies("s1"));
+		assertEquals("s1", model.getReaction("r0").getProduct(0).getSpecies());
+		assertEquals("s1", model.getReaction("r1").getReactant(0).getSpecies());
+		layout = getLayout(model);
+		assertEquals(2, layout.getReactionGlyph(PeerModel.glyphId("r0"))
+				.getListOfSpeciesReferenceGlyphs().size());
+		exporter.dispose();
+	}
+
+	public void testUnconnectedLineIsRejected() throws Exception
+	{
+		Pathway pwy = createChain(3);
+		PathwayElement line = PathwayElement
+				.createPathwayElement(ObjectType.LINE);
+		pwy.add(line);
+		line.setGraphId("loose");
+		IncrementalSbmlExporter exporter = new IncrementalSbmlExporter(pwy);
+		File out = File.createTempFile("incremental", ".xml");
+		out.deleteOnExit();
+		try
+		{
+			exporter.save(out);
+			fail("unconnected line exported");
+		}
+		catch (ConverterException e)
+		{
+			assertTrue(e.getMessage().contains("loose"));
+		}
+		pwy.remove(line);
+		exporter.save(out);
+		exporter.dispose();
+	}
+
+	/** Saving through the format keeps one exporter per pathway */
+	public void testFormatExportsIncrementally() throws Exception
+	{
+		Pathway pwy = createChain(10);
+		SBMLFormat format = new SBMLFormat(null);
+		format.getExportOptions().setRoundTrip(false);
+		format.getExportOptions().setIncremental(true);
+		File out = File.createTempFile("incremental", ".xml");
+		out.deleteOnExit();
+		format.doExport(out, pwy);
+		pwy.remove(pwy.getElementById("s0"));
+		format.doExport(out, pwy);
+		Model model = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		assertNull(model.getSpecies("s0"));
+		assertEquals(10, model.getNumSpecies());
+		assertEquals(10, model.getNumReactions());
+	}
+}
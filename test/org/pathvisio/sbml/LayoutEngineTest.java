@@ -0,0 +1,174 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.peer.PeerCompartment;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Reaction;
+import org.sbml.jsbml.SBMLDocument;
+
+public class LayoutEngineTest extends TestCase
+{
+	public void testCrossings()
+	{
+		LayoutGraph g = new LayoutGraph(5, 3);
+		int a = g.addNode("a", 0, 0, 10, 10);
+		int b = g.addNode("b", 100, 100, 10, 10);
+		int c = g.addNode("c", 0, 100, 10, 10);
+		int d = g.addNode("d", 100, 0, 10, 10);
+		int e = g.addNode("e", 200, 200, 10, 10);
+		g.addSpring(a, b);
+		g.addSpring(c, d);
+		// shares a node with a-b, so it doesn't count
+		g.addSpring(b, e);
+		assertEquals(1, g.crossings());
+	}
+
+	private static Pathway createChain(int reactions)
+	{
+		return SbmlFixtures.toPathway(SbmlFixtures.createChain(reactions));
+	}
+
+	/** Each reaction of a chain must be right of the one before */
+	public void testLayeredFollowsFlow()
+	{
+		Pathway pwy = createChain(3);
+		Map<String, Point2D> points = new LayeredLayout(pwy).computeLocations();
+		assertTrue(points.get("r0").getX() < points.get("r1").getX());
+		assertTrue(points.get("r1").getX() < points.get("r2").getX());
+
+		LayoutGraph g = new LayeredLayout(pwy).buildGraph();
+		g.moveTo(points);
+		assertEquals(0, g.crossings());
+	}
+
+	/** Every engine, the JUNG ones included, must place every node headless */
+	public void testEveryEngineRuns()
+	{
+		Pathway pwy = createChain(10);
+		for (LayoutEngine engine : LayoutEngine.values())
+		{
+			LayoutAbstract layout = engine.create(pwy);
+			Map<String, Point2D> points = layout.computeLocations();
+			assertEquals(engine.toString(), layout.buildGraph().nodes,
+					points.size());
+		}
+	}
+
+	/** Only the neighbourhood of a changed element may move */
+	public void testLocalLayoutFreezesTheRest()
+	{
+		Pathway pwy = createChain(1500);
+		PathwayElement changed = pwy.getElementById("r750");
+		LocalLayout layout = new LocalLayout(pwy, Collections.singleton(changed));
+		Map<String, Point2D> points = layout.computeLocations();
+		assertTrue(points.containsKey("r750"));
+		assertFalse(points.containsKey("r0"));
+		assertTrue(points.size() < 20);
+
+		double x = pwy.getElementById("r0").getMCenterX();
+		layout.run();
+		assertEquals(x, pwy.getElementById("r0").getMCenterX());
+	}
+
+	/** Two chains in their own compartment, linked by a transport reaction */
+	public void testCompartmentsDoNotOverlap()
+	{
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		Model model = doc.createModel("compartments");
+		for (String c : new String[] { "cytoplasm", "nucleus" })
+		{
+			Compartment compartment = model.createCompartment(c);
+			for (int i = 0; i <= 20; i++)
+			{
+				model.createSpecies(c + i, compartment);
+			}
+			for (int i = 0; i < 20; i++)
+			{
+				Reaction r = model.createReaction(c + "_r" + i);
+				r.createReactant(model.getSpecies(c + i));
+				r.createProduct(model.getSpecies(c + (i + 1)));
+			}
+		}
+		Reaction transport = model.createReaction("transport");
+		transport.createReactant(model.getSpecies("nucleus20"));
+		transport.createProduct(model.getSpecies("cytoplasm0"));
+		Pathway pwy = PeerModel.createFromDoc(doc).getPathway();
+
+		int elements = pwy.getDataObjects().size();
+		CompartmentLayout layout = new CompartmentLayout(pwy);
+		layout.run();
+		Rectangle2D cytoplasm = null;
+		Rectangle2D nucleus = null;
+		for (PathwayElement pe : layout.pwyNodes)
+		{
+			String c = PeerCompartment.getCompartment(pe);
+			if (c == null) continue;
+			Rectangle2D r = new Rectangle2D.Double(pe.getMLeft(), pe.getMTop(),
+					pe.getMWidth(), pe.getMHeight());
+			if (c.equals("cytoplasm"))
+			{
+				if (cytoplasm == null) cytoplasm = r; else cytoplasm.add(r);
+			}
+			else
+			{
+				if (nucleus == null) nucleus = r; else nucleus.add(r);
+			}
+		}
+		assertNotNull(cytoplasm);
+		assertNotNull(nucleus);
+		assertFalse(cytoplasm.intersects(nucleus));
+
+		// a glyph is fitted around each compartment, for the export to find
+		PathwayElement cytoplasmShape = pwy.getElementById("cytoplasm");
+		PathwayElement nucleusShape = pwy.getElementById("nucleus");
+		assertTrue(ExportPreflight.isCompartment(cytoplasmShape));
+		assertTrue(ExportPreflight.isCompartment(nucleusShape));
+		assertTrue(cytoplasmShape.getMBounds().contains(cytoplasm));
+		assertTrue(nucleusShape.getMBounds().contains(nucleus));
+		assertFalse(cytoplasmShape.getMBounds().intersects(nucleusShape.getMBounds()));
+
+		// the transport reaction sits between them, its arcs bend at the border
+		Rectangle2D r = pwy.getElementById("transport").getMBounds();
+		assertFalse(r.intersects(cytoplasmShape.getMBounds()));
+		assertFalse(r.intersects(nucleusShape.getMBounds()));
+		int bent = 0;
+		for (PathwayElement pe : pwy.getDataObjects())
+		{
+			if (pe.getObjectType() == ObjectType.LINE
+					&& pe.getMPoints().size() == 3) bent++;
+		}
+		assertEquals(2, bent);
+
+		// running it again reuses the glyphs
+		assertEquals(elements + 2, pwy.getDataObjects().size());
+		new CompartmentLayout(pwy).run();
+		assertEquals(elements + 2, pwy.getDataObjects().size());
+	}
+}
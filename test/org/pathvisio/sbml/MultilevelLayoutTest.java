@@ -0,0 +1,49 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.Pathway;
+
+public class MultilevelLayoutTest extends TestCase
+{
+	public void testAllNodesPlaced()
+	{
+		Pathway pwy = SbmlFixtures.toPathway(SbmlFixtures.createChain(300));
+		MultilevelLayout layout = new MultilevelLayout(pwy);
+		Map<String, Point2D> points = layout.computeLocations();
+		assertEquals(layout.pwyNodes.size(), points.size());
+		for (Point2D p : points.values())
+		{
+			assertFalse(Double.isNaN(p.getX()) || Double.isNaN(p.getY()));
+		}
+	}
+
+	public void testDeterministic()
+	{
+		boolean[] process = new boolean[2000];
+		LayoutGraph a = SbmlFixtures.createGraph(2000, process);
+		LayoutGraph b = SbmlFixtures.createGraph(2000, process);
+		new MultilevelLayout(new Pathway()).layout(a, process);
+		new MultilevelLayout(new Pathway()).layout(b, process);
+		assertEquals(a.toPoints(), b.toPoints());
+	}
+}
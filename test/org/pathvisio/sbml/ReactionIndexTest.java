@@ -0,0 +1,57 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.sbml.ReactionIndex.Connections;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Reaction;
+import org.sbml.jsbml.SBMLDocument;
+
+public class ReactionIndexTest extends TestCase
+{
+	public void testConnections()
+	{
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		Model model = doc.createModel("m");
+		Compartment cell = model.createCompartment("cell");
+		model.createSpecies("glc-6-p", cell);
+		model.createSpecies("atp", cell);
+		model.createSpecies("fru-6-p", cell);
+		model.createSpecies("pgi", cell);
+		Reaction r = model.createReaction("r-1");
+		r.createReactant(model.getSpecies("glc-6-p"));
+		r.createReactant(model.getSpecies("atp"));
+		r.createProduct(model.getSpecies("fru-6-p"));
+		r.createModifier(model.getSpecies("pgi"));
+
+		Pathway pwy = PeerModel.createFromDoc(doc).getPathway();
+		ReactionIndex index = ReactionIndex.build(pwy);
+		Connections c = index.get("r-1");
+		assertNotNull(c);
+		assertEquals(Arrays.asList("glc-6-p", "atp"), c.reactants);
+		assertEquals(Arrays.asList("fru-6-p"), c.products);
+		assertEquals(Arrays.asList("pgi"), c.modifiers);
+		assertEquals(1, index.getReactions().size());
+	}
+}
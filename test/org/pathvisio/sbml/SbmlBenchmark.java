@@ -0,0 +1,300 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bridgedb.bio.BioDataSource;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.peer.AnnotationResolver;
+import org.pathvisio.sbml.peer.ImportOptions;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbml.jsbml.SBMLDocument;
+
+/**
+ * Timings of import, export and layout, kept out of the unit tests so that
+ * those don't depend on the speed of the machine. Prints the timings and
+ * checks the targets; exits with status 1 if one is missed.
+ * <p>
+ * Usage: SbmlBenchmark [testdata directory]
+ */
+public class SbmlBenchmark
+{
+	private final List<String> missed = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception
+	{
+		SbmlBenchmark b = new SbmlBenchmark();
+		b.importScaling();
+		b.parallelImport();
+		b.incrementalExport();
+		b.forceLayout();
+		b.multilevelLayout();
+		b.localLayout();
+		b.engines(new File(args.length > 0 ? args[0] : "testdata"));
+		if (!b.missed.isEmpty())
+		{
+			System.out.println("missed targets:");
+			for (String target : b.missed)
+			{
+				System.out.println("  " + target);
+			}
+			System.exit(1);
+		}
+	}
+
+	private void check(boolean ok, String target)
+	{
+		System.out.println((ok ? "  ok: " : "  MISSED: ") + target);
+		if (!ok)
+		{
+			missed.add(target);
+		}
+	}
+
+	private static long millis(long start)
+	{
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private static long timeImport(SBMLDocument doc, ImportOptions options)
+	{
+		AnnotationResolver.getDefault().clear();
+		long start = System.nanoTime();
+		PeerModel.createFromDoc(doc, options);
+		return System.nanoTime() - start;
+	}
+
+	/** Import time must grow linearly with the number of reactions */
+	void importScaling()
+	{
+		ImportOptions options = new ImportOptions();
+		timeImport(SbmlFixtures.createChain(1000, 0, "atp", false), options); // warm up
+		long small = timeImport(SbmlFixtures.createChain(2000, 0, "atp", false), options);
+		long large = timeImport(SbmlFixtures.createChain(8000, 0, "atp", false), options);
+		System.out.println("import: 2000 reactions " + small / 1000000
+				+ " ms, 8000 reactions " + large / 1000000 + " ms");
+		// quadratic lookups would take ~16x longer, allow for JIT and GC
+		check(large < small * 10, "4x the reactions imports in under 10x the time");
+	}
+
+	/** The parallel import must beat the sequential one on an annotated model */
+	void parallelImport()
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+		if (processors < 2)
+		{
+			System.out.println("parallel import: skipped, one processor");
+			return;
+		}
+		BioDataSource.init();
+		ImportOptions sequential = new ImportOptions();
+		ImportOptions parallel = new ImportOptions();
+		parallel.setParallel(true);
+		parallel.setThreads(processors);
+		timeImport(SbmlFixtures.createChain(5000, 0, "atp", true), parallel); // warm up
+		timeImport(SbmlFixtures.createChain(5000, 0, "atp", true), sequential);
+
+		long tSeq = timeImport(SbmlFixtures.createChain(20000, 0, "atp", true), sequential);
+		long tPar = timeImport(SbmlFixtures.createChain(20000, 0, "atp", true), parallel);
+		System.out.println("import of 20000 annotated reactions: sequential "
+				+ tSeq / 1000000 + " ms, parallel " + tPar / 1000000 + " ms");
+		check(tPar < tSeq, "parallel import beats sequential");
+	}
+
+	/** Saving after an edit must cost in proportion to the edit */
+	void incrementalExport() throws Exception
+	{
+		Pathway pwy = SbmlFixtures.toPathway(SbmlFixtures.createChain(5000));
+		File out = File.createTempFile("incremental", ".xml");
+		out.deleteOnExit();
+
+		IncrementalSbmlExporter exporter = new IncrementalSbmlExporter(pwy);
+		exporter.save(out);
+		long full = exporter.getLastSyncMillis();
+		System.out.println("incremental export: full " + exporter.getLastSyncCount()
+				+ " elements, sync " + full + " ms, write "
+				+ exporter.getLastSaveMillis() + " ms");
+		long single = 0;
+		for (int edit : new int[] { 1, 10, 100, 1000 })
+		{
+			int n = 0;
+			for (PathwayElement elt : pwy.getDataObjects())
+			{
+				if (n == edit) break;
+				if (SbmlStreamWriter.isSpecies(elt))
+				{
+					elt.setElementID("CHEBI:" + edit + n);
+					n++;
+				}
+			}
+			exporter.save(out);
+			System.out.println("  " + edit + " species edited: "
+					+ exporter.getLastSyncCount() + " elements, sync "
+					+ exporter.getLastSyncMillis() + " ms, write "
+					+ exporter.getLastSaveMillis() + " ms");
+			if (edit == 1)
+			{
+				single = exporter.getLastSyncMillis();
+			}
+		}
+		exporter.dispose();
+		check(single <= full / 10, "one edit syncs in a tenth of the full export");
+	}
+
+	/** ForceLayout against the prefuse layout at 1k, 5k and 10k nodes */
+	void forceLayout()
+	{
+		new ForceLayout(SbmlFixtures.toPathway(SbmlFixtures.createNetwork(500)))
+				.computeLocations(); // warm up
+		long tenK = 0;
+		for (int nodes : new int[] { 1000, 5000, 10000 })
+		{
+			Pathway pwy = SbmlFixtures.toPathway(SbmlFixtures.createNetwork(nodes / 2));
+			long start = System.nanoTime();
+			new ForceLayout(pwy).computeLocations();
+			long fast = millis(start);
+			Prefuse p = new Prefuse(pwy);
+			start = System.nanoTime();
+			p.computeLocations();
+			long prefuse = millis(start);
+			System.out.println(nodes + " nodes: ForceLayout " + fast
+					+ " ms, Prefuse " + prefuse + " ms (" + p.getReport() + ")");
+			tenK = fast;
+		}
+		check(tenK < 1000, "ForceLayout of 10k nodes in under 1 s");
+	}
+
+	/** @return average spring length, relative to the length it wants */
+	private static double stretch(LayoutGraph g)
+	{
+		double sum = 0;
+		for (int j = 0; j < g.springs; j++)
+		{
+			double d = Point2D.distance(g.x[g.from[j]], g.y[g.from[j]],
+					g.x[g.to[j]], g.y[g.to[j]]);
+			sum += d / g.length[j];
+		}
+		return sum / g.springs;
+	}
+
+	/**
+	 * MultilevelLayout at 1k, 10k and 100k nodes, compared with the single
+	 * level {@link ForceLayout} where that is still quick.
+	 */
+	void multilevelLayout()
+	{
+		long tenK = 0;
+		long hundredK = 0;
+		for (int nodes : new int[] { 1000, 10000, 100000 })
+		{
+			boolean[] process = new boolean[nodes];
+			LayoutGraph g = SbmlFixtures.createGraph(nodes, process);
+			long start = System.nanoTime();
+			new MultilevelLayout(new Pathway()).layout(g, process);
+			long ms = millis(start);
+			System.out.println(nodes + " nodes: MultilevelLayout " + ms
+					+ " ms, stretch " + stretch(g));
+			if (nodes == 10000)
+			{
+				tenK = ms;
+			}
+			if (nodes > 10000)
+			{
+				hundredK = ms;
+				continue;
+			}
+			g = SbmlFixtures.createGraph(nodes, process);
+			ForceLayout force = new ForceLayout(new Pathway());
+			force.jitter(g);
+			float k = g.idealDistance(force.gap);
+			start = System.nanoTime();
+			force.relax(g, k, k * (float) Math.sqrt(nodes),
+					force.numIterations, 0, force.numIterations, false);
+			ms = millis(start);
+			System.out.println(nodes + " nodes: ForceLayout " + ms
+					+ " ms, stretch " + stretch(g));
+		}
+		check(hundredK < Math.max(tenK, 1) * 20,
+				"MultilevelLayout of 10x the nodes in under 20x the time");
+	}
+
+	/** A local re-layout of a 3000 node map must take milliseconds */
+	void localLayout()
+	{
+		Pathway pwy = SbmlFixtures.toPathway(SbmlFixtures.createChain(1500));
+		PathwayElement changed = pwy.getElementById("r750");
+		new LocalLayout(pwy, Collections.singleton(changed)).computeLocations(); // warm up
+		LocalLayout layout = new LocalLayout(pwy, Collections.singleton(changed));
+		long start = System.nanoTime();
+		Map<String, Point2D> points = layout.computeLocations();
+		long ms = millis(start);
+		System.out.println("local layout of " + points.size() + " of "
+				+ layout.pwyNodes.size() + " nodes: " + ms + " ms");
+		check(ms < 100, "local layout in under 100 ms");
+	}
+
+	private static void collect(File dir, List<File> models)
+	{
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f : files)
+		{
+			if (f.isDirectory()) collect(f, models);
+			else if (f.getName().endsWith(".xml")) models.add(f);
+		}
+	}
+
+	/**
+	 * Wall time and edge crossings of every engine, the JUNG ones included,
+	 * on a synthetic network and on the testdata models
+	 */
+	void engines(File testdata) throws Exception
+	{
+		compareEngines("network of 500 nodes",
+				SbmlFixtures.toPathway(SbmlFixtures.createNetwork(250)));
+		List<File> models = new ArrayList<File>();
+		collect(testdata, models);
+		SBMLFormat format = new SBMLFormat(null);
+		for (File f : models)
+		{
+			compareEngines(f.getName(), format.doImport(f));
+		}
+	}
+
+	private static void compareEngines(String name, Pathway pwy)
+	{
+		for (LayoutEngine engine : LayoutEngine.values())
+		{
+			LayoutAbstract layout = engine.create(pwy);
+			long start = System.nanoTime();
+			Map<String, Point2D> points = layout.computeLocations();
+			long ms = millis(start);
+			LayoutGraph g = layout.buildGraph();
+			int before = g.crossings();
+			g.moveTo(points);
+			System.out.println(name + " " + engine + ": " + ms + " ms, "
+					+ g.crossings() + " crossings (was " + before + ")");
+		}
+	}
+}
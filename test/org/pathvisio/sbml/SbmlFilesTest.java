@@ -0,0 +1,191 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.SBMLWriter;
+
+public class SbmlFilesTest extends TestCase
+{
+	private static File createTempFile(String suffix) throws IOException
+	{
+		File f = File.createTempFile("sbmlfiles", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+
+	public void testNames()
+	{
+		assertTrue(SbmlFiles.isCompressedName("model.xml.gz"));
+		assertTrue(SbmlFiles.isCompressedName("MODEL.XML.GZ"));
+		assertFalse(SbmlFiles.isCompressedName("model.xml"));
+		assertEquals("model.xml", SbmlFiles.stripCompression("model.xml.gz"));
+		assertEquals("model.xml", SbmlFiles.stripCompression("model.xml"));
+	}
+
+	/** Exporting to .xml.gz compresses, importing it gives the same pathway */
+	public void testGzipRoundTripThroughFormat() throws Exception
+	{
+		File plain = SbmlFixtures.write(SbmlFixtures.createChain(10), ".xml");
+		SBMLFormat format = new SBMLFormat(null);
+		format.getExportOptions().setRoundTrip(false);
+		Pathway pathway = format.doImport(plain);
+
+		File gz = createTempFile(".xml.gz");
+		format.doExport(gz, pathway);
+		assertTrue(SbmlFiles.isGzip(gz));
+		assertTrue(format.isCorrectType(gz));
+
+		Model m = SbmlFiles.readDocument(gz).getModel();
+		assertEquals(11, m.getNumSpecies());
+		assertEquals(10, m.getNumReactions());
+		Pathway again = format.doImport(gz);
+		assertEquals(pathway.getDataObjects().size(), again.getDataObjects()
+				.size());
+
+		// the streaming import reads it as well
+		format.getImportOptions().setStreamingThreshold(0);
+		assertEquals(pathway.getDataObjects().size(), format.doImport(gz)
+				.getDataObjects().size());
+	}
+
+	/** Compressed input is recognized by its magic bytes, not its name */
+	public void testGzipWithoutExtension() throws Exception
+	{
+		File f = createTempFile(".xml");
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(f));
+		try
+		{
+			new SBMLWriter().write(SbmlFixtures.createChain(5), out);
+		}
+		finally
+		{
+			out.close();
+		}
+		assertTrue(SbmlFiles.isGzip(f));
+		assertEquals(6, SbmlFiles.readDocument(f).getModel().getNumSpecies());
+
+		SBMLFormat format = new SBMLFormat(null);
+		assertTrue(format.isCorrectType(f));
+		assertNotNull(format.doImport(f).getElementById("r0"));
+	}
+
+	public void testPlainFileIsNotGzip() throws Exception
+	{
+		File f = SbmlFixtures.write(SbmlFixtures.createChain(1), ".xml");
+		assertFalse(SbmlFiles.isGzip(f));
+		assertFalse(SbmlFiles.isZstd(f));
+	}
+
+	/** The streaming reader must not resolve external entities */
+	public void testExternalEntityIsNotRead() throws Exception
+	{
+		File secret = createTempFile(".txt");
+		Writer w = new OutputStreamWriter(new FileOutputStream(secret), "UTF-8");
+		try
+		{
+			w.write("secret");
+		}
+		finally
+		{
+			w.close();
+		}
+		File f = createTempFile(".xml");
+		w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+		try
+		{
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<!DOCTYPE sbml [<!ENTITY xxe SYSTEM \""
+					+ secret.toURI() + "\">]>\n"
+					+ "<sbml xmlns=\"http://www.sbml.org/sbml/level2/version4\""
+					+ " level=\"2\" version=\"4\"><model id=\"m\">"
+					+ "<listOfCompartments><compartment id=\"cell\"/>"
+					+ "</listOfCompartments><listOfSpecies>"
+					+ "<species id=\"a\" name=\"&xxe;\" compartment=\"cell\"/>"
+					+ "</listOfSpecies></model></sbml>");
+		}
+		finally
+		{
+			w.close();
+		}
+		try
+		{
+			Pathway pathway = new SbmlStreamImportHelper().doImport(f);
+			for (PathwayElement elt : pathway.getDataObjects())
+			{
+				String label = elt.getTextLabel();
+				assertFalse(label != null && label.contains("secret"));
+			}
+		}
+		catch (XMLStreamException e)
+		{
+			// expected, the entity is not declared without the DTD
+		}
+	}
+
+	public void testZstdIsRejected() throws Exception
+	{
+		File f = createTempFile(".xml.zst");
+		OutputStream out = new FileOutputStream(f);
+		try
+		{
+			out.write(new byte[] { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0,
+					0, 0, 0 });
+		}
+		finally
+		{
+			out.close();
+		}
+		assertTrue(SbmlFiles.isZstd(f));
+		try
+		{
+			SbmlFiles.openInput(f).close();
+			fail("zstd input opened");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("zstd"));
+		}
+
+		SBMLFormat format = new SBMLFormat(null);
+		assertFalse(format.isCorrectType(f));
+		try
+		{
+			format.doImport(f);
+			fail("zstd input imported");
+		}
+		catch (ConverterException e)
+		{
+			// expected
+		}
+	}
+}
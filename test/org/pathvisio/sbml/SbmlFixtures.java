@@ -0,0 +1,157 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml;
+
+import java.io.File;
+import java.util.Random;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbml.jsbml.CVTerm;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Reaction;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.SBMLWriter;
+import org.sbml.jsbml.Species;
+
+/** Synthetic models shared by the tests and {@link SbmlBenchmark} */
+public final class SbmlFixtures
+{
+	private SbmlFixtures()
+	{
+	}
+
+	/** A chain s0 -> s1 -> ... -> sN in the compartment "cell" */
+	public static SBMLDocument createChain(int reactions)
+	{
+		return createChain(reactions, 0, null, false);
+	}
+
+	/**
+	 * A chain with a modifier every five reactions, so that the graph is not
+	 * a plain line; about 2 nodes per reaction.
+	 */
+	public static SBMLDocument createNetwork(int reactions)
+	{
+		return createChain(reactions, 5, null, false);
+	}
+
+	/**
+	 * @param modifierEvery
+	 *            every so many reactions get a species further along the
+	 *            chain as modifier, 0 for none
+	 * @param hub
+	 *            id of a species that every reaction also consumes, like
+	 *            atp, or null
+	 * @param annotated
+	 *            if true, every species is annotated with its own ChEBI id
+	 */
+	public static SBMLDocument createChain(int reactions, int modifierEvery,
+			String hub, boolean annotated)
+	{
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		Model model = doc.createModel("chain" + reactions);
+		Compartment cell = model.createCompartment("cell");
+		if (hub != null)
+		{
+			model.createSpecies(hub, cell);
+		}
+		for (int i = 0; i <= reactions; i++)
+		{
+			Species s = model.createSpecies("s" + i, cell);
+			if (annotated)
+			{
+				s.setMetaId("metaid_s" + i);
+				s.addCVTerm(new CVTerm(CVTerm.Type.BIOLOGICAL_QUALIFIER,
+						CVTerm.Qualifier.BQB_IS, "urn:miriam:chebi:CHEBI%3A"
+								+ (10000 + i)));
+			}
+		}
+		for (int i = 0; i < reactions; i++)
+		{
+			Reaction r = model.createReaction("r" + i);
+			r.createReactant(model.getSpecies("s" + i));
+			if (hub != null)
+			{
+				r.createReactant(model.getSpecies(hub));
+			}
+			r.createProduct(model.getSpecies("s" + (i + 1)));
+			if (modifierEvery > 0 && i % modifierEvery == 0)
+			{
+				r.createModifier(model.getSpecies("s" + ((i * 7) % reactions)));
+			}
+		}
+		return doc;
+	}
+
+	/** @return the pathway the peer import makes of doc */
+	public static Pathway toPathway(SBMLDocument doc)
+	{
+		return PeerModel.createFromDoc(doc).getPathway();
+	}
+
+	/** Writes doc to a temporary file that is deleted on exit */
+	public static File write(SBMLDocument doc, String suffix)
+			throws Exception
+	{
+		File f = File.createTempFile("fixture", suffix);
+		f.deleteOnExit();
+		new SBMLWriter().write(doc, f.getAbsolutePath());
+		return f;
+	}
+
+	/**
+	 * A synthetic metabolic network of about the given number of nodes, half
+	 * of them species and half process nodes. Each reaction turns a species
+	 * into the next one; some also use one of ten currency metabolites or a
+	 * species further down the chain.
+	 *
+	 * @param process
+	 *            filled with which nodes are process nodes
+	 */
+	static LayoutGraph createGraph(int nodes, boolean[] process)
+	{
+		Random random = new Random(1);
+		int species = nodes / 2;
+		int reactions = nodes - species;
+		LayoutGraph g = new LayoutGraph(nodes, reactions * 4);
+		for (int i = 0; i < species; i++)
+		{
+			g.addNode("s" + i, random.nextFloat() * 1000,
+					random.nextFloat() * 1000, 60, 20);
+		}
+		for (int i = 0; i < reactions; i++)
+		{
+			int p = g.addNode("r" + i, random.nextFloat() * 1000,
+					random.nextFloat() * 1000, 15, 15);
+			process[p] = true;
+			int s = (int) ((long) i * species / reactions);
+			g.addSpring(s, p);
+			g.addSpring(p, (s + 1) % species);
+			if (random.nextFloat() < 0.3f)
+			{
+				g.addSpring(random.nextInt(10), p);
+			}
+			if (random.nextFloat() < 0.2f)
+			{
+				g.addSpring(p, (s + random.nextInt(50)) % species);
+			}
+		}
+		return g;
+	}
+}
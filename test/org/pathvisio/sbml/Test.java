@@ -17,9 +17,26 @@
 package org.pathvisio.sbml;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.bridgedb.DataSource;
+import org.bridgedb.bio.BioDataSource;
 import org.pathvisio.core.model.ConverterException;
+import org.pathvisio.core.model.ObjectType;
 import org.pathvisio.core.model.Pathway;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.peer.ImportOptions;
+import org.pathvisio.sbml.peer.PeerCompartment;
+import org.pathvisio.sbml.peer.PeerModel;
+import org.sbml.jsbml.Compartment;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.Reaction;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.Species;
+import org.sbml.jsbml.xml.stax.SBMLReader;
 
 import junit.framework.TestCase;
 
@@ -36,4 +53,403 @@ public class Test extends TestCase
 		Pathway pathway = format.doImport(fExample);
 		//TODO: add assertions to check that it really worked
 	}
+
+	/**
+	 * The streaming importer must give the same elements as the JSBML based
+	 * import, for every model it can read.
+	 */
+	public void testStreamingImportMatchesDom() throws ConverterException
+	{
+		ImportOptions dom = new ImportOptions();
+		dom.setStreamingThreshold(-1);
+		ImportOptions stream = new ImportOptions();
+		stream.setStreamingThreshold(0);
+		int compared = 0;
+		for (File f : new File("SBML/testdata/level-2").listFiles())
+		{
+			if (!f.getName().endsWith(".xml")
+					|| !SbmlStreamImportHelper.isStreamable(f))
+			{
+				continue;
+			}
+			assertEquals(f.getName(),
+					describe(new SbmlImportHelper(dom, false).doImport(f)),
+					describe(new SbmlImportHelper(stream, false).doImport(f)));
+			compared++;
+		}
+		assertTrue(compared > 0);
+	}
+
+	/**
+	 * @return type, label, position, Xref and compartment of each element,
+	 *         sorted
+	 */
+	private static List<String> describe(Pathway pathway)
+	{
+		List<String> result = new ArrayList<String>();
+		for (PathwayElement elt : pathway.getDataObjects())
+		{
+			String s = elt.getObjectType() + " " + elt.getTextLabel();
+			if (elt.getObjectType() == ObjectType.LINE)
+			{
+				s += " " + Math.round(elt.getMStartX()) + ","
+						+ Math.round(elt.getMStartY()) + " "
+						+ Math.round(elt.getMEndX()) + ","
+						+ Math.round(elt.getMEndY());
+			}
+			else if (elt.getObjectType() == ObjectType.DATANODE)
+			{
+				s += " " + Math.round(elt.getMCenterX()) + ","
+						+ Math.round(elt.getMCenterY()) + " " + elt.getXref()
+						+ " " + PeerCompartment.getCompartment(elt);
+			}
+			result.add(s);
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * The streaming writer must give the same species and reactions as the
+	 * JSBML based export.
+	 */
+	public void testStreamingExport() throws Exception
+	{
+		SBMLFormat format = new SBMLFormat(null);
+		Pathway pathway = format.doImport(new File(
+				"SBML/testdata/layout-extension/example1.xml"));
+
+		File dom = File.createTempFile("export", ".xml");
+		File stream = File.createTempFile("export-stream", ".xml");
+		dom.deleteOnExit();
+		stream.deleteOnExit();
+		format.getExportOptions().setRoundTrip(false);
+		format.doExport(dom, pathway);
+		format.getExportOptions().setStreaming(true);
+		format.doExport(stream, pathway);
+
+		Model a = new SBMLReader().readSBML(dom.getAbsolutePath()).getModel();
+		Model b = new SBMLReader().readSBML(stream.getAbsolutePath()).getModel();
+		assertEquals(a.getId(), b.getId());
+		assertEquals(a.getNumSpecies(), b.getNumSpecies());
+		assertEquals(a.getNumReactions(), b.getNumReactions());
+		for (int i = 0; i < a.getNumReactions(); i++)
+		{
+			Reaction ra = a.getReaction(i);
+			Reaction rb = b.getReaction(i);
+			assertEquals(ra.getId(), rb.getId());
+			assertEquals(ra.getNumReactants(), rb.getNumReactants());
+			assertEquals(ra.getNumProducts(), rb.getNumProducts());
+			assertEquals(ra.getNumModifiers(), rb.getNumModifiers());
+		}
+	}
+
+	/**
+	 * At every level the streaming writer supports, its output must have
+	 * what the level requires and agree with the JSBML based export.
+	 */
+	public void testStreamingExportLevels() throws Exception
+	{
+		assertStreamMatchesDom(2, 4);
+		assertStreamMatchesDom(3, 1);
+	}
+
+	private static void assertStreamMatchesDom(int level, int version)
+			throws Exception
+	{
+		SBMLFormat format = new SBMLFormat(null);
+		Pathway pathway = format.doImport(new File(
+				"SBML/testdata/layout-extension/example1.xml"));
+		pathway.getMappInfo().setDynamicProperty("SBML_Level", "" + level);
+		pathway.getMappInfo().setDynamicProperty("SBML_Version", "" + version);
+		format.getExportOptions().setRoundTrip(false);
+		format.getExportOptions().setLayout(false);
+
+		File dom = File.createTempFile("export", ".xml");
+		File stream = File.createTempFile("export-stream", ".xml");
+		dom.deleteOnExit();
+		stream.deleteOnExit();
+		format.doExport(dom, pathway);
+		format.getExportOptions().setStreaming(true);
+		format.doExport(stream, pathway);
+
+		SBMLDocument a = new SBMLReader().readSBML(dom.getAbsolutePath());
+		SBMLDocument b = new SBMLReader().readSBML(stream.getAbsolutePath());
+		assertEquals(level, b.getLevel());
+		assertEquals(version, b.getVersion());
+		assertValid(a.getModel());
+		assertValid(b.getModel());
+		// species keep the compartment they were imported from
+		Model original = new SBMLReader().readSBML(
+				"SBML/testdata/layout-extension/example1.xml").getModel();
+		for (int i = 0; i < a.getModel().getNumSpecies(); i++)
+		{
+			Species sp = a.getModel().getSpecies(i);
+			if (original.getSpecies(sp.getId()) != null)
+			{
+				assertEquals(original.getSpecies(sp.getId()).getCompartment(),
+						sp.getCompartment());
+			}
+		}
+		assertEquals(describeModel(a.getModel()), describeModel(b.getModel()));
+	}
+
+	/** Checks the attributes the level of m requires */
+	private static void assertValid(Model m)
+	{
+		boolean l3 = m.getLevel() >= 3;
+		for (int i = 0; i < m.getNumCompartments(); i++)
+		{
+			assertEquals(l3, m.getCompartment(i).isSetConstant());
+		}
+		for (int i = 0; i < m.getNumSpecies(); i++)
+		{
+			Species sp = m.getSpecies(i);
+			assertTrue(sp.getId(), sp.isSetCompartment());
+			assertNotNull(sp.getId(), m.getCompartment(sp.getCompartment()));
+			assertEquals(l3, sp.isSetHasOnlySubstanceUnits());
+			assertEquals(l3, sp.isSetBoundaryCondition());
+			assertEquals(l3, sp.isSetConstant());
+		}
+		for (int i = 0; i < m.getNumReactions(); i++)
+		{
+			Reaction r = m.getReaction(i);
+			assertEquals(l3, r.isSetReversible());
+			assertEquals(l3 && m.getVersion() == 1, r.isSetFast());
+			for (int j = 0; j < r.getNumReactants(); j++)
+			{
+				assertNotNull(m.getSpecies(r.getReactant(j).getSpecies()));
+				assertEquals(l3, r.getReactant(j).isSetConstant());
+			}
+			for (int j = 0; j < r.getNumProducts(); j++)
+			{
+				assertNotNull(m.getSpecies(r.getProduct(j).getSpecies()));
+				assertEquals(l3, r.getProduct(j).isSetConstant());
+			}
+		}
+	}
+
+	/**
+	 * @return the compartments, species and reactions of m, with their
+	 *         attributes
+	 */
+	private static List<String> describeModel(Model m)
+	{
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i < m.getNumCompartments(); i++)
+		{
+			Compartment c = m.getCompartment(i);
+			result.add("compartment " + c.getId() + " " + c.getName() + " "
+					+ c.isSetConstant());
+		}
+		for (int i = 0; i < m.getNumSpecies(); i++)
+		{
+			Species sp = m.getSpecies(i);
+			result.add("species " + sp.getId() + " " + sp.getCompartment()
+					+ " " + sp.isSetHasOnlySubstanceUnits() + " "
+					+ sp.isSetBoundaryCondition() + " " + sp.isSetConstant());
+		}
+		for (int i = 0; i < m.getNumReactions(); i++)
+		{
+			Reaction r = m.getReaction(i);
+			List<String> refs = new ArrayList<String>();
+			for (int j = 0; j < r.getNumReactants(); j++)
+			{
+				refs.add("-" + r.getReactant(j).getSpecies());
+			}
+			for (int j = 0; j < r.getNumProducts(); j++)
+			{
+				refs.add("+" + r.getProduct(j).getSpecies());
+			}
+			for (int j = 0; j < r.getNumModifiers(); j++)
+			{
+				refs.add("~" + r.getModifier(j).getSpecies());
+			}
+			Collections.sort(refs);
+			result.add("reaction " + r.getId() + " " + r.isSetReversible()
+					+ " " + r.isSetFast() + " " + refs);
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/** Level 1 has no streaming writer, the export falls back to JSBML */
+	public void testStreamingExportLevel1() throws Exception
+	{
+		try
+		{
+			SbmlStreamWriter.namespace(1, 2);
+			fail("level 1 has no namespace");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		SBMLFormat format = new SBMLFormat(null);
+		Pathway pathway = format.doImport(new File(
+				"SBML/testdata/layout-extension/example1.xml"));
+		pathway.getMappInfo().setDynamicProperty("SBML_Level", "1");
+		pathway.getMappInfo().setDynamicProperty("SBML_Version", "2");
+		format.getExportOptions().setRoundTrip(false);
+		format.getExportOptions().setLayout(false);
+		format.getExportOptions().setStreaming(true);
+		File out = File.createTempFile("export-l1", ".xml");
+		out.deleteOnExit();
+		format.doExport(out, pathway);
+		assertEquals(1, new SBMLReader().readSBML(out.getAbsolutePath())
+				.getLevel());
+	}
+
+	/**
+	 * Round trip export keeps what the pathway doesn't show and only patches
+	 * what was edited.
+	 */
+	public void testRoundTripExport() throws Exception
+	{
+		File in = new File("SBML/testdata/layout-extension/example1.xml");
+		Model original = new SBMLReader().readSBML(in.getAbsolutePath())
+				.getModel();
+		SBMLFormat format = new SBMLFormat(null);
+		Pathway pathway = format.doImport(in);
+		assertNotNull(format.getImportedModel(pathway));
+
+		PathwayElement renamed = null;
+		for (PathwayElement elt : pathway.getDataObjects())
+		{
+			if (format.getImportedModel(pathway).getPeerOfGlyph(elt) != null)
+			{
+				renamed = elt;
+				break;
+			}
+		}
+		assertNotNull(renamed);
+		String sid = format.getImportedModel(pathway).getPeerOfGlyph(renamed)
+				.getSpecies().getId();
+		renamed.setTextLabel("renamed");
+
+		File out = File.createTempFile("export-roundtrip", ".xml");
+		out.deleteOnExit();
+		format.doExport(out, pathway);
+
+		Model m = new SBMLReader().readSBML(out.getAbsolutePath()).getModel();
+		assertEquals(original.getId(), m.getId());
+		assertEquals(original.getNumCompartments(), m.getNumCompartments());
+		assertEquals(original.getNumSpecies(), m.getNumSpecies());
+		assertEquals(original.getNumReactions(), m.getNumReactions());
+		assertEquals("renamed", m.getSpecies(sid).getName());
+		for (int i = 0; i < original.getNumReactions(); i++)
+		{
+			Reaction ra = original.getReaction(i);
+			Reaction rb = m.getReaction(ra.getId());
+			assertNotNull(rb);
+			assertEquals(ra.getNumReactants(), rb.getNumReactants());
+			assertEquals(ra.getNumProducts(), rb.getNumProducts());
+			assertEquals(ra.getNumModifiers(), rb.getNumModifiers());
+		}
+	}
+
+	public void testPreflightReportsUnconnectedLines() throws Exception
+	{
+		SBMLFormat format = new SBMLFormat(null);
+		Pathway pathway = format.doImport(new File(
+				"SBML/testdata/layout-extension/example1.xml"));
+		assertTrue(ExportPreflight.run(pathway).isConnected());
+
+		PathwayElement line = PathwayElement
+				.createPathwayElement(ObjectType.LINE);
+		pathway.add(line);
+		line.setGraphId("loose");
+		ExportPreflight p = ExportPreflight.run(pathway);
+		assertEquals(Arrays.asList("loose"), p.getUnconnectedLines());
+		assertTrue(p.getTimings().containsKey("preflight"));
+	}
+
+	/** The round trip export refuses unconnected lines like the full one */
+	public void testRoundTripRejectsUnconnectedLines() throws Exception
+	{
+		SBMLFormat format = new SBMLFormat(null);
+		Pathway pathway = format.doImport(new File(
+				"SBML/testdata/layout-extension/example1.xml"));
+		assertNotNull(format.getImportedModel(pathway));
+		PathwayElement line = PathwayElement
+				.createPathwayElement(ObjectType.LINE);
+		pathway.add(line);
+		line.setGraphId("loose");
+
+		File out = File.createTempFile("export-roundtrip", ".xml");
+		out.delete();
+		try
+		{
+			format.doExport(out, pathway);
+			fail("unconnected line exported");
+		}
+		catch (ConverterException e)
+		{
+			assertTrue(e.getMessage().contains("loose"));
+		}
+		assertFalse(out.exists());
+	}
+
+	/**
+	 * An exported pathway carries its layout, so importing it again puts
+	 * every species where it was without fallback placement.
+	 */
+	public void testLayoutSurvivesExport() throws Exception
+	{
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		Model model = doc.createModel("m");
+		Compartment cell = model.createCompartment("cell");
+		model.createSpecies("a", cell);
+		model.createSpecies("b", cell);
+		model.createSpecies("c", cell);
+		Reaction r = model.createReaction("r1");
+		r.createReactant(model.getSpecies("a"));
+		r.createProduct(model.getSpecies("b"));
+		r.createModifier(model.getSpecies("c"));
+		Pathway pathway = PeerModel.createFromDoc(doc).getPathway();
+		assertNull(pathway.getMappInfo().getDynamicProperty(
+				PeerModel.PROPERTY_LAYOUT));
+
+		File out = File.createTempFile("export-layout", ".xml");
+		out.deleteOnExit();
+		new SbmlExportHelper(out, pathway).doExport();
+
+		Pathway imported = new SBMLFormat(null).doImport(out);
+		assertEquals("true", imported.getMappInfo().getDynamicProperty(
+				PeerModel.PROPERTY_LAYOUT));
+		for (PathwayElement elt : pathway.getDataObjects())
+		{
+			if (SbmlStreamWriter.isSpecies(elt))
+			{
+				PathwayElement copy = imported.getElementById(elt.getGraphId());
+				assertNotNull(elt.getGraphId(), copy);
+				assertEquals(elt.getMLeft(), copy.getMLeft(), 0.001);
+				assertEquals(elt.getMTop(), copy.getMTop(), 0.001);
+			}
+		}
+	}
+
+	/** The annotation of an exported species must refer to its metaid */
+	public void testExportedAnnotationMatchesMetaid() throws Exception
+	{
+		BioDataSource.init();
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		Model model = doc.createModel("m");
+		model.createSpecies("a", model.createCompartment("cell"));
+		Pathway pathway = PeerModel.createFromDoc(doc).getPathway();
+		PathwayElement a = pathway.getElementById("a");
+		a.setDataSource(DataSource.getBySystemCode("Ce"));
+		a.setElementID("CHEBI:15422");
+
+		File out = File.createTempFile("export-annotation", ".xml");
+		out.deleteOnExit();
+		new SbmlExportHelper(out, pathway).doExport();
+
+		Species sp = new SBMLReader().readSBML(out.getAbsolutePath())
+				.getModel().getSpecies("a");
+		assertTrue(sp.isSetMetaId());
+		assertEquals("#" + sp.getMetaId(), sp.getAnnotation().getAbout());
+		assertEquals("urn:miriam:chebi:CHEBI%3A15422", sp.getAnnotation()
+				.getCVTerm(0).getResources().get(0));
+	}
 }
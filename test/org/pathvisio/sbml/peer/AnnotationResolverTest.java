@@ -0,0 +1,115 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml.peer;
+
+import junit.framework.TestCase;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+import org.bridgedb.bio.BioDataSource;
+import org.pathvisio.sbml.peer.AnnotationResolver.Resolved;
+
+public class AnnotationResolverTest extends TestCase
+{
+	private AnnotationResolver resolver;
+
+	@Override
+	protected void setUp()
+	{
+		BioDataSource.init();
+		resolver = new AnnotationResolver(AnnotationResolver.DEFAULT_CAPACITY);
+	}
+
+	private void assertResolves(String code, String id, String uri)
+	{
+		Resolved r = resolver.resolve(uri);
+		assertNotNull(uri, r);
+		assertEquals(uri, code, r.getDataSource().getSystemCode());
+		assertEquals(uri, id, r.getId());
+	}
+
+	public void testUrnAndIdentifiersOrg()
+	{
+		assertResolves("Ce", "CHEBI:15422", "urn:miriam:chebi:CHEBI%3A15422");
+		assertResolves("Ce", "CHEBI:15422",
+				"http://identifiers.org/chebi/CHEBI:15422");
+		assertResolves("Ck", "C00031", "urn:miriam:kegg.compound:C00031");
+		assertResolves("T", "GO:0005623", "urn:miriam:obo.go:GO%3A0005623");
+	}
+
+	public void testPubchem()
+	{
+		assertResolves("Cpc", "5793", "urn:miriam:pubchem.compound:5793");
+		assertResolves("Cpc", "5793",
+				"http://identifiers.org/pubchem.compound/5793");
+		assertResolves("Cps", "3343", "urn:miriam:pubchem.substance:3343");
+		assertNull(resolver.resolve("urn:miriam:pubchem.bioassay:1000"));
+	}
+
+	public void testUnknownNamespace()
+	{
+		assertNull(resolver.resolve("urn:miriam:nosuchdatabase:1"));
+		assertNull(resolver.resolve("http://identifiers.org/nosuchdatabase/1"));
+		assertNull(resolver.resolve("urn:miriam:chebi"));
+		assertNull(resolver.resolve("not a resource"));
+	}
+
+	public void testCounters()
+	{
+		String uri = "urn:miriam:chebi:CHEBI%3A15422";
+		resolver.resolve(uri);
+		resolver.resolve(uri);
+		resolver.resolve(uri);
+		assertEquals(1, resolver.getMissCount());
+		assertEquals(2, resolver.getHitCount());
+
+		// failures are cached too
+		resolver.resolve("urn:miriam:nosuchdatabase:1");
+		resolver.resolve("urn:miriam:nosuchdatabase:1");
+		assertEquals(2, resolver.getMissCount());
+		assertEquals(3, resolver.getHitCount());
+		assertEquals(2, resolver.size());
+
+		resolver.clear();
+		assertEquals(0, resolver.size());
+		assertEquals(0, resolver.getHitCount());
+		assertEquals(0, resolver.getMissCount());
+	}
+
+	public void testCapacity()
+	{
+		AnnotationResolver small = new AnnotationResolver(2);
+		for (int i = 0; i < 5; i++)
+		{
+			small.resolve("urn:miriam:kegg.compound:C0000" + i);
+		}
+		assertEquals(2, small.size());
+	}
+
+	/** Every namespace written on export must be read back as the same Xref */
+	public void testExportRoundTrip()
+	{
+		String[][] xrefs = new String[][] { { "Ce", "CHEBI:15422" },
+				{ "Cps", "3343" }, { "Cpc", "5793" }, { "Ck", "C00031" },
+				{ "Ca", "50-99-7" }, { "S", "P12345" }, { "T", "GO:0005623" } };
+		for (String[] x : xrefs)
+		{
+			Xref xref = new Xref(x[1], DataSource.getBySystemCode(x[0]));
+			assertResolves(x[0], x[1], resolver.toUri(xref));
+		}
+	}
+}
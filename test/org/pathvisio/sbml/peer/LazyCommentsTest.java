@@ -0,0 +1,112 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml.peer;
+
+import junit.framework.TestCase;
+
+import org.pathvisio.core.model.Pathway;
+import org.pathvisio.sbml.peer.ImportOptions.NotesMode;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.SBMLDocument;
+
+public class LazyCommentsTest extends TestCase
+{
+	private static SBMLDocument createDoc()
+	{
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		Model model = doc.createModel("notes");
+		model.createSpecies("a", model.createCompartment("cell"));
+		doc.setNotes("<notes><body xmlns=\"http://www.w3.org/1999/xhtml\">"
+				+ "<p>lazy</p></body></notes>");
+		return doc;
+	}
+
+	private static int countComments(Pathway pathway)
+	{
+		return pathway.getMappInfo().getComments().size();
+	}
+
+	public void testMaterializeOnce()
+	{
+		Pathway pathway = new Pathway();
+		LazyComments.register(pathway, createDoc());
+		assertTrue(LazyComments.isPending(pathway));
+		assertEquals(0, countComments(pathway));
+
+		LazyComments.materialize(pathway);
+		assertFalse(LazyComments.isPending(pathway));
+		assertEquals(1, countComments(pathway));
+		assertTrue(pathway.getMappInfo().getComments().get(0).getComment()
+				.contains("lazy"));
+
+		LazyComments.materialize(pathway);
+		assertEquals(1, countComments(pathway));
+	}
+
+	public void testNothingToRegister()
+	{
+		Pathway pathway = new Pathway();
+		SBMLDocument doc = new SBMLDocument(2, 4);
+		doc.createModel("empty");
+		LazyComments.register(pathway, doc);
+		assertFalse(LazyComments.isPending(pathway));
+	}
+
+	public void testDiscard()
+	{
+		Pathway pathway = new Pathway();
+		LazyComments.register(pathway, createDoc());
+		LazyComments.discard(pathway);
+		assertFalse(LazyComments.isPending(pathway));
+		LazyComments.materialize(pathway);
+		assertEquals(0, countComments(pathway));
+	}
+
+	public void testShare()
+	{
+		Pathway pathway = new Pathway();
+		Pathway copy = new Pathway();
+		LazyComments.register(pathway, createDoc());
+		LazyComments.share(pathway, copy);
+		LazyComments.materialize(copy);
+		assertEquals(1, countComments(copy));
+		assertTrue(LazyComments.isPending(pathway));
+		assertEquals(0, countComments(pathway));
+	}
+
+	public void testNotesModes()
+	{
+		ImportOptions options = new ImportOptions();
+		Pathway lazy = PeerModel.createFromDoc(createDoc(), options)
+				.getPathway();
+		assertTrue(LazyComments.isPending(lazy));
+		assertEquals(0, countComments(lazy));
+
+		options.setNotesMode(NotesMode.EAGER);
+		Pathway eager = PeerModel.createFromDoc(createDoc(), options)
+				.getPathway();
+		assertFalse(LazyComments.isPending(eager));
+		assertEquals(1, countComments(eager));
+
+		options.setNotesMode(NotesMode.DROP);
+		Pathway dropped = PeerModel.createFromDoc(createDoc(), options)
+				.getPathway();
+		assertFalse(LazyComments.isPending(dropped));
+		LazyComments.materialize(dropped);
+		assertEquals(0, countComments(dropped));
+	}
+}
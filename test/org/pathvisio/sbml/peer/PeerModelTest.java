@@ -0,0 +1,167 @@
+// PathSBML Plugin
+// SBML Plugin for PathVisio.
+// Copyright 2013 developed for Google Summer of Code
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package org.pathvisio.sbml.peer;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.bridgedb.bio.BioDataSource;
+import org.pathvisio.core.model.ObjectType;
+import org.pathvisio.core.model.PathwayElement;
+import org.pathvisio.sbml.SbmlFixtures;
+import org.sbml.jsbml.Model;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.ext.layout.ExtendedLayoutModel;
+import org.sbml.jsbml.ext.layout.Layout;
+import org.sbml.jsbml.ext.layout.LayoutConstants;
+
+public class PeerModelTest extends TestCase
+{
+	/**
+	 * Creates a linear chain s0 -> s1 -> ... -> sN where every reaction also
+	 * consumes the hub species "atp".
+	 */
+	static SBMLDocument createChain(int reactions)
+	{
+		return createChain(reactions, false);
+	}
+
+	/**
+	 * @param annotated
+	 *            if true, every species is annotated with its own ChEBI id,
+	 *            so the resolver has work for each of them
+	 */
+	static SBMLDocument createChain(int reactions, boolean annotated)
+	{
+		return SbmlFixtures.createChain(reactions, 0, "atp", annotated);
+	}
+
+	/**
+	 * The parallel path must give the same pathway as the sequential one.
+	 * Graph ids of ports and arcs are random, so everything but those is
+	 * compared.
+	 */
+	public void testParallelMatchesSequential()
+	{
+		BioDataSource.init();
+		SBMLDocument doc = createChain(3000, true);
+		ImportOptions parallel = new ImportOptions();
+		parallel.setParallel(true);
+		parallel.setThreads(4);
+
+		List<PathwayElement> seq = PeerModel.createFromDoc(doc).getPathway().getDataObjects();
+		List<PathwayElement> par = PeerModel.createFromDoc(doc, parallel).getPathway().getDataObjects();
+		assertEquals(seq.size(), par.size());
+		for (int i = 0; i < seq.size(); i++)
+		{
+			PathwayElement a = seq.get(i);
+			PathwayElement b = par.get(i);
+			assertEquals(a.getObjectType(), b.getObjectType());
+			assertEquals(a.getTextLabel(), b.getTextLabel());
+			assertEquals(a.getMCenterX(), b.getMCenterX());
+			assertEquals(a.getMCenterY(), b.getMCenterY());
+			assertEquals(a.getXref(), b.getXref());
+		}
+	}
+
+	public void testBulkLoadSyncsOnce()
+	{
+		ImportOptions eager = new ImportOptions();
+		eager.setBulkLoad(false);
+		PeerModel before = PeerModel.createFromDoc(createChain(500), eager);
+		PeerModel after = PeerModel.createFromDoc(createChain(500));
+		assertEquals(0, after.getElementEventCount());
+		assertTrue(after.getSbmlSyncCount() < before.getSbmlSyncCount());
+	}
+
+	public void testAllSpeciesConverted()
+	{
+		PeerModel model = PeerModel.createFromDoc(createChain(50));
+		for (int i = 0; i <= 50; i++)
+		{
+			assertNotNull(model.getModel().getSpecies("s" + i));
+			assertNotNull(model.getSpeciesPeer("s" + i));
+		}
+		assertNotNull(model.getPathway().getElementById("r0"));
+	}
+
+	public void testPlacementWithoutOverlap()
+	{
+		PeerModel model = PeerModel.createFromDoc(createChain(300));
+		List<Rectangle2D> boxes = new ArrayList<Rectangle2D>();
+		for (PathwayElement elt : model.getPathway().getDataObjects())
+		{
+			// species glyphs only; ports touch their process node
+			if (elt.getObjectType() == ObjectType.DATANODE
+					&& model.getModel().getSpecies(elt.getTextLabel()) != null)
+			{
+				boxes.add(elt.getMBounds());
+			}
+		}
+		for (int i = 0; i < boxes.size(); i++)
+		{
+			for (int j = i + 1; j < boxes.size(); j++)
+			{
+				assertFalse(boxes.get(i) + " overlaps " + boxes.get(j),
+						boxes.get(i).intersects(boxes.get(j)));
+			}
+		}
+	}
+
+	/**
+	 * A layout with one glyph per species places every species, but the
+	 * glyphs created for products that are used again have none. They must
+	 * go on the grid instead of piling up at the origin.
+	 */
+	public void testElementsWithoutGlyphArePlaced()
+	{
+		SBMLDocument doc = createChain(5);
+		Model m = doc.getModel();
+		ExtendedLayoutModel ext = new ExtendedLayoutModel(m);
+		m.addExtension(LayoutConstants.namespaceURI, ext);
+		Layout l = ext.createLayout("layout");
+		for (int i = 0; i < m.getNumSpecies(); i++)
+		{
+			String sid = m.getSpecies(i).getId();
+			l.createSpeciesGlyph("glyph_" + sid, sid).createBoundingBox(40,
+					20, 0).createPosition(200 * i, 100, 0);
+		}
+
+		PeerModel model = PeerModel.createFromDoc(doc);
+		assertEquals("true", model.getPathway().getMappInfo()
+				.getDynamicProperty(PeerModel.PROPERTY_LAYOUT));
+		Set<Point2D> centers = new HashSet<Point2D>();
+		int glyphs = 0;
+		for (PathwayElement elt : model.getPathway().getDataObjects())
+		{
+			if (model.getPeerOfGlyph(elt) != null)
+			{
+				glyphs++;
+				assertTrue(elt.getGraphId() + " shares its position",
+						centers.add(new Point2D.Double(elt.getMCenterX(), elt
+								.getMCenterY())));
+			}
+		}
+		assertTrue(glyphs > m.getNumSpecies());
+	}
+}